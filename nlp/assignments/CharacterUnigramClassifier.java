@@ -1,9 +1,16 @@
 package nlp.assignments;
 
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import nlp.classify.*;
+import nlp.util.ConcurrentCounter;
+import nlp.util.ConcurrentCounterMap;
 import nlp.util.Counter;
 import nlp.util.CounterMap;
 
@@ -14,19 +21,82 @@ class CharacterUnigramClassifier<I,F,L> implements ProbabilisticClassifier<I,L>
   	CounterMap<L,F> labelFeatureMap = new CounterMap<L,F>();
   	Counter<L> labelCounter = new Counter<L>();
     FeatureExtractor<I,F> featureExtractor;
+    int numThreads = 1;
 
     public ProbabilisticClassifier<I,L> trainClassifier(List<LabeledInstance<I,L>> trainingData) {
-      for (LabeledInstance<I,L> datum : trainingData) {
-        L label = datum.getLabel();
-        labelCounter.incrementCount(label, 1.0);
-        Counter<F> features = featureExtractor.extractFeatures(datum.getInput());
-        labelFeatureMap.incrementByCounter(label, features);
+      if (numThreads > 1) {
+        countInParallel(trainingData);
+      } else {
+        for (LabeledInstance<I,L> datum : trainingData) {
+          L label = datum.getLabel();
+          labelCounter.incrementCount(label, 1.0);
+          Counter<F> features = featureExtractor.extractFeatures(datum.getInput());
+          labelFeatureMap.incrementByCounter(label, features);
+        }
       }
       return new CharacterUnigramClassifier<I,F,L>(labelFeatureMap, featureExtractor, labelCounter);
     }
+
+    // each worker extracts and counts a contiguous slice of the data into its
+    // own shard; the shards are then merged in slice order, so the counts do
+    // not depend on thread scheduling
+    private void countInParallel(final List<LabeledInstance<I,L>> trainingData) {
+      ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+      List<Future<?>> futures = new ArrayList<Future<?>>();
+      final List<CounterMap<L,F>> featureShards = new ArrayList<CounterMap<L,F>>();
+      final List<Counter<L>> labelShards = new ArrayList<Counter<L>>();
+      int shardSize = (trainingData.size() + numThreads - 1) / numThreads;
+      for (int start = 0; start < trainingData.size(); start += shardSize) {
+        final List<LabeledInstance<I,L>> shard = trainingData.subList(start, Math.min(start + shardSize, trainingData.size()));
+        final CounterMap<L,F> featureShard = new CounterMap<L,F>();
+        final Counter<L> labelShard = new Counter<L>();
+        featureShards.add(featureShard);
+        labelShards.add(labelShard);
+        futures.add(executor.submit(new Runnable() {
+          public void run() {
+            for (LabeledInstance<I,L> datum : shard) {
+              L label = datum.getLabel();
+              labelShard.incrementCount(label, 1.0);
+              featureShard.incrementByCounter(label, featureExtractor.extractFeatures(datum.getInput()));
+            }
+          }
+        }));
+      }
+      try {
+        for (Future<?> future : futures) {
+          future.get();
+        }
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      } catch (ExecutionException e) {
+        throw new RuntimeException(e.getCause());
+      } finally {
+        executor.shutdown();
+      }
+      ConcurrentCounterMap<L,F> mergedLabelFeatureMap = new ConcurrentCounterMap<L,F>();
+      ConcurrentCounter<L> mergedLabelCounter = new ConcurrentCounter<L>();
+      for (int i = 0; i < featureShards.size(); i++) {
+        mergedLabelFeatureMap.merge(featureShards.get(i));
+        mergedLabelCounter.incrementAll(labelShards.get(i));
+      }
+      labelCounter.incrementAll(mergedLabelCounter.toCounter());
+      for (L label : mergedLabelFeatureMap.keySet()) {
+        labelFeatureMap.incrementByCounter(label, mergedLabelFeatureMap.getCounter(label).toCounter());
+      }
+    }
+
     public Factory(FeatureExtractor<I,F> featureExtractor) {
       this.featureExtractor = featureExtractor;
     }
+
+    /**
+     * Counts the training data on the given number of threads.  The feature
+     * extractor must then be safe to call concurrently.
+     */
+    public Factory(FeatureExtractor<I,F> featureExtractor, int numThreads) {
+      this.featureExtractor = featureExtractor;
+      this.numThreads = numThreads;
+    }
   }
   
 	CounterMap<L,F> labelFeatureMap;
@@ -4,9 +4,11 @@ package nlp.assignments;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.SplittableRandom;
 
 import nlp.langmodel.LanguageModel;
 import nlp.util.Counter;
+import nlp.util.StringIndexer;
 
 /**
  * A dummy language model -- uses empirical unigram counts, plus a single
@@ -19,8 +21,18 @@ class EmpiricalUnigramLanguageModel implements LanguageModel {
   double total = 0.0;
   Counter<String> wordCounter = new Counter<String>();
 
+  // the words of wordCounter and their counts, by id
+  StringIndexer vocabulary = new StringIndexer();
+  double[] wordCounts;
+  int stopId;
+
+  // the index-th word of the sentence followed by STOP
+  static String stoppedWord(List<String> sentence, int index) {
+    return (index < sentence.size() ? sentence.get(index) : STOP);
+  }
+
   public double getWordProbability(List<String> sentence, int index) {
-    String word = sentence.get(index);
+    String word = stoppedWord(sentence, index);
     double count = wordCounter.getCount(word);
     if (count == 0) {
 //      System.out.println("UNKNOWN WORD: "+sentence.get(index));
@@ -29,34 +41,87 @@ class EmpiricalUnigramLanguageModel implements LanguageModel {
     return count / (total + 1.0);
   }
 
+  double getWordProbability(int wordId) {
+    double count = (wordId < 0 ? 0.0 : wordCounts[wordId]);
+    if (count == 0) {
+      return 1.0 / (total + 1.0);
+    }
+    return count / (total + 1.0);
+  }
+
   public double getSentenceProbability(List<String> sentence) {
-    List<String> stoppedSentence = new ArrayList<String>(sentence);
-    stoppedSentence.add(STOP);
     double probability = 1.0;
-    for (int index = 0; index < stoppedSentence.size(); index++) {
-      probability *= getWordProbability(stoppedSentence, index);
+    for (int index = 0; index <= sentence.size(); index++) {
+      probability *= getWordProbability(sentence, index);
     }
     return probability;
   }
 
-  String generateWord() {
-    double sample = Math.random();
-    double sum = 0.0;
-    for (String word : wordCounter.keySet()) {
-      sum += wordCounter.getCount(word) / total;
-      if (sum > sample) {
-        return word;
+  public double getSentenceLogProbability(List<String> sentence) {
+    double logProbability = 0.0;
+    for (int index = 0; index <= sentence.size(); index++) {
+      logProbability += Math.log(getWordProbability(sentence, index));
+    }
+    return logProbability;
+  }
+
+  public double getWordLogProbability(List<String> sentence, int index) {
+    return Math.log(getWordProbability(sentence, index));
+  }
+
+  public StringIndexer getVocabulary() {
+    return vocabulary;
+  }
+
+  public double[] getSentenceLogProbabilities(int[][] sentences) {
+    double[] logProbabilities = new double[sentences.length];
+    for (int i = 0; i < sentences.length; i++) {
+      double logProbability = 0.0;
+      for (int wordId : sentences[i]) {
+        logProbability += Math.log(getWordProbability(wordId));
       }
+      logProbabilities[i] = logProbability + Math.log(getWordProbability(stopId));
     }
-    return "*UNKNOWN*";
+    return logProbabilities;
+  }
+
+  // running totals of wordCounts, built on the first draw
+  volatile double[] cumulativeCounts;
+
+  int generateWord(SplittableRandom random) {
+    double[] cumulative = cumulativeCounts;
+    if (cumulative == null) {
+      cumulative = new double[wordCounts.length];
+      double sum = 0.0;
+      for (int id = 0; id < wordCounts.length; id++) {
+        sum += wordCounts[id];
+        cumulative[id] = sum;
+      }
+      cumulativeCounts = cumulative;
+    }
+    double sample = random.nextDouble() * cumulative[cumulative.length - 1];
+    int low = 0;
+    int high = cumulative.length - 1;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (cumulative[mid] > sample)
+        high = mid;
+      else
+        low = mid + 1;
+    }
+    return low;
   }
 
   public List<String> generateSentence() {
+    return generateSentence(new SplittableRandom());
+  }
+
+  public List<String> generateSentence(SplittableRandom random) {
     List<String> sentence = new ArrayList<String>();
-    String word = generateWord();
-    while (!word.equals(STOP)) {
-      sentence.add(word);
-      word = generateWord();
+    int word = generateWord(random);
+    while (word != stopId) {
+      sentence.add(vocabulary.get(word));
+      word = generateWord(random);
     }
     return sentence;
   }
@@ -70,6 +135,11 @@ class EmpiricalUnigramLanguageModel implements LanguageModel {
       }
     }
     total = wordCounter.totalCount();
+    wordCounts = new double[wordCounter.size()];
+    for (String word : wordCounter.keySet()) {
+      wordCounts[vocabulary.addAndGetIndex(word)] = wordCounter.getCount(word);
+    }
+    stopId = vocabulary.indexOf(STOP);
     System.out.println("UNKcount:  "+wordCounter.getCount("UNK"));
   }
 }
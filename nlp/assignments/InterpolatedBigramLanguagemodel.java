@@ -3,22 +3,32 @@ package nlp.assignments;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.SplittableRandom;
 
-import nlp.langmodel.LanguageModel;
-import nlp.util.Counter;
-import nlp.util.CounterMap;
+import nlp.langmodel.InterpolationWeightOptimizer;
+import nlp.langmodel.LanguageModelState;
+import nlp.langmodel.NgramStore;
+import nlp.langmodel.StatefulLanguageModel;
+import nlp.util.StringIndexer;
 
 /**
  * A dummy language model -- uses empirical Bigram counts, plus a single
  * ficticious count for unknown words.
  */
-class InterpolatedBigramLanguagemodel implements LanguageModel {
+class InterpolatedBigramLanguagemodel implements StatefulLanguageModel {
 
   static final String STOP = "</S>";
   static final String START = "<S>";
   
   double lambda = 0.6;
+  // the bigram weight per history count bucket, if tuned with buckets
+  double[] bucketLambdas = null;
+  // the bucket of each word as a history, by the training-only counts the
+  // bucket weights were fitted with (see trainTuned()); if null, buckets
+  // come from this model's own counts
+  byte[] historyBuckets = null;
 
   double wordCount = 0.0;
   double vocabSize = 0.0;
@@ -26,109 +36,236 @@ class InterpolatedBigramLanguagemodel implements LanguageModel {
   double bigramVocabSize = 0.0;
   double sentenceCount = 0.0;
   
-  CounterMap<String, String> bigramCounterMap = new CounterMap<String, String>();
+  NgramStore ngrams;
+  int startId;
+  int stopId;
   
   public double unigramCount(String word) {
-  	if (word.equals(STOP)) { return sentenceCount; }
+  	return unigramCount(ngrams.getWordId(word));
+  }
+
+  double unigramCount(int id) {
+  	if (id == stopId) { return sentenceCount; }
   	else {
-  		Counter<String> nextwords = bigramCounterMap.getCounter(word);
-  		return nextwords.totalCount();
+  		return ngrams.getHistoryCount(id);
   	}
   }
   
   public double unigramProb(String token) {
-  	double tokencount = unigramCount(token);
+  	return unigramProb(ngrams.getWordId(token));
+  }
+
+  double unigramProb(int id) {
+  	double tokencount = unigramCount(id);
   	return tokencount / wordCount;
   }
   
   public double getUnigramProbability(List<String> sentence, int index) {
-    String word = sentence.get(index);
+    String word = paddedWord(sentence, index);
     return unigramProb(word);
   }
   
   public double condBigramProb(String word1, String word2) {
-  	double bicount = bigramCounterMap.getCount(word1, word2);
-  	return bicount / unigramCount(word1);
+  	return condBigramProb(ngrams.getWordId(word1), ngrams.getWordId(word2));
+  }
+
+  double condBigramProb(int id1, int id2) {
+  	double bicount = ngrams.getCount(id1, id2);
+  	return bicount / unigramCount(id1);
   }
   
   public double getCondBigramProbability(List<String> sentence, int index) {
-  	String word1 = sentence.get(index);
-  	String word2 = sentence.get(index+1);
+  	String word1 = paddedWord(sentence, index);
+  	String word2 = paddedWord(sentence, index+1);
   	return condBigramProb(word1, word2);
   }
   
   public double p_interp(String word1, String word2) {
-  	double prob = (lambda * condBigramProb(word1, word2)) + ((1 - lambda) * unigramProb(word2));
+  	return p_interp(ngrams.getWordId(word1), ngrams.getWordId(word2));
+  }
+
+  double p_interp(int id1, int id2) {
+  	double l = lambda;
+  	if (bucketLambdas != null) {
+  		l = bucketLambdas[bucketFor(id1)];
+  	}
+  	double prob = (l * condBigramProb(id1, id2)) + ((1 - l) * unigramProb(id2));
 //  	if (((Double)prob).isNaN()) { System.out.println(word1+"-"+word2+"-"+word3+": "+prob); }
   	return prob;
   }
-  
+
+  // the weight bucket of history word id1
+  int bucketFor(int id1) {
+  	if (historyBuckets != null) { return (id1 < 0 ? 0 : historyBuckets[id1]); }
+  	return InterpolationWeightOptimizer.getBucket(unigramCount(id1), bucketLambdas.length);
+  }
+
+  /**
+   * The index-th word of the sentence padded with START and STOP, without
+   * building the padded copy.
+   */
+  static String paddedWord(List<String> sentence, int index) {
+  	if (index == 0) { return START; }
+  	return (index <= sentence.size() ? sentence.get(index-1) : STOP);
+  }
+
+  // index is a position in the padded sentence
   public double getP_interp(List<String> sentence, int index) {
-  	String word1 = sentence.get(index);
-  	String word2 = sentence.get(index+1);
+  	String word1 = paddedWord(sentence, index);
+  	String word2 = paddedWord(sentence, index+1);
   	return p_interp(word1, word2);
   }
 
   public double getSentenceProbability(List<String> sentence) {
-    List<String> stoppedStartedSentence = new ArrayList<String>(sentence);
-    stoppedStartedSentence.add(STOP);
-    stoppedStartedSentence.add(0,START);
     double probability = 1.0;
-    for (int index = 0; index < stoppedStartedSentence.size()-1; index++) {
-      probability *= getP_interp(stoppedStartedSentence, index);
+    for (int index = 0; index < sentence.size()+1; index++) {
+      probability *= getP_interp(sentence, index);
     }
     return probability;
   }
 
-  String generateNextWord(String word1) {
-    double sample = Math.random();
-    double sum = 0.0;
-  	Counter<String> nextwords = bigramCounterMap.getCounter(word1);
-    for (String word2 : nextwords.keySet()) {
-      sum += bigramCounterMap.getCount(word1, word2) / unigramCount(word1);
-      if (sum > sample) { return word2; }
+  public double getSentenceLogProbability(List<String> sentence) {
+    double logProbability = 0.0;
+    for (int index = 0; index < sentence.size()+1; index++) {
+      logProbability += Math.log(getP_interp(sentence, index));
+    }
+    return logProbability;
+  }
+
+  public double getWordLogProbability(List<String> sentence, int index) {
+    return Math.log(getP_interp(sentence, index));
+  }
+
+  public LanguageModelState beginSentence() {
+    LanguageModelState state = new LanguageModelState();
+    state.length = 1;
+    state.word2 = startId;
+    return state;
+  }
+
+  public double score(LanguageModelState state, int wordId, LanguageModelState outState) {
+    double logProbability = Math.log(p_interp(state.word2, wordId));
+    outState.length = 1;
+    outState.word2 = wordId;
+    return logProbability;
+  }
+
+  public int getEndOfSentenceId() {
+    return stopId;
+  }
+
+  public StringIndexer getVocabulary() {
+    return ngrams.getVocabulary();
+  }
+
+  public double[] getSentenceLogProbabilities(int[][] sentences) {
+    double[] logProbabilities = new double[sentences.length];
+    for (int i = 0; i < sentences.length; i++) {
+      double logProbability = 0.0;
+      int id1 = startId;
+      for (int id2 : sentences[i]) {
+        logProbability += Math.log(p_interp(id1, id2));
+        id1 = id2;
+      }
+      logProbabilities[i] = logProbability + Math.log(p_interp(id1, stopId));
+    }
+    return logProbabilities;
+  }
+
+  /**
+   * Sets the interpolation weight to that maximizing the likelihood of the
+   * held-out sentences, by EM from the current weight.  The sentences should
+   * not have been counted.  Each held-out token's bigram and unigram
+   * probabilities are computed once, and EM runs over those.  With
+   * numBuckets above one, histories are grouped by count (unseen, 1, 2-3,
+   * 4-7, ...) and each group gets a weight of its own.
+   */
+  public void tuneWeights(Collection<List<String>> heldOut, int numBuckets) {
+    InterpolationWeightOptimizer optimizer = new InterpolationWeightOptimizer(2, numBuckets);
+    double[] components = new double[2];
+    for (List<String> sentence : heldOut) {
+      int id1 = startId;
+      for (int index = 0; index <= sentence.size(); index++) {
+        int id2 = (index < sentence.size() ? ngrams.getWordId(sentence.get(index)) : stopId);
+        components[0] = condBigramProb(id1, id2);
+        components[1] = unigramProb(id2);
+        optimizer.addToken(InterpolationWeightOptimizer.getBucket(unigramCount(id1), numBuckets), components);
+        id1 = id2;
+      }
+    }
+    double[][] initialWeights = new double[numBuckets][];
+    for (int bucket = 0; bucket < numBuckets; bucket++) {
+      initialWeights[bucket] = new double[] { lambda, 1 - lambda };
+    }
+    double[][] weights = optimizer.optimize(initialWeights, 100, 1e-7);
+    if (numBuckets == 1) {
+      lambda = weights[0][0];
+      bucketLambdas = null;
+    } else {
+      bucketLambdas = new double[numBuckets];
+      for (int bucket = 0; bucket < numBuckets; bucket++) {
+        bucketLambdas[bucket] = weights[bucket][0];
+      }
     }
-    return word1+": nope";
+    for (int bucket = 0; bucket < numBuckets; bucket++) {
+      System.out.println("Lambda (bucket "+bucket+"):  "+weights[bucket][0]);
+    }
+  }
+
+  /**
+   * A model counting both sets of sentences, with weights tuned by
+   * tuneWeights() on the validation sentences while only the training
+   * sentences are counted.  Words seen only in validation (such as UNK)
+   * get no probability from the held-out model and so do not affect tuning.
+   * With buckets, each history keeps the bucket of its training-only count,
+   * the one its weight was fitted on, rather than moving up by its
+   * validation occurrences; words seen only in validation stay in the
+   * unseen bucket.
+   */
+  static InterpolatedBigramLanguagemodel trainTuned(Collection<List<String>> trainingSet, Collection<List<String>> validSet, int numBuckets) {
+    InterpolatedBigramLanguagemodel heldOutModel = new InterpolatedBigramLanguagemodel(trainingSet, Collections.<List<String>>emptyList());
+    heldOutModel.tuneWeights(validSet, numBuckets);
+    InterpolatedBigramLanguagemodel model = new InterpolatedBigramLanguagemodel(trainingSet, validSet);
+    model.lambda = heldOutModel.lambda;
+    model.bucketLambdas = heldOutModel.bucketLambdas;
+    if (model.bucketLambdas != null) {
+      model.historyBuckets = new byte[model.ngrams.getVocabulary().size()];
+      for (int id1 = 0; id1 < model.historyBuckets.length; id1++) {
+        int heldOutId1 = heldOutModel.ngrams.getWordId(model.ngrams.getWord(id1));
+        model.historyBuckets[id1] = (byte) InterpolationWeightOptimizer.getBucket(heldOutModel.unigramCount(heldOutId1), numBuckets);
+      }
+    }
+    return model;
   }
 
   public List<String> generateSentence() {
+    return generateSentence(new SplittableRandom());
+  }
+
+  public List<String> generateSentence(SplittableRandom random) {
     List<String> sentence = new ArrayList<String>();
-    String word = generateNextWord(START);
-    while (!word.equals(STOP)) {
-      sentence.add(word);
-      word = generateNextWord(word);
+    int b = ngrams.sampleBigram(startId, random);
+    while (b >= 0 && ngrams.getBigramWord(b) != stopId) {
+      int word = ngrams.getBigramWord(b);
+      sentence.add(ngrams.getWord(word));
+      b = ngrams.sampleBigram(word, random);
     }
     return sentence;
   }
   
   public InterpolatedBigramLanguagemodel(Collection<List<String>> trainingSet,	Collection<List<String>> validSet) {
-    for (List<String> sentence : trainingSet) {
-      List<String> stoppedStartedSentence = new ArrayList<String>(sentence);
-      stoppedStartedSentence.add(STOP);
-      stoppedStartedSentence.add(0, START);
-      for (int i=0; i < stoppedStartedSentence.size()-1; i++) {
-      	String token1 = stoppedStartedSentence.get(i);
-      	String token2 = stoppedStartedSentence.get(i+1);
-        bigramCounterMap.incrementCount(token1, token2, 1.0);
-      }
-    }
-    
-    for (List<String> sentence : validSet) {
-    	List<String> stoppedStartedSentence = new ArrayList<String>(sentence);
-      stoppedStartedSentence.add(STOP);
-      stoppedStartedSentence.add(0, START);
-      for (int i=0; i < stoppedStartedSentence.size()-1; i++) {
-      	String token1 = stoppedStartedSentence.get(i);
-      	String token2 = stoppedStartedSentence.get(i+1);
-        bigramCounterMap.incrementCount(token1, token2, 1.0);
-      }
-    }
+    ngrams = new NgramStore.Builder(2)
+        .addSentences(trainingSet, START, STOP)
+        .addSentences(validSet, START, STOP)
+        .build();
+    startId = ngrams.getWordId(START);
+    stopId = ngrams.getWordId(STOP);
     
-    wordCount = bigramCounterMap.totalCount() + sentenceCount;
-    vocabSize = bigramCounterMap.size();
+    wordCount = ngrams.getTotalBigramCount() + sentenceCount;
+    vocabSize = ngrams.getNumContexts();
     sentenceCount = trainingSet.size() + validSet.size();
-    bigramCount = bigramCounterMap.totalCount();
-    bigramVocabSize = bigramCounterMap.totalSize();
+    bigramCount = ngrams.getTotalBigramCount();
+    bigramVocabSize = ngrams.getNumBigrams();
     System.out.println("Wordcount:  "+wordCount);
     System.out.println("Vocabsize:  "+vocabSize);
     System.out.println("Bigramcount:  "+bigramCount);
@@ -3,20 +3,26 @@ package nlp.assignments;
 
 import java.util.ArrayList;
 
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.SplittableRandom;
 
-import nlp.langmodel.LanguageModel;
-import nlp.util.Counter;
-import nlp.util.CounterMap;
-import nlp.util.Pair;
+import nlp.langmodel.EntropyPruner;
+import nlp.langmodel.InterpolationWeightOptimizer;
+import nlp.langmodel.LanguageModelState;
+import nlp.langmodel.NgramStore;
+import nlp.langmodel.QuantizedTrigramLanguageModel;
+import nlp.langmodel.StatefulLanguageModel;
+import nlp.util.StringIndexer;
 
 
 /**
  * A dummy language model -- uses empirical trigram counts, plus a single
  * ficticious count for unknown words.
  */
-class InterpolatedTrigramLanguageModel implements LanguageModel {
+class InterpolatedTrigramLanguageModel implements StatefulLanguageModel, EntropyPruner.Prunable, QuantizedTrigramLanguageModel.Exportable {
 
   static final String STOP = "</S>";
   static final String START = "<S>";
@@ -24,6 +30,15 @@ class InterpolatedTrigramLanguageModel implements LanguageModel {
   double lambda3 = 0.7;
   double lambda2 = 0.2;
   double lambda1 = 0.1;
+  // weights {lambda3, lambda2, lambda1} per history count bucket, if tuned with buckets
+  double[][] bucketLambdas = null;
+  // the bucket of each bigram entry as a history, by the training-only counts
+  // the bucket weights were fitted with (see trainTuned()); if null, buckets
+  // come from this model's own counts
+  byte[] historyBuckets = null;
+  // per bigram entry, how much the lower orders are scaled up to take the
+  // mass of pruned trigrams; null if not pruned
+  double[] backoffScales = null;
 
   double wordCount = 0.0;
   double vocabSize = 0.0;
@@ -32,39 +47,63 @@ class InterpolatedTrigramLanguageModel implements LanguageModel {
   double trigramCount = 0.0;
   double trigramVocabSize = 0.0;
   double sentenceCount = 0.0;
+  // the sum of unigramProb over the vocabulary
+  double unigramMass = 0.0;
+  // per word id, the sum of its bigram probabilities c(w v) / c(w)
+  double[] bigramMassTable;
   
-  CounterMap<String, String> bigramCounterMap = new CounterMap<String, String>();
-  CounterMap<String,Pair<String,String>> ubTrigramCounterMap = new CounterMap<String,Pair<String,String>>();
-  CounterMap<Pair<String,String>,String> buTrigramCounterMap = new CounterMap<Pair<String,String>,String>();
+  NgramStore ngrams;
+  int startId;
+  int stopId;
    
   public double trueUnigramCount(String word) {
-  	if (word.equals(STOP)) { return sentenceCount; }
+  	return trueUnigramCount(ngrams.getWordId(word));
+  }
+
+  double trueUnigramCount(int id) {
+  	if (id == stopId) { return sentenceCount; }
   	else {
-  		Counter<String> nextwords = bigramCounterMap.getCounter(word);
-  		return nextwords.totalCount();
+  		return ngrams.getHistoryCount(id);
   	}
   }
   
   public double unigramProb(String token) {
-  	double tokencount = trueUnigramCount(token);
+  	return unigramProb(ngrams.getWordId(token));
+  }
+
+  double unigramProb(int id) {
+  	double tokencount = trueUnigramCount(id);
   	return tokencount / wordCount;
   }
   
   public double condBigramProb(String word1, String word2) {
-  	double bicount = bigramCounterMap.getCount(word1, word2);
-  	return bicount / trueUnigramCount(word1);
+  	return condBigramProb(ngrams.getWordId(word1), ngrams.getWordId(word2));
+  }
+
+  double condBigramProb(int id1, int id2) {
+  	double bicount = ngrams.getCount(id1, id2);
+  	return bicount / trueUnigramCount(id1);
   }
   
   public double getCondBigramProbability(List<String> sentence, int index) {
-  	String word1 = sentence.get(index);
-  	String word2 = sentence.get(index+1);
+  	String word1 = paddedWord(sentence, index);
+  	String word2 = paddedWord(sentence, index+1);
   	return condBigramProb(word1, word2);
   }
   
   public double condTrigramProb(String word1, String word2, String word3) {
-  	Pair<String,String> bigram = Pair.makePair(word2, word3);
-  	double tricount = ubTrigramCounterMap.getCount(word1, bigram);
-		double bicount = bigramCounterMap.getCount(word1, word2);
+  	return condTrigramProb(ngrams.getWordId(word1), ngrams.getWordId(word2), ngrams.getWordId(word3));
+  }
+
+  double condTrigramProb(int id1, int id2, int id3) {
+  	return condTrigramProb(ngrams.getBigramIndex(id1, id2), id3);
+  }
+
+  // b is the bigram entry of the first two words
+  double condTrigramProb(int b, int id3) {
+  	int t = ngrams.getTrigramIndex(b, id3);
+  	double tricount = (t < 0 ? 0 : ngrams.getTrigramCount(t));
+		double bicount = ngrams.getBigramCount(b);
   	if (bicount > 0) { 
 //  		System.out.println("Found it! "+word1+"-"+word2+": "+bicount);
   		return tricount / bicount;
@@ -73,121 +112,327 @@ class InterpolatedTrigramLanguageModel implements LanguageModel {
   }
   
   public double getCondTrigramProbability(List<String> sentence, int index) {
-  	String word1 = sentence.get(index);
-  	String word2 = sentence.get(index+1);
-  	String word3 = sentence.get(index+2);
+  	String word1 = paddedWord(sentence, index);
+  	String word2 = paddedWord(sentence, index+1);
+  	String word3 = paddedWord(sentence, index+2);
   	return condTrigramProb(word1, word2, word3);
   }
   
   public double p_interp(String word1, String word2, String word3) {
-  	double prob = (lambda3 * condTrigramProb(word1, word2, word3)) + (lambda2 * condBigramProb(word2, word3)) +
-  			(lambda1 * unigramProb(word3));
+  	return p_interp(ngrams.getWordId(word1), ngrams.getWordId(word2), ngrams.getWordId(word3));
+  }
+
+  double p_interp(int id1, int id2, int id3) {
+  	return p_interp(ngrams.getBigramIndex(id1, id2), id2, id3, ngrams.getBigramIndex(id2, id3));
+  }
+
+  // b is the bigram entry of (id1, id2), and b23 that of (id2, id3)
+  double p_interp(int b, int id2, int id3, int b23) {
+  	double l3 = lambda3, l2 = lambda2, l1 = lambda1;
+  	if (bucketLambdas != null) {
+  		double[] weights = bucketLambdas[bucketFor(b)];
+  		l3 = weights[0];
+  		l2 = weights[1];
+  		l1 = weights[2];
+  	}
+  	double bigramProb = ngrams.getBigramCount(b23) / trueUnigramCount(id2);
+  	if (backoffScales != null) {
+  		double scale = (b < 0 ? 1.0 : backoffScales[b]);
+  		return (l3 * condTrigramProb(b, id3)) + scale * ((l2 * bigramProb) + (l1 * unigramProb(id3)));
+  	}
+  	double prob = (l3 * condTrigramProb(b, id3)) + (l2 * bigramProb) +
+  			(l1 * unigramProb(id3));
 //  	if (((Double)prob).isNaN()) { System.out.println(word1+"-"+word2+"-"+word3+": "+prob); }
   	return prob;
   }
-  
+
+  // the weight bucket of the history of bigram entry b
+  int bucketFor(int b) {
+  	if (historyBuckets != null) { return (b < 0 ? 0 : historyBuckets[b]); }
+  	return InterpolationWeightOptimizer.getBucket(ngrams.getBigramCount(b), bucketLambdas.length);
+  }
+
+  // lambda3, lambda2 or lambda1 (k = 0, 1, 2) for the history of bigram entry b
+  double lambdaFor(int b, int k) {
+  	if (bucketLambdas != null) {
+  		return bucketLambdas[bucketFor(b)][k];
+  	}
+  	return (k == 0 ? lambda3 : (k == 1 ? lambda2 : lambda1));
+  }
+
+  public NgramStore getNgrams() {
+    return ngrams;
+  }
+
+  // the trigram term, lambda3 * c(h w) / c(h)
+  public double getExplicitProbability(int bigramIndex, int trigramIndex) {
+    return lambdaFor(bigramIndex, 0) * ngrams.getTrigramCount(trigramIndex) / ngrams.getBigramCount(bigramIndex);
+  }
+
+  public double getBackoffWeight(int bigramIndex) {
+    return (backoffScales == null ? 1.0 : backoffScales[bigramIndex]);
+  }
+
+  // the bigram and unigram terms
+  public double getLowerProbability(int bigramIndex, int wordId) {
+    int id2 = ngrams.getBigramWord(bigramIndex);
+    double bigramProb = ngrams.getBigramCount(ngrams.getBigramIndex(id2, wordId)) / trueUnigramCount(id2);
+    return (lambdaFor(bigramIndex, 1) * bigramProb) + (lambdaFor(bigramIndex, 2) * unigramProb(wordId));
+  }
+
+  // the unigram term sums to unigramMass rather than one, as STOP's count
+  // is not part of wordCount
+  public double getLowerMass(int bigramIndex) {
+    int id2 = ngrams.getBigramWord(bigramIndex);
+    return (lambdaFor(bigramIndex, 1) * bigramMassTable[id2]) + (lambdaFor(bigramIndex, 2) * unigramMass);
+  }
+
+  public void applyPruning(boolean[] keep, double[] backoffIncreases) {
+    if (backoffScales == null) {
+      backoffScales = new double[ngrams.getNumBigrams()];
+      Arrays.fill(backoffScales, 1.0);
+    }
+    for (int b = 0; b < backoffScales.length; b++) {
+      backoffScales[b] += backoffIncreases[b];
+    }
+    ngrams = ngrams.pruneTrigrams(keep);
+    trigramCount = ngrams.getTotalTrigramCount();
+    trigramVocabSize = ngrams.getNumTrigrams();
+  }
+
+  // Backoff form for QuantizedTrigramLanguageModel.  An unseen trigram gets
+  // backoffScale * (lambda2 * bigramProb + lambda1 * unigramProb), so the
+  // bigram level is that sum normalized by lambda2 + lambda1, and the trigram
+  // backoff weight is backoffScale times lambda2 + lambda1.  This is exact
+  // with unbucketed weights, except that unseen histories spread the
+  // lambda3 / vocabSize share over the lower orders rather than uniformly.
+  // With bucketed weights the bigram level uses the global lambda2 : lambda1.
+
+  public int getStartId() {
+    return startId;
+  }
+
+  public double getUnigramProbability(int wordId) {
+    return unigramProb(wordId);
+  }
+
+  public double getBigramBackoff(int wordId) {
+    return lambda1 / (lambda2 + lambda1);
+  }
+
+  public double getBigramProbability(int wordId, int bigramIndex) {
+    double bigramProb = ngrams.getBigramCount(bigramIndex) / trueUnigramCount(wordId);
+    return ((lambda2 * bigramProb) + (lambda1 * unigramProb(ngrams.getBigramWord(bigramIndex)))) / (lambda2 + lambda1);
+  }
+
+  public double getTrigramBackoff(int bigramIndex) {
+    return getBackoffWeight(bigramIndex) * (lambdaFor(bigramIndex, 1) + lambdaFor(bigramIndex, 2));
+  }
+
+  public double getTrigramProbability(int bigramIndex, int trigramIndex) {
+    int id2 = ngrams.getBigramWord(bigramIndex);
+    int id3 = ngrams.getTrigramWord(trigramIndex);
+    return p_interp(bigramIndex, id2, id3, ngrams.getBigramIndex(id2, id3));
+  }
+
+  /**
+   * The index-th word of the sentence padded with START and STOP, without
+   * building the padded copy.
+   */
+  static String paddedWord(List<String> sentence, int index) {
+  	if (index == 0) { return START; }
+  	return (index <= sentence.size() ? sentence.get(index-1) : STOP);
+  }
+
+  // index is a position in the padded sentence
   public double getP_interp(List<String> sentence, int index) {
-  	String word1 = sentence.get(index);
-  	String word2 = sentence.get(index+1);
-  	String word3 = sentence.get(index+2);
+  	String word1 = paddedWord(sentence, index);
+  	String word2 = paddedWord(sentence, index+1);
+  	String word3 = paddedWord(sentence, index+2);
   	return p_interp(word1, word2, word3);
   }
 
   public double getSentenceProbability(List<String> sentence) {
-    List<String> stoppedStartedSentence = new ArrayList<String>(sentence);
-    stoppedStartedSentence.add(STOP);
-    stoppedStartedSentence.add(0,START);
     double probability = 1.0;
-    for (int index = 0; index < stoppedStartedSentence.size()-2; index++) {
-      probability *= getP_interp(stoppedStartedSentence, index);
+    for (int index = 0; index < sentence.size(); index++) {
+      probability *= getP_interp(sentence, index);
     }
     return probability;
   }
+
+  public double getSentenceLogProbability(List<String> sentence) {
+    double logProbability = 0.0;
+    for (int index = 0; index < sentence.size(); index++) {
+      logProbability += Math.log(getP_interp(sentence, index));
+    }
+    return logProbability;
+  }
+
+  // the first word is not scored, as in getSentenceLogProbability
+  public double getWordLogProbability(List<String> sentence, int index) {
+    return (index == 0 ? 0.0 : Math.log(getP_interp(sentence, index-1)));
+  }
+
+  public LanguageModelState beginSentence() {
+    LanguageModelState state = new LanguageModelState();
+    state.length = 1;
+    state.word2 = startId;
+    return state;
+  }
+
+  public double score(LanguageModelState state, int wordId, LanguageModelState outState) {
+    int b23 = ngrams.getBigramIndex(state.word2, wordId);
+    // as in getSentenceLogProbability, the first word is not scored
+    double logProbability = (state.length < 2 ? 0.0 : Math.log(p_interp(state.bigramIndex, state.word2, wordId, b23)));
+    outState.length = 2;
+    outState.word1 = state.word2;
+    outState.word2 = wordId;
+    outState.bigramIndex = b23;
+    return logProbability;
+  }
+
+  public int getEndOfSentenceId() {
+    return stopId;
+  }
+
+  public StringIndexer getVocabulary() {
+    return ngrams.getVocabulary();
+  }
+
+  // like getSentenceLogProbability, scores every word but the first
+  public double[] getSentenceLogProbabilities(int[][] sentences) {
+    double[] logProbabilities = new double[sentences.length];
+    for (int i = 0; i < sentences.length; i++) {
+      int[] sentence = sentences[i];
+      double logProbability = 0.0;
+      int id1 = startId;
+      int id2 = (sentence.length > 0 ? sentence[0] : stopId);
+      for (int index = 1; index <= sentence.length; index++) {
+        int id3 = (index < sentence.length ? sentence[index] : stopId);
+        logProbability += Math.log(p_interp(id1, id2, id3));
+        id1 = id2;
+        id2 = id3;
+      }
+      logProbabilities[i] = logProbability;
+    }
+    return logProbabilities;
+  }
   
-  String generateFirstWord() {
-    double sample = Math.random();
-    double sum = 0.0;
-  	Counter<String> nextwords = bigramCounterMap.getCounter(START);
-		for (String word2 : nextwords.keySet()) {
-			sum += bigramCounterMap.getCount(START, word2) / trueUnigramCount(START);
-			if (sum > sample) { return word2; }
-		}
-  	return START+": didn't_make_it";
-  }
-
-  String generateNextWord(Pair<String,String> bigram) {
-  	String word1 = bigram.getFirst();
-  	String word2 = bigram.getSecond();
-    double sample = Math.random();
-    double sum = 0.0;
-  	Counter<String> nextwords = buTrigramCounterMap.getCounter(bigram);
-//		System.out.println("bigram: "+bigram);
-		for (String word3 : nextwords.keySet()) {
-			sum += buTrigramCounterMap.getCount(bigram, word3) / bigramCounterMap.getCount(word1, word2);
-			if (sum > sample) { return word3; }
-		}
-		System.out.println("bigram_fail: "+bigram+" : "+bigramCounterMap.getCount(word1, word2));
-		System.out.println(buTrigramCounterMap.getCounter(bigram));
-  	return "nope";
+  /**
+   * Sets the interpolation weights to those maximizing the likelihood of the
+   * held-out sentences, by EM from the current weights.  The sentences should
+   * not have been counted.  Each held-out token's three component
+   * probabilities are computed once, and EM runs over those.  With
+   * numBuckets above one, histories are grouped by count (unseen, 1, 2-3,
+   * 4-7, ...) and each group gets weights of its own.
+   */
+  public void tuneWeights(Collection<List<String>> heldOut, int numBuckets) {
+    InterpolationWeightOptimizer optimizer = new InterpolationWeightOptimizer(3, numBuckets);
+    double[] components = new double[3];
+    for (List<String> sentence : heldOut) {
+      // scored like getSentenceLogProbability, from the second word on
+      int id1 = startId;
+      int id2 = (sentence.isEmpty() ? stopId : ngrams.getWordId(sentence.get(0)));
+      for (int index = 1; index <= sentence.size(); index++) {
+        int id3 = (index < sentence.size() ? ngrams.getWordId(sentence.get(index)) : stopId);
+        int b = ngrams.getBigramIndex(id1, id2);
+        components[0] = condTrigramProb(b, id3);
+        components[1] = ngrams.getBigramCount(ngrams.getBigramIndex(id2, id3)) / trueUnigramCount(id2);
+        components[2] = unigramProb(id3);
+        optimizer.addToken(InterpolationWeightOptimizer.getBucket(ngrams.getBigramCount(b), numBuckets), components);
+        id1 = id2;
+        id2 = id3;
+      }
+    }
+    double[][] initialWeights = new double[numBuckets][];
+    for (int bucket = 0; bucket < numBuckets; bucket++) {
+      initialWeights[bucket] = new double[] { lambda3, lambda2, lambda1 };
+    }
+    double[][] weights = optimizer.optimize(initialWeights, 100, 1e-7);
+    if (numBuckets == 1) {
+      lambda3 = weights[0][0];
+      lambda2 = weights[0][1];
+      lambda1 = weights[0][2];
+      bucketLambdas = null;
+    } else {
+      bucketLambdas = weights;
+    }
+    for (int bucket = 0; bucket < numBuckets; bucket++) {
+      System.out.println("Lambdas (bucket "+bucket+"):  "+Arrays.toString(weights[bucket]));
+    }
+  }
+
+  /**
+   * A model counting both sets of sentences, with weights tuned by
+   * tuneWeights() on the validation sentences while only the training
+   * sentences are counted.  Words seen only in validation (such as UNK)
+   * get no probability from the held-out model and so do not affect tuning.
+   * With buckets, each history keeps the bucket of its training-only count,
+   * the one its weights were fitted on, rather than moving up by its
+   * validation occurrences; histories seen only in validation stay in the
+   * unseen bucket.
+   */
+  static InterpolatedTrigramLanguageModel trainTuned(Collection<List<String>> trainingSet, Collection<List<String>> validSet, int numBuckets) {
+    InterpolatedTrigramLanguageModel heldOutModel = new InterpolatedTrigramLanguageModel(trainingSet, Collections.<List<String>>emptyList());
+    heldOutModel.tuneWeights(validSet, numBuckets);
+    InterpolatedTrigramLanguageModel model = new InterpolatedTrigramLanguageModel(trainingSet, validSet);
+    model.lambda3 = heldOutModel.lambda3;
+    model.lambda2 = heldOutModel.lambda2;
+    model.lambda1 = heldOutModel.lambda1;
+    model.bucketLambdas = heldOutModel.bucketLambdas;
+    if (model.bucketLambdas != null) {
+      NgramStore heldOutNgrams = heldOutModel.ngrams;
+      model.historyBuckets = new byte[model.ngrams.getNumBigrams()];
+      for (int id1 = 0; id1 < model.ngrams.getVocabulary().size(); id1++) {
+        int heldOutId1 = heldOutNgrams.getWordId(model.ngrams.getWord(id1));
+        for (int b = model.ngrams.getBigramsStart(id1); b < model.ngrams.getBigramsEnd(id1); b++) {
+          int heldOutId2 = heldOutNgrams.getWordId(model.ngrams.getWord(model.ngrams.getBigramWord(b)));
+          model.historyBuckets[b] = (byte) InterpolationWeightOptimizer.getBucket(heldOutNgrams.getCount(heldOutId1, heldOutId2), numBuckets);
+        }
+      }
+    }
+    return model;
   }
 
   public List<String> generateSentence() {
+    return generateSentence(new SplittableRandom());
+  }
+
+  public List<String> generateSentence(SplittableRandom random) {
     List<String> sentence = new ArrayList<String>();
-    String word = generateFirstWord();
-    sentence.add(word);
-    Pair<String,String> bigram = Pair.makePair(START, word);
-    String newword = generateNextWord(bigram);
-    while (!newword.equals(STOP)) {
-      sentence.add(newword);
-      bigram = Pair.makePair(bigram.getSecond(), newword);
-      newword = generateNextWord(bigram);
+    // the first word comes from the bigrams after START, later ones from trigrams
+    int b = ngrams.sampleBigram(startId, random);
+    while (b >= 0 && ngrams.getBigramWord(b) != stopId) {
+      int word = ngrams.getBigramWord(b);
+      sentence.add(ngrams.getWord(word));
+      int t = ngrams.sampleTrigram(b, random);
+      // a pruned model may have no trigrams after b, so back off to the bigrams
+      b = (t < 0 ? ngrams.sampleBigram(word, random) : ngrams.getBigramIndex(word, ngrams.getTrigramWord(t)));
     }
     return sentence;
   }
   
   public InterpolatedTrigramLanguageModel(Collection<List<String>> trainingSet, Collection<List<String>> validSet) {
-  	for (List<String> sentence : trainingSet) {
-      List<String> stoppedStartedSentence = new ArrayList<String>(sentence);
-      stoppedStartedSentence.add(STOP);
-      stoppedStartedSentence.add(0, START);
-      String first_word = stoppedStartedSentence.get(1);
-      bigramCounterMap.incrementCount(START, first_word, 1.0);
-      for (int i=0; i < stoppedStartedSentence.size()-2; i++) {
-      	String token1 = stoppedStartedSentence.get(i);
-      	String token2 = stoppedStartedSentence.get(i+1);
-      	String token3 = stoppedStartedSentence.get(i+2);
-      	Pair<String,String> bigram1 = Pair.makePair(token1, token2);
-      	Pair<String,String> bigram2 = Pair.makePair(token2, token3);
-        bigramCounterMap.incrementCount(token2, token3, 1.0);
-        ubTrigramCounterMap.incrementCount(token1, bigram2, 1.0);
-        buTrigramCounterMap.incrementCount(bigram1, token3, 1.0);
-      }
-    }
-    
-    for (List<String> sentence : validSet) {
-    	List<String> stoppedStartedSentence = new ArrayList<String>(sentence);
-      stoppedStartedSentence.add(STOP);
-      stoppedStartedSentence.add(0, START);
-      String first_word = stoppedStartedSentence.get(1);
-      bigramCounterMap.incrementCount(START, first_word, 1.0);
-      for (int i=0; i < stoppedStartedSentence.size()-2; i++) {
-      	String token1 = stoppedStartedSentence.get(i);
-      	String token2 = stoppedStartedSentence.get(i+1);
-      	String token3 = stoppedStartedSentence.get(i+2);
-      	Pair<String,String> bigram1 = Pair.makePair(token1, token2);
-      	Pair<String,String> bigram2 = Pair.makePair(token2, token3);
-        bigramCounterMap.incrementCount(token2, token3, 1.0);
-        ubTrigramCounterMap.incrementCount(token1, bigram2, 1.0);
-        buTrigramCounterMap.incrementCount(bigram1, token3, 1.0);
+    ngrams = new NgramStore.Builder(3)
+        .addSentences(trainingSet, START, STOP)
+        .addSentences(validSet, START, STOP)
+        .build();
+    startId = ngrams.getWordId(START);
+    stopId = ngrams.getWordId(STOP);
+    wordCount = ngrams.getTotalBigramCount() + sentenceCount;
+    vocabSize = ngrams.getNumContexts() + 1;
+    bigramCount = ngrams.getTotalBigramCount();
+    bigramVocabSize = ngrams.getNumBigrams();
+    trigramCount = ngrams.getTotalTrigramCount();
+    trigramVocabSize = ngrams.getNumTrigrams();
+    sentenceCount = trainingSet.size() + validSet.size();
+    bigramMassTable = new double[ngrams.getVocabulary().size()];
+    for (int id = 0; id < ngrams.getVocabulary().size(); id++) {
+      unigramMass += unigramProb(id);
+      for (int b = ngrams.getBigramsStart(id); b < ngrams.getBigramsEnd(id); b++) {
+        bigramMassTable[id] += ngrams.getBigramCount(b) / trueUnigramCount(id);
       }
     }
-    wordCount = bigramCounterMap.totalCount() + sentenceCount;
-    vocabSize = bigramCounterMap.size() + 1;
-    bigramCount = bigramCounterMap.totalCount();
-    bigramVocabSize = bigramCounterMap.totalSize();
-    trigramCount = ubTrigramCounterMap.totalCount();
-    trigramVocabSize = ubTrigramCounterMap.totalSize();
-    sentenceCount = trainingSet.size() + validSet.size();
     System.out.println("Wordcount:  "+wordCount);
     System.out.println("Vocabsize:  "+vocabSize);
     System.out.println("Bigramcount:  "+bigramCount);
@@ -4,15 +4,17 @@ package nlp.assignments;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.SplittableRandom;
 
-import nlp.langmodel.LanguageModel;
-import nlp.util.Counter;
-import nlp.util.CounterMap;
+import nlp.langmodel.LanguageModelState;
+import nlp.langmodel.NgramStore;
+import nlp.langmodel.StatefulLanguageModel;
+import nlp.util.StringIndexer;
 
 /**
  * A Kneser-Ney smoothed language model using bigram counts
  */
-class KN_BigramLanguageModel implements LanguageModel {
+class KN_BigramLanguageModel implements StatefulLanguageModel {
 
   static final String STOP = "</S>";
   static final String START = "<S>";
@@ -26,15 +28,21 @@ class KN_BigramLanguageModel implements LanguageModel {
   double bigramVocabSize = 0.0;
   double sentenceCount = 0.0;
   
-  CounterMap<String, String> bigramCounterMap = new CounterMap<String, String>();
-  CounterMap<String, String> reverseBigramCounterMap = new CounterMap<String, String>();
+  NgramStore ngrams;
+
+  // norm and p_cont by word id, filled in by finishTraining() so scoring
+  // only reads arrays
+  double[] normTable;
+  double[] pContTable;
+  int startId;
+  int stopId;
   
   public double unigramCount(String word) {
   	if (word.equals(STOP)) { return sentenceCount; }
   	else {
-  		Counter<String> nextwords = bigramCounterMap.getCounter(word);
-  		if (nextwords.totalCount() == 0) { System.out.println("whoops: "+word); }
-  		return nextwords.totalCount();
+  		double count = ngrams.getHistoryCount(ngrams.getWordId(word));
+  		if (count == 0) { System.out.println("whoops: "+word); }
+  		return count;
   	}
   }
   
@@ -44,89 +52,151 @@ class KN_BigramLanguageModel implements LanguageModel {
 //  }
 //  
   public double norm(String token) {
+  	int id = ngrams.getWordId(token);
+  	if (id >= 0) { return normTable[id]; }
   	double tokencount = unigramCount(token);
-  	return (discount / tokencount) * bigramCounterMap.getCounter(token).size();
+  	return (discount / tokencount) * ngrams.getRightContinuations(id);
   }
   
   public double p_cont(String word) {
-  	return reverseBigramCounterMap.getCounter(word).size() / bigramVocabSize;
+  	return p_cont(ngrams.getWordId(word));
+  }
+
+  double p_cont(int id) {
+  	return (id < 0 ? ngrams.getLeftContinuations(id) / bigramVocabSize : pContTable[id]);
+  }
+
+  /**
+   * Materializes norm and p_cont for every word once the counts are final.
+   */
+  void finishTraining() {
+  	int numWords = ngrams.getVocabulary().size();
+  	normTable = new double[numWords];
+  	pContTable = new double[numWords];
+  	for (int id = 0; id < numWords; id++) {
+  		String word = ngrams.getWord(id);
+  		double tokencount = (word.equals(STOP) ? sentenceCount : ngrams.getHistoryCount(id));
+  		normTable[id] = (discount / tokencount) * ngrams.getRightContinuations(id);
+  		pContTable[id] = ngrams.getLeftContinuations(id) / bigramVocabSize;
+  	}
   }
   
   public double p_interp(String word1, String word2) {
   	double word1count = unigramCount(word1);
-  	double bicount = bigramCounterMap.getCount(word1, word2);
+  	double bicount = ngrams.getCount(ngrams.getWordId(word1), ngrams.getWordId(word2));
     return (Math.max(bicount - discount, 0) / word1count) + (norm(word1) * p_cont(word2));
   }
   
+  // the same as p_interp(String, String), without the diagnostics
+  double p_interp(int id1, int id2) {
+  	double word1count = (id1 == stopId ? sentenceCount : ngrams.getHistoryCount(id1));
+  	double bicount = ngrams.getCount(id1, id2);
+  	double norm = (id1 >= 0 ? normTable[id1] : (discount / word1count) * ngrams.getRightContinuations(id1));
+    return (Math.max(bicount - discount, 0) / word1count) + (norm * p_cont(id2));
+  }
+
+  /**
+   * The index-th word of the sentence padded with START and STOP, without
+   * building the padded copy.
+   */
+  static String paddedWord(List<String> sentence, int index) {
+  	if (index == 0) { return START; }
+  	return (index <= sentence.size() ? sentence.get(index-1) : STOP);
+  }
+
+  // index is a position in the padded sentence
   public double getP_interp(List<String> sentence, int index) {
-  	String word1 = sentence.get(index);
-  	String word2 = sentence.get(index+1);
+  	String word1 = paddedWord(sentence, index);
+  	String word2 = paddedWord(sentence, index+1);
   	double prob = p_interp(word1, word2);
   	if (((Double)prob).isNaN()) { System.out.println(word1+"-"+word2+": NaN"); }
   	return prob;
   }
 
   public double getSentenceProbability(List<String> sentence) {
-    List<String> stoppedStartedSentence = new ArrayList<String>(sentence);
-    stoppedStartedSentence.add(STOP);
-    stoppedStartedSentence.add(0,START);
     double probability = 1.0;
-    for (int index = 0; index < stoppedStartedSentence.size()-1; index++) {
-      probability *= getP_interp(stoppedStartedSentence, index);
+    for (int index = 0; index < sentence.size()+1; index++) {
+      probability *= getP_interp(sentence, index);
     }
     return probability;
   }
 
-  String generateNextWord(String word1) {
-    double sample = Math.random();
-    double sum = 0.0;
-  	Counter<String> nextwords = bigramCounterMap.getCounter(word1);
-		for (String word2 : nextwords.keySet()) {
-			sum += bigramCounterMap.getCount(word1, word2) / unigramCount(word1);
-			if (sum > sample) { return word2; }
-		}
-  	return word1+": nope";
+  public double getSentenceLogProbability(List<String> sentence) {
+    double logProbability = 0.0;
+    for (int index = 0; index < sentence.size()+1; index++) {
+      logProbability += Math.log(getP_interp(sentence, index));
+    }
+    return logProbability;
+  }
+
+  public double getWordLogProbability(List<String> sentence, int index) {
+    return Math.log(getP_interp(sentence, index));
+  }
+
+  public LanguageModelState beginSentence() {
+    LanguageModelState state = new LanguageModelState();
+    state.length = 1;
+    state.word2 = startId;
+    return state;
+  }
+
+  public double score(LanguageModelState state, int wordId, LanguageModelState outState) {
+    double logProbability = Math.log(p_interp(state.word2, wordId));
+    outState.length = 1;
+    outState.word2 = wordId;
+    return logProbability;
+  }
+
+  public int getEndOfSentenceId() {
+    return stopId;
+  }
+
+  public StringIndexer getVocabulary() {
+    return ngrams.getVocabulary();
+  }
+
+  public double[] getSentenceLogProbabilities(int[][] sentences) {
+    double[] logProbabilities = new double[sentences.length];
+    for (int i = 0; i < sentences.length; i++) {
+      double logProbability = 0.0;
+      int id1 = startId;
+      for (int id2 : sentences[i]) {
+        logProbability += Math.log(p_interp(id1, id2));
+        id1 = id2;
+      }
+      logProbabilities[i] = logProbability + Math.log(p_interp(id1, stopId));
+    }
+    return logProbabilities;
   }
 
   public List<String> generateSentence() {
+    return generateSentence(new SplittableRandom());
+  }
+
+  public List<String> generateSentence(SplittableRandom random) {
     List<String> sentence = new ArrayList<String>();
-    String word = generateNextWord(START);
-    while (!word.equals(STOP)) {
-      sentence.add(word);
-      word = generateNextWord(word);
+    int b = ngrams.sampleBigram(startId, random);
+    while (b >= 0 && ngrams.getBigramWord(b) != stopId) {
+      int word = ngrams.getBigramWord(b);
+      sentence.add(ngrams.getWord(word));
+      b = ngrams.sampleBigram(word, random);
     }
     return sentence;
   }
   
   public KN_BigramLanguageModel(Collection<List<String>> trainingSet,	Collection<List<String>> validSet) {
-    for (List<String> sentence : trainingSet) {
-      List<String> stoppedStartedSentence = new ArrayList<String>(sentence);
-      stoppedStartedSentence.add(STOP);
-      stoppedStartedSentence.add(0, START);
-      for (int i=0; i < stoppedStartedSentence.size()-1; i++) {
-      	String token1 = stoppedStartedSentence.get(i);
-      	String token2 = stoppedStartedSentence.get(i+1);
-        bigramCounterMap.incrementCount(token1, token2, 1.0);
-        reverseBigramCounterMap.incrementCount(token2, token1, 1.0);
-      }
-    }
-    
-    for (List<String> sentence : validSet) {
-    	List<String> stoppedStartedSentence = new ArrayList<String>(sentence);
-      stoppedStartedSentence.add(STOP);
-      stoppedStartedSentence.add(0, START);
-      for (int i=0; i < stoppedStartedSentence.size()-1; i++) {
-      	String token1 = stoppedStartedSentence.get(i);
-      	String token2 = stoppedStartedSentence.get(i+1);
-        bigramCounterMap.incrementCount(token1, token2, 1.0);
-        reverseBigramCounterMap.incrementCount(token2, token1, 1.0);
-      }
-    }
+    ngrams = new NgramStore.Builder(2)
+        .addSentences(trainingSet, START, STOP)
+        .addSentences(validSet, START, STOP)
+        .build();
+    startId = ngrams.getWordId(START);
+    stopId = ngrams.getWordId(STOP);
 
-    wordCount = bigramCounterMap.totalCount() + sentenceCount;
-    vocabSize = bigramCounterMap.size();
-    bigramVocabSize = bigramCounterMap.totalSize();
+    wordCount = ngrams.getTotalBigramCount() + sentenceCount;
+    vocabSize = ngrams.getNumContexts();
+    bigramVocabSize = ngrams.getNumBigrams();
     sentenceCount = trainingSet.size() + validSet.size();
+    finishTraining();
     System.out.println("Wordcount:  "+wordCount);
     System.out.println("Vocabsize:  "+vocabSize);
     System.out.println("BigramVocabsize:  "+bigramVocabSize);
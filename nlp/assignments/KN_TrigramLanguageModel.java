@@ -5,18 +5,21 @@ import java.util.ArrayList;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.SplittableRandom;
 
-import nlp.langmodel.LanguageModel;
-import nlp.util.Counter;
-import nlp.util.CounterMap;
-import nlp.util.Pair;
+import nlp.langmodel.EntropyPruner;
+import nlp.langmodel.LanguageModelState;
+import nlp.langmodel.NgramStore;
+import nlp.langmodel.QuantizedTrigramLanguageModel;
+import nlp.langmodel.StatefulLanguageModel;
+import nlp.util.StringIndexer;
 
 
 /**
  * A dummy language model -- uses empirical trigram counts, plus a single
  * ficticious count for unknown words.
  */
-class KN_TrigramLanguageModel implements LanguageModel {
+class KN_TrigramLanguageModel implements StatefulLanguageModel, EntropyPruner.Prunable, QuantizedTrigramLanguageModel.Exportable {
 
   static final String STOP = "</S>";
   static final String START = "<S>";
@@ -33,17 +36,24 @@ class KN_TrigramLanguageModel implements LanguageModel {
   double trigramVocabSize = 0.0;
   double sentenceCount = 0.0;
   
-  CounterMap<String, String> bigramCounterMap = new CounterMap<String, String>();
-  CounterMap<String, String> reverseBigramCounterMap = new CounterMap<String, String>();
-  CounterMap<String,Pair<String,String>> ubTrigramCounterMap = new CounterMap<String,Pair<String,String>>();
-  CounterMap<Pair<String,String>,String> reverse_ubTrigramCounterMap = new CounterMap<Pair<String,String>,String>();
-//  CounterMap<Pair<String,String>,String> buTrigramCounterMap = new CounterMap<Pair<String,String>,String>();
-  CounterMap<String,Pair<String,String>> wcTrigramCounterMap = new CounterMap<String,Pair<String,String>>();
+  // counts and the continuation counts N1+(. w), N1+(. w .), N1+(. w w') and
+  // N1+(w w' .) of all unigrams, bigrams and trigrams
+  NgramStore ngrams;
+
+  // p_cont1, norm1 and the total of p_cont2(w, .) by word id, and norm2 by
+  // bigram index, filled in by finishTraining() so scoring only reads arrays
+  double[] pCont1Table;
+  double[] norm1Table;
+  double[] lowerMassTable;
+  double[] norm2Table;
+  int startId;
+  int stopId;
   
   public List<String> wordsAfterBigram(String word1, String word2) {
   	List<String> nextwords = new ArrayList<String>();
-  	for (Pair<String, String> bigram : ubTrigramCounterMap.getCounter(word1).keySet()) {
-  		if (bigram.getFirst().equals(word2)) { nextwords.add(bigram.getSecond()); }
+  	int b = ngrams.getBigramIndex(ngrams.getWordId(word1), ngrams.getWordId(word2));
+  	for (int t = ngrams.getTrigramsStart(b); t < ngrams.getTrigramsEnd(b); t++) {
+  		nextwords.add(ngrams.getWord(ngrams.getTrigramWord(t)));
   	}
   	return nextwords;
   }
@@ -51,8 +61,7 @@ class KN_TrigramLanguageModel implements LanguageModel {
   public double trueUnigramCount(String word) {
   	if (word.equals(STOP)) { return sentenceCount; }
   	else {
-  		Counter<String> nextwords = bigramCounterMap.getCounter(word);
-  		return nextwords.totalCount();
+  		return ngrams.getHistoryCount(ngrams.getWordId(word));
   	}
   }
   
@@ -62,20 +71,21 @@ class KN_TrigramLanguageModel implements LanguageModel {
   }
   
   public double condBigramProb(String word1, String word2) {
-  	double bicount = bigramCounterMap.getCount(word1, word2);
+  	double bicount = ngrams.getCount(ngrams.getWordId(word1), ngrams.getWordId(word2));
   	return bicount / trueUnigramCount(word1);
   }
   
   public double getCondBigramProbability(List<String> sentence, int index) {
-  	String word1 = sentence.get(index);
-  	String word2 = sentence.get(index+1);
+  	String word1 = paddedWord(sentence, index);
+  	String word2 = paddedWord(sentence, index+1);
   	return condBigramProb(word1, word2);
   }
   
   public double condTrigramProb(String word1, String word2, String word3) {
-  	Pair<String,String> bigram = Pair.makePair(word2, word3);
-  	double tricount = ubTrigramCounterMap.getCount(word1, bigram);
-		double bicount = bigramCounterMap.getCount(word1, word2);
+  	int id1 = ngrams.getWordId(word1);
+  	int id2 = ngrams.getWordId(word2);
+  	double tricount = ngrams.getCount(id1, id2, ngrams.getWordId(word3));
+		double bicount = ngrams.getCount(id1, id2);
   	if (bicount > 0) { 
 //  		System.out.println("Found it! "+word1+"-"+word2+": "+bicount);
   		return tricount / bicount;
@@ -84,162 +94,306 @@ class KN_TrigramLanguageModel implements LanguageModel {
   }
   
   public double getCondTrigramProbability(List<String> sentence, int index) {
-  	String word1 = sentence.get(index);
-  	String word2 = sentence.get(index+1);
-  	String word3 = sentence.get(index+2);
+  	String word1 = paddedWord(sentence, index);
+  	String word2 = paddedWord(sentence, index+1);
+  	String word3 = paddedWord(sentence, index+2);
   	return condTrigramProb(word1, word2, word3);
   }
   
   public double p_cont1(String word3) {
-  	double precs = reverseBigramCounterMap.getCounter(word3).size();
-  	double prob = Math.max(precs - discount, 0) / bigramVocabSize;
+  	int id3 = ngrams.getWordId(word3);
+  	double prob = (id3 < 0 ? computeP_cont1(id3) : pCont1Table[id3]);
   	if (prob == 0) { System.out.println("whoops: "+word3); }
+  	return prob;
+  }
+
+  private double computeP_cont1(int id3) {
+  	double precs = ngrams.getLeftContinuations(id3);
   	return Math.max(precs - discount, 0) / bigramVocabSize;
   }
   
   public double norm1(String word2) {
-  	return (discount / wcTrigramCounterMap.getCounter(word2).size()) * bigramCounterMap.getCounter(word2).size();
+  	int id2 = ngrams.getWordId(word2);
+  	return (id2 < 0 ? computeNorm1(id2) : norm1Table[id2]);
+  }
+
+  private double computeNorm1(int id2) {
+  	return (discount / ngrams.getMiddleContinuations(id2)) * ngrams.getRightContinuations(id2);
   }
   
   public double p_cont2(String word2, String word3) {
-  	Pair<String,String> bigram = Pair.makePair(word2, word3);
-  	double precs = reverse_ubTrigramCounterMap.getCounter(bigram).size();
-  	double prob = (Math.max(precs - discount, 0) / wcTrigramCounterMap.getCounter(word2).size()) + norm1(word2) * p_cont1(word3);
+  	int id2 = ngrams.getWordId(word2);
+  	double precs = ngrams.getBigramLeftContinuations(ngrams.getBigramIndex(id2, ngrams.getWordId(word3)));
+  	double prob = (Math.max(precs - discount, 0) / ngrams.getMiddleContinuations(id2)) + norm1(word2) * p_cont1(word3);
   	return prob;
   }
   
   public double norm2(String word1, String word2) {
-  	double bicount = bigramCounterMap.getCount(word1, word2);
+  	int b = ngrams.getBigramIndex(ngrams.getWordId(word1), ngrams.getWordId(word2));
+  	return (b < 0 ? 1.0 : norm2Table[b]);
+  }
+
+  private double computeNorm2(int b) {
+  	double bicount = ngrams.getBigramCount(b);
     if (bicount > 0) {
-  	  return (discount / bicount) * wordsAfterBigram(word1, word2).size();
+  	  return (discount / bicount) * ngrams.getBigramRightContinuations(b);
     }
     else { return 1.0; }
   }
+
+  /**
+   * Materializes the continuation probabilities and normalizers once the
+   * counts are final.
+   */
+  void finishTraining() {
+  	int numWords = ngrams.getVocabulary().size();
+  	pCont1Table = new double[numWords];
+  	norm1Table = new double[numWords];
+  	for (int id = 0; id < numWords; id++) {
+  		pCont1Table[id] = computeP_cont1(id);
+  		norm1Table[id] = computeNorm1(id);
+  	}
+  	// p_cont1 is discounted without handing the mass back, so neither it nor
+  	// p_cont2 sums to one
+  	double pCont1Mass = 0.0;
+  	for (int id = 0; id < numWords; id++) {
+  		pCont1Mass += pCont1Table[id];
+  	}
+  	lowerMassTable = new double[numWords];
+  	for (int id = 0; id < numWords; id++) {
+  		double explicitMass = 0.0;
+  		for (int b = ngrams.getBigramsStart(id); b < ngrams.getBigramsEnd(id); b++) {
+  			explicitMass += Math.max(ngrams.getBigramLeftContinuations(b) - discount, 0) / ngrams.getMiddleContinuations(id);
+  		}
+  		lowerMassTable[id] = explicitMass + norm1Table[id] * pCont1Mass;
+  	}
+  	norm2Table = new double[ngrams.getNumBigrams()];
+  	for (int b = 0; b < norm2Table.length; b++) {
+  		norm2Table[b] = computeNorm2(b);
+  	}
+  }
   
   public double p_interp(String word1, String word2, String word3) {
-  	Pair<String,String> bigram = Pair.makePair(word2, word3);
-  	double bicount = bigramCounterMap.getCount(word1, word2);
-  	double tricount = ubTrigramCounterMap.getCount(word1, bigram);
+  	int b = ngrams.getBigramIndex(ngrams.getWordId(word1), ngrams.getWordId(word2));
+  	double bicount = ngrams.getBigramCount(b);
+  	int t = ngrams.getTrigramIndex(b, ngrams.getWordId(word3));
+  	double tricount = (t < 0 ? 0 : ngrams.getTrigramCount(t));
   	double mainterm = 0.0;
   	if (bicount > 0) { mainterm = (Math.max(tricount - discount, 0) / bicount); }
   	else { mainterm = 0.0; }
 //  	  if (((Double)prob).isNaN()) { System.out.println(word1+"-"+word2+"-"+word3+": "+prob);
-  	double prob = mainterm + norm2(word1, word2) * p_cont2(word2, word3);
+  	double prob = mainterm + (bicount > 0 ? norm2Table[b] : 1.0) * p_cont2(word2, word3);
 	  return prob;
   }
   
+  // the same as p_interp(String, String, String), without the diagnostics
+  double p_interp(int id1, int id2, int id3) {
+  	return p_interp(ngrams.getBigramIndex(id1, id2), id2, id3, ngrams.getBigramIndex(id2, id3));
+  }
+
+  // b is the bigram entry of (id1, id2), and b23 that of (id2, id3)
+  double p_interp(int b, int id2, int id3, int b23) {
+  	double bicount = ngrams.getBigramCount(b);
+  	int t = ngrams.getTrigramIndex(b, id3);
+  	double tricount = (t < 0 ? 0 : ngrams.getTrigramCount(t));
+  	double mainterm = (bicount > 0 ? Math.max(tricount - discount, 0) / bicount : 0.0);
+  	return mainterm + (bicount > 0 ? norm2Table[b] : 1.0) * p_cont2(id2, id3, b23);
+  }
+
+  // b23 is the bigram entry of (id2, id3)
+  double p_cont2(int id2, int id3, int b23) {
+  	double pCont1 = (id3 < 0 ? computeP_cont1(id3) : pCont1Table[id3]);
+  	double norm1 = (id2 < 0 ? computeNorm1(id2) : norm1Table[id2]);
+  	double precs = ngrams.getBigramLeftContinuations(b23);
+  	return (Math.max(precs - discount, 0) / ngrams.getMiddleContinuations(id2)) + norm1 * pCont1;
+  }
+
+  public NgramStore getNgrams() {
+    return ngrams;
+  }
+
+  // the discounted trigram term, max(c(h w) - D, 0) / c(h)
+  public double getExplicitProbability(int bigramIndex, int trigramIndex) {
+    return Math.max(ngrams.getTrigramCount(trigramIndex) - discount, 0) / ngrams.getBigramCount(bigramIndex);
+  }
+
+  public double getBackoffWeight(int bigramIndex) {
+    return norm2Table[bigramIndex];
+  }
+
+  public double getLowerProbability(int bigramIndex, int wordId) {
+    int id2 = ngrams.getBigramWord(bigramIndex);
+    return p_cont2(id2, wordId, ngrams.getBigramIndex(id2, wordId));
+  }
+
+  // the sum of p_cont2(w2, .) over the vocabulary, for the second word w2
+  public double getLowerMass(int bigramIndex) {
+    return lowerMassTable[ngrams.getBigramWord(bigramIndex)];
+  }
+
+  // norm2Table is not recomputed, as the right continuations of the store now count only kept trigrams
+  public void applyPruning(boolean[] keep, double[] backoffIncreases) {
+    for (int b = 0; b < norm2Table.length; b++) {
+      norm2Table[b] += backoffIncreases[b];
+    }
+    ngrams = ngrams.pruneTrigrams(keep);
+    trigramCount = ngrams.getTotalTrigramCount();
+    trigramVocabSize = ngrams.getNumTrigrams();
+  }
+
+  // Backoff form for QuantizedTrigramLanguageModel, which Kneser-Ney already
+  // has: unseen trigrams get norm2 * p_cont2 and unseen bigrams norm1 * p_cont1.
+  // START is never a middle word, so p_cont2 is undefined after it; scoring
+  // never needs p(w | START), but generating from the export does, so START's
+  // bigrams are given in the count-based form of the highest order
+
+  public int getStartId() {
+    return startId;
+  }
+
+  public double getUnigramProbability(int wordId) {
+    return pCont1Table[wordId];
+  }
+
+  public double getBigramBackoff(int wordId) {
+    if (wordId == startId)
+      return discount * ngrams.getRightContinuations(startId) / ngrams.getHistoryCount(startId);
+    return norm1Table[wordId];
+  }
+
+  public double getBigramProbability(int wordId, int bigramIndex) {
+    if (wordId == startId)
+      return Math.max(ngrams.getBigramCount(bigramIndex) - discount, 0) / ngrams.getHistoryCount(startId)
+          + getBigramBackoff(startId) * pCont1Table[ngrams.getBigramWord(bigramIndex)];
+    return p_cont2(wordId, ngrams.getBigramWord(bigramIndex), bigramIndex);
+  }
+
+  public double getTrigramBackoff(int bigramIndex) {
+    return norm2Table[bigramIndex];
+  }
+
+  public double getTrigramProbability(int bigramIndex, int trigramIndex) {
+    int id2 = ngrams.getBigramWord(bigramIndex);
+    int id3 = ngrams.getTrigramWord(trigramIndex);
+    return p_interp(bigramIndex, id2, id3, ngrams.getBigramIndex(id2, id3));
+  }
+
+  /**
+   * The index-th word of the sentence padded with START and STOP, without
+   * building the padded copy.
+   */
+  static String paddedWord(List<String> sentence, int index) {
+  	if (index == 0) { return START; }
+  	return (index <= sentence.size() ? sentence.get(index-1) : STOP);
+  }
+
+  // index is a position in the padded sentence
   public double getP_interp(List<String> sentence, int index) {
-  	String word1 = sentence.get(index);
-  	String word2 = sentence.get(index+1);
-  	String word3 = sentence.get(index+2);
+  	String word1 = paddedWord(sentence, index);
+  	String word2 = paddedWord(sentence, index+1);
+  	String word3 = paddedWord(sentence, index+2);
   	return p_interp(word1, word2, word3);
   }
 
   public double getSentenceProbability(List<String> sentence) {
-    List<String> stoppedStartedSentence = new ArrayList<String>(sentence);
-    stoppedStartedSentence.add(STOP);
-    stoppedStartedSentence.add(0,START);
     double probability = 1.0;
-    for (int index = 0; index < stoppedStartedSentence.size()-2; index++) {
-      probability *= getP_interp(stoppedStartedSentence, index);
+    for (int index = 0; index < sentence.size(); index++) {
+      probability *= getP_interp(sentence, index);
     }
     return probability;
   }
-  
-  String generateFirstWord() {
-    double sample = Math.random();
-    double sum = 0.0;
-  	Counter<String> nextwords = bigramCounterMap.getCounter(START);
-		for (String word2 : nextwords.keySet()) {
-			sum += bigramCounterMap.getCount(START, word2) / trueUnigramCount(START);
-			if (sum > sample) { return word2; }
-		}
-  	return START+": didn't_make_it";
-  }
-
-  String generateNextWord(String word1, String word2) {
-    double sample = Math.random();
-    double sum = 0.0;
-  	List<String> nextwords = wordsAfterBigram(word1, word2);
-//		System.out.println("bigram: "+word1+"-"+word2);
-		for (String word3 : nextwords) {
-			Pair<String,String> bigram = Pair.makePair(word2, word3);
-			sum += ubTrigramCounterMap.getCount(word1, bigram) / bigramCounterMap.getCount(word1, word2);
-			if (sum > sample) { return word3; }
-		}
-		System.out.println("bigram_fail: "+word1+"-"+word2+" : "+bigramCounterMap.getCount(word1, word2));
-		System.out.println(nextwords);
-  	return "nope";
+
+  public double getSentenceLogProbability(List<String> sentence) {
+    double logProbability = 0.0;
+    for (int index = 0; index < sentence.size(); index++) {
+      logProbability += Math.log(getP_interp(sentence, index));
+    }
+    return logProbability;
+  }
+
+  // the first word is not scored, as in getSentenceLogProbability
+  public double getWordLogProbability(List<String> sentence, int index) {
+    return (index == 0 ? 0.0 : Math.log(getP_interp(sentence, index-1)));
+  }
+
+  public LanguageModelState beginSentence() {
+    LanguageModelState state = new LanguageModelState();
+    state.length = 1;
+    state.word2 = startId;
+    return state;
+  }
+
+  public double score(LanguageModelState state, int wordId, LanguageModelState outState) {
+    int b23 = ngrams.getBigramIndex(state.word2, wordId);
+    // as in getSentenceLogProbability, the first word is not scored
+    double logProbability = (state.length < 2 ? 0.0 : Math.log(p_interp(state.bigramIndex, state.word2, wordId, b23)));
+    outState.length = 2;
+    outState.word1 = state.word2;
+    outState.word2 = wordId;
+    outState.bigramIndex = b23;
+    return logProbability;
+  }
+
+  public int getEndOfSentenceId() {
+    return stopId;
   }
 
+  public StringIndexer getVocabulary() {
+    return ngrams.getVocabulary();
+  }
+
+  // like getSentenceLogProbability, scores every word but the first
+  public double[] getSentenceLogProbabilities(int[][] sentences) {
+    double[] logProbabilities = new double[sentences.length];
+    for (int i = 0; i < sentences.length; i++) {
+      int[] sentence = sentences[i];
+      double logProbability = 0.0;
+      int id1 = startId;
+      int id2 = (sentence.length > 0 ? sentence[0] : stopId);
+      for (int index = 1; index <= sentence.length; index++) {
+        int id3 = (index < sentence.length ? sentence[index] : stopId);
+        logProbability += Math.log(p_interp(id1, id2, id3));
+        id1 = id2;
+        id2 = id3;
+      }
+      logProbabilities[i] = logProbability;
+    }
+    return logProbabilities;
+  }
+  
   public List<String> generateSentence() {
+    return generateSentence(new SplittableRandom());
+  }
+
+  public List<String> generateSentence(SplittableRandom random) {
     List<String> sentence = new ArrayList<String>();
-    String word = generateFirstWord();
-    sentence.add(word);
-    String newword = generateNextWord(START, word);
-    while (!newword.equals(STOP)) {
-      sentence.add(newword);
-      String tempword = newword;
-      newword = generateNextWord(word, newword);
-      word = tempword;
+    // the first word comes from the bigrams after START, later ones from trigrams
+    int b = ngrams.sampleBigram(startId, random);
+    while (b >= 0 && ngrams.getBigramWord(b) != stopId) {
+      int word = ngrams.getBigramWord(b);
+      sentence.add(ngrams.getWord(word));
+      int t = ngrams.sampleTrigram(b, random);
+      // a pruned model may have no trigrams after b, so back off to the bigrams
+      b = (t < 0 ? ngrams.sampleBigram(word, random) : ngrams.getBigramIndex(word, ngrams.getTrigramWord(t)));
     }
     return sentence;
   }
   
   public KN_TrigramLanguageModel(Collection<List<String>> trainingSet, Collection<List<String>> validSet) {
-  	for (List<String> sentence : trainingSet) {
-      List<String> stoppedStartedSentence = new ArrayList<String>(sentence);
-      stoppedStartedSentence.add(STOP);
-      stoppedStartedSentence.add(0, START);
-      String first_word = stoppedStartedSentence.get(1);
-      bigramCounterMap.incrementCount(START, first_word, 1.0);
-      reverseBigramCounterMap.incrementCount(first_word, START, 1.0);
-      for (int i=0; i < stoppedStartedSentence.size()-2; i++) {
-      	String token1 = stoppedStartedSentence.get(i);
-      	String token2 = stoppedStartedSentence.get(i+1);
-      	String token3 = stoppedStartedSentence.get(i+2);
-//      	Pair<String,String> bigram1 = Pair.makePair(token1, token2);
-      	Pair<String,String> bigram2 = Pair.makePair(token2, token3);
-      	Pair<String,String> bigram_wc = Pair.makePair(token1, token3);
-        bigramCounterMap.incrementCount(token2, token3, 1.0);
-        reverseBigramCounterMap.incrementCount(token3, token2, 1.0);
-        ubTrigramCounterMap.incrementCount(token1, bigram2, 1.0);
-        reverse_ubTrigramCounterMap.incrementCount(bigram2, token1, 1.0);
-        wcTrigramCounterMap.incrementCount(token2, bigram_wc, 1.0);
-        
-//        buTrigramCounterMap.incrementCount(bigram1, token3, 1.0);
-      }
-    }
-    
-    for (List<String> sentence : validSet) {
-    	List<String> stoppedStartedSentence = new ArrayList<String>(sentence);
-      stoppedStartedSentence.add(STOP);
-      stoppedStartedSentence.add(0, START);
-      String first_word = stoppedStartedSentence.get(1);
-      bigramCounterMap.incrementCount(START, first_word, 1.0);
-      reverseBigramCounterMap.incrementCount(first_word, START, 1.0);
-      for (int i=0; i < stoppedStartedSentence.size()-2; i++) {
-      	String token1 = stoppedStartedSentence.get(i);
-      	String token2 = stoppedStartedSentence.get(i+1);
-      	String token3 = stoppedStartedSentence.get(i+2);
-//      	Pair<String,String> bigram1 = Pair.makePair(token1, token2);
-      	Pair<String,String> bigram2 = Pair.makePair(token2, token3);
-      	Pair<String,String> bigram_wc = Pair.makePair(token1, token3);
-        bigramCounterMap.incrementCount(token2, token3, 1.0);
-        reverseBigramCounterMap.incrementCount(token3, token2, 1.0);
-        ubTrigramCounterMap.incrementCount(token1, bigram2, 1.0);
-        reverse_ubTrigramCounterMap.incrementCount(bigram2, token1, 1.0);
-        wcTrigramCounterMap.incrementCount(token2, bigram_wc, 1.0);
-//        buTrigramCounterMap.incrementCount(bigram1, token3, 1.0);
-      }
-    }
-    wordCount = bigramCounterMap.totalCount() + sentenceCount;
-    vocabSize = bigramCounterMap.size() + 1;
-    bigramCount = bigramCounterMap.totalCount();
-    bigramVocabSize = bigramCounterMap.totalSize();
-    trigramCount = ubTrigramCounterMap.totalCount();
-    trigramVocabSize = ubTrigramCounterMap.totalSize();
+    ngrams = new NgramStore.Builder(3)
+        .addSentences(trainingSet, START, STOP)
+        .addSentences(validSet, START, STOP)
+        .build();
+    startId = ngrams.getWordId(START);
+    stopId = ngrams.getWordId(STOP);
+    wordCount = ngrams.getTotalBigramCount() + sentenceCount;
+    vocabSize = ngrams.getNumContexts() + 1;
+    bigramCount = ngrams.getTotalBigramCount();
+    bigramVocabSize = ngrams.getNumBigrams();
+    trigramCount = ngrams.getTotalTrigramCount();
+    trigramVocabSize = ngrams.getNumTrigrams();
     sentenceCount = trainingSet.size() + validSet.size();
+    finishTraining();
     System.out.println("Wordcount:  "+wordCount);
     System.out.println("Vocabsize:  "+vocabSize);
     System.out.println("Bigramcount:  "+bigramCount);
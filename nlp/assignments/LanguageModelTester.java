@@ -10,16 +10,31 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.text.NumberFormat;
 import java.text.DecimalFormat;
 
+import nlp.langmodel.CachingLanguageModel;
+import nlp.langmodel.CompiledCorpus;
+import nlp.langmodel.EntropyPruner;
 import nlp.langmodel.LanguageModel;
+import nlp.langmodel.NgramStore;
+import nlp.langmodel.QuantizedTrigramLanguageModel;
+import nlp.util.Codebook;
 import nlp.util.CommandLineUtils;
+import nlp.util.IntEditDistance;
+import nlp.util.LongDoubleCache;
+import nlp.util.MetricsRegistry;
+import nlp.util.StringIndexer;
 
 /**
  * This is the main harness for assignment 1.  To run this harness, use
  * <p/>
- *   java edu.berkeley.nlp.assignments.LanguageModelTester -path ASSIGNMENT_DATA_PATH -model MODEL_DESCRIPTOR_STRING
+ *   java edu.berkeley.nlp.assignments.LanguageModelTester -path ASSIGNMENT_DATA_PATH -model MODEL_DESCRIPTOR_STRING [-threads N] [-compiled] [-cache N [-cachePolicy clock|lru]] [-sketchBytes N] [-sketchDepth N] [-sketchReport] [-tune [-tuneBuckets N]] [-pruneTrigrams N | -pruneThreshold X] [-pruneReport] [-quantize 8|16|32 [-quantizer kmeans|binned] [-quantizedFile F]] [-quantizeReport]
  * <p/>
  * First verify that the data can be read on your system.  Second, find the
  * point in the main method (near the bottom) where an EmpiricalUnigramLanguageModel is
@@ -28,45 +43,21 @@ import nlp.util.CommandLineUtils;
  */
 public class LanguageModelTester {
 
-  // HELPER CLASS FOR THE HARNESS, CAN IGNORE
-  static class EditDistance {
-    static double INSERT_COST = 1.0;
-    static double DELETE_COST = 1.0;
-    static double SUBSTITUTE_COST = 1.0;
-
-    private double[][] initialize(double[][] d) {
-      for (int i = 0; i < d.length; i++) {
-        for (int j = 0; j < d[i].length; j++) {
-          d[i][j] = Double.NaN;
-        }
-      }
-      return d;
-    }
-
-    public double getDistance(List<? extends Object> firstList, List<? extends Object> secondList) {
-      double[][] bestDistances = initialize(new double[firstList.size() + 1][secondList.size() + 1]);
-      return getDistance(firstList, secondList, 0, 0, bestDistances);
-    }
-
-    private double getDistance(List<? extends Object> firstList, List<? extends Object> secondList, int firstPosition, int secondPosition, double[][] bestDistances) {
-      if (firstPosition > firstList.size() || secondPosition > secondList.size())
-        return Double.POSITIVE_INFINITY;
-      if (firstPosition == firstList.size() && secondPosition == secondList.size())
-        return 0.0;
-      if (Double.isNaN(bestDistances[firstPosition][secondPosition])) {
-        double distance = Double.POSITIVE_INFINITY;
-        distance = Math.min(distance, INSERT_COST + getDistance(firstList, secondList, firstPosition + 1, secondPosition, bestDistances));
-        distance = Math.min(distance, DELETE_COST + getDistance(firstList, secondList, firstPosition, secondPosition + 1, bestDistances));
-        distance = Math.min(distance, SUBSTITUTE_COST + getDistance(firstList, secondList, firstPosition + 1, secondPosition + 1, bestDistances));
-        if (firstPosition < firstList.size() && secondPosition < secondList.size()) {
-          if (firstList.get(firstPosition).equals(secondList.get(secondPosition))) {
-            distance = Math.min(distance, getDistance(firstList, secondList, firstPosition + 1, secondPosition + 1, bestDistances));
-          }
-        }
-        bestDistances[firstPosition][secondPosition] = distance;
-      }
-      return bestDistances[firstPosition][secondPosition];
+  // per-sentence and per-component timings, reported after evaluation
+  static final MetricsRegistry metrics = new MetricsRegistry();
+
+  // how many histories reportPruning() checks the mass of
+  static final int MASS_CHECK_HISTORIES = 200;
+
+  // interns the words of sentences compared by edit distance; safe to share between threads
+  static final StringIndexer tokenIndexer = new StringIndexer();
+
+  static int[] toTokenIds(List<String> sentence) {
+    int[] ids = new int[sentence.size()];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = tokenIndexer.addAndGetIndex(sentence.get(i));
     }
+    return ids;
   }
 
   // HELPER CLASS FOR THE HARNESS, CAN IGNORE
@@ -136,15 +127,96 @@ public class LanguageModelTester {
       static Collection<List<String>> readSentenceCollection(String fileName) {
         return new SentenceCollection(fileName);
       }
+
+      /**
+       * Maps the compiled form of the sentence file, fileName + ".ids",
+       * compiling it first if it is missing or older than the text.  The
+       * sentences are read-only.
+       */
+      static Collection<List<String>> readCompiledSentenceCollection(String fileName) throws IOException {
+        File textFile = new File(fileName);
+        File compiledFile = new File(fileName + ".ids");
+        if (!compiledFile.exists() || compiledFile.lastModified() < textFile.lastModified()) {
+          CompiledCorpus.compile(new SentenceCollection(fileName), compiledFile);
+        }
+        return new CompiledCorpus(compiledFile);
+      }
     }
 
   }
 
-  static double calculatePerplexity(LanguageModel languageModel, Collection<List<String>> sentenceCollection) {
+  // how many threads evaluation shards sentences and n-best lists over
+  static int numThreads = 1;
+
+  /**
+   * Computes something for one item being evaluated.  With more than one
+   * thread, calls come from several threads at once.
+   */
+  interface ItemScorer<T, R> {
+    R score(T item);
+  }
+
+  /**
+   * Applies the scorer to every item and returns the results in item order.
+   * With numThreads above one, items are split into contiguous shards scored
+   * on a thread pool; callers reduce the results in order, so totals come out
+   * the same however many threads are used.
+   */
+  static <T, R> List<R> scoreAll(Collection<T> items, final ItemScorer<T, R> scorer) {
+    List<R> results = new ArrayList<R>();
+    if (numThreads <= 1) {
+      for (T item : items) {
+        results.add(scorer.score(item));
+      }
+      return results;
+    }
+    final List<T> itemList = (items instanceof List ? (List<T>) items : new ArrayList<T>(items));
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    List<Future<List<R>>> futures = new ArrayList<Future<List<R>>>();
+    int shardSize = (itemList.size() + numThreads - 1) / numThreads;
+    for (int start = 0; start < itemList.size(); start += shardSize) {
+      final List<T> shard = itemList.subList(start, Math.min(start + shardSize, itemList.size()));
+      futures.add(executor.submit(new Callable<List<R>>() {
+        public List<R> call() {
+          List<R> shardResults = new ArrayList<R>(shard.size());
+          for (T item : shard) {
+            shardResults.add(scorer.score(item));
+          }
+          return shardResults;
+        }
+      }));
+    }
+    try {
+      for (Future<List<R>> future : futures) {
+        results.addAll(future.get());
+      }
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    } finally {
+      executor.shutdown();
+    }
+    return results;
+  }
+
+  static double calculatePerplexity(final LanguageModel languageModel, Collection<List<String>> sentenceCollection) {
     double logProbability = 0.0;
     double numSymbols = 0.0;
+    final MetricsRegistry.Timer sentenceTimer = metrics.timer("perplexity.sentence");
+    final MetricsRegistry.Meter wordMeter = metrics.meter("perplexity.words");
+    List<Double> sentenceLogProbabilities = scoreAll(sentenceCollection, new ItemScorer<List<String>, Double>() {
+      public Double score(List<String> sentence) {
+        long start = sentenceTimer.start();
+        double logProbability = languageModel.getSentenceLogProbability(sentence) / Math.log(2.0);
+        sentenceTimer.stop(start);
+        wordMeter.add(sentence.size());
+        return logProbability;
+      }
+    });
+    Iterator<Double> logProbabilities = sentenceLogProbabilities.iterator();
     for (List<String> sentence : sentenceCollection) {
-      logProbability += Math.log(languageModel.getSentenceProbability(sentence)) / Math.log(2.0);
+      logProbability += logProbabilities.next();
       numSymbols += sentence.size();
 //      System.out.println(languageModel.getSentenceProbability(sentence));
     }
@@ -153,38 +225,211 @@ public class LanguageModelTester {
     return perplexity;
   }
 
-  static double calculateWordErrorRate(LanguageModel languageModel, List<SpeechNBestList> speechNBestLists, boolean verbose) {
+  /**
+   * Perplexity with the probability of each word after the first divided by
+   * the total probability the model gives every vocabulary word, and the stop
+   * symbol, after the same two-word history.  An approximate model whose
+   * overestimated counts leave it unnormalized can look better than the
+   * exact model by plain perplexity; this measure cannot be gamed that way.
+   * The first word, which the trigram models do not score, is left as is.
+   * Totals are computed once per distinct history.
+   */
+  static double calculateNormalizedPerplexity(LanguageModel languageModel, Collection<List<String>> sentenceCollection) {
+    List<String> candidates = new ArrayList<String>();
+    for (String word : languageModel.getVocabulary()) {
+      if (!word.equals(InterpolatedTrigramLanguageModel.START) && !word.equals(InterpolatedTrigramLanguageModel.STOP))
+        candidates.add(word);
+    }
+    Map<List<String>, Double> historyMasses = new HashMap<List<String>, Double>();
+    double logProbability = 0.0;
+    double numSymbols = 0.0;
+    for (List<String> sentence : sentenceCollection) {
+      logProbability += languageModel.getWordLogProbability(sentence, 0);
+      for (int index = 1; index <= sentence.size(); index++) {
+        List<String> history = new ArrayList<String>(sentence.subList(Math.max(0, index - 2), index));
+        Double mass = historyMasses.get(history);
+        if (mass == null) {
+          List<String> prefix = new ArrayList<String>(sentence.subList(0, index));
+          double total = Math.exp(languageModel.getWordLogProbability(prefix, index));
+          prefix.add(null);
+          for (String word : candidates) {
+            prefix.set(index, word);
+            total += Math.exp(languageModel.getWordLogProbability(prefix, index));
+          }
+          mass = total;
+          historyMasses.put(history, mass);
+        }
+        logProbability += languageModel.getWordLogProbability(sentence, index) - Math.log(mass);
+      }
+      numSymbols += sentence.size();
+    }
+    return Math.exp(-logProbability / numSymbols);
+  }
+
+  /**
+   * Prints the test perplexity of SketchTrigramLanguageModel at budgets from
+   * 1/64 to 4 times the size of the exact trigram counts, and how much worse
+   * each is than InterpolatedTrigramLanguageModel.  The penalty compares
+   * normalized perplexities, since sketch overestimates inflate the plain one.
+   */
+  static void reportSketchBudgets(InterpolatedTrigramLanguageModel exactModel, Collection<List<String>> trainingSentences,
+      Collection<List<String>> validSentences, Collection<List<String>> testSentences, int depth) {
+    double exactNormalized = calculateNormalizedPerplexity(exactModel, testSentences);
+    long exactBytes = exactModel.ngrams.byteSize();
+    System.out.println("Sketch budget report (depth " + depth + "):");
+    System.out.println(String.format("  %-8s %12s %12s %12s %9s", "budget", "bytes", "perplexity", "normalized", "penalty"));
+    System.out.println(String.format("  %-8s %12d %12.4f %12.4f %9s", "exact", exactBytes,
+        calculatePerplexity(exactModel, testSentences), exactNormalized, "-"));
+    for (double fraction : new double[] { 1.0 / 64, 1.0 / 16, 1.0 / 4, 1.0, 4.0 }) {
+      SketchTrigramLanguageModel sketchModel = new SketchTrigramLanguageModel(trainingSentences, validSentences, (long) (fraction * exactBytes), depth);
+      double normalized = calculateNormalizedPerplexity(sketchModel, testSentences);
+      System.out.println(String.format("  %-8s %12d %12.4f %12.4f %8.2f%%", fraction < 1 ? "1/" + Math.round(1 / fraction) : Math.round(fraction) + "x",
+          sketchModel.byteSize(), calculatePerplexity(sketchModel, testSentences), normalized, 100.0 * (normalized / exactNormalized - 1.0)));
+    }
+  }
+
+  /**
+   * Prints the trigram count, store size and test perplexity of the trigram
+   * model pruned by relative entropy to fractions of its trigrams, and the
+   * largest change pruning made to the total probability of a history, over
+   * a sample of histories with more than one trigram.  That drift should be
+   * rounding error.
+   */
+  static void reportPruning(String model, Collection<List<String>> trainingSentences,
+      Collection<List<String>> validSentences, Collection<List<String>> testSentences) {
+    System.out.println("Entropy pruning report (" + model + "):");
+    System.out.println(String.format("  %-8s %10s %12s %12s %9s %11s", "kept", "trigrams", "bytes", "perplexity", "penalty", "mass drift"));
+    double fullPerplexity = 0.0;
+    for (double fraction : new double[] { 1.0, 0.5, 0.25, 0.1, 0.05, 0.01 }) {
+      EntropyPruner.Prunable prunable;
+      if (model.equalsIgnoreCase("trigram"))
+        prunable = new InterpolatedTrigramLanguageModel(trainingSentences, validSentences);
+      else if (model.equalsIgnoreCase("kn_trigram"))
+        prunable = new KN_TrigramLanguageModel(trainingSentences, validSentences);
+      else
+        throw new RuntimeException("Only trigram models can be pruned: " + model);
+      // bigram entries keep their indices through pruning
+      List<Integer> sample = new ArrayList<Integer>();
+      NgramStore ngrams = prunable.getNgrams();
+      for (int b = 0; b < ngrams.getNumBigrams() && sample.size() < MASS_CHECK_HISTORIES; b++) {
+        if (ngrams.getTrigramsEnd(b) - ngrams.getTrigramsStart(b) > 1)
+          sample.add(b);
+      }
+      double[] massesBefore = new double[sample.size()];
+      for (int i = 0; i < sample.size(); i++) {
+        massesBefore[i] = EntropyPruner.getHistoryMass(prunable, sample.get(i));
+      }
+      EntropyPruner.pruneToSize(prunable, (int) Math.round(fraction * prunable.getNgrams().getNumTrigrams()));
+      double massDrift = 0.0;
+      for (int i = 0; i < sample.size(); i++) {
+        massDrift = Math.max(massDrift, Math.abs(EntropyPruner.getHistoryMass(prunable, sample.get(i)) - massesBefore[i]));
+      }
+      double perplexity = calculatePerplexity((LanguageModel) prunable, testSentences);
+      if (fraction == 1.0)
+        fullPerplexity = perplexity;
+      System.out.println(String.format("  %7.0f%% %10d %12d %12.4f %8.2f%% %11.2e", 100 * fraction, prunable.getNgrams().getNumTrigrams(),
+          prunable.getNgrams().byteSize(), perplexity, 100.0 * (perplexity / fullPerplexity - 1.0), massDrift));
+    }
+  }
+
+  /**
+   * Prints the size and test perplexity of the trigram model exported to
+   * QuantizedTrigramLanguageModel at each width and codebook method, and how
+   * much worse each is than the model itself.  Sizes count structure, codes
+   * and codebooks; the model's own row counts its n-gram store.
+   */
+  static void reportQuantization(QuantizedTrigramLanguageModel.Exportable model, Collection<List<String>> testSentences) {
+    double perplexity = calculatePerplexity((LanguageModel) model, testSentences);
+    long numNgrams = (long) model.getNgrams().getVocabulary().size() + model.getNgrams().getNumBigrams() + model.getNgrams().getNumTrigrams();
+    System.out.println("Quantization report (" + numNgrams + " n-grams):");
+    System.out.println(String.format("  %-12s %12s %14s %12s %9s", "codes", "bytes", "bytes/n-gram", "perplexity", "delta"));
+    System.out.println(String.format("  %-12s %12d %14.2f %12.4f %9s", "counts", model.getNgrams().byteSize(),
+        (double) model.getNgrams().byteSize() / numNgrams, perplexity, "-"));
+    printQuantized(QuantizedTrigramLanguageModel.export(model, 32, Codebook.Method.BINNED), "float", perplexity, testSentences);
+    for (int bits : new int[] { 16, 8 }) {
+      for (Codebook.Method method : Codebook.Method.values()) {
+        printQuantized(QuantizedTrigramLanguageModel.export(model, bits, method), bits + " " + method.name().toLowerCase(), perplexity, testSentences);
+      }
+    }
+  }
+
+  private static void printQuantized(QuantizedTrigramLanguageModel quantized, String codes, double perplexity, Collection<List<String>> testSentences) {
+    double quantizedPerplexity = calculatePerplexity(quantized, testSentences);
+    System.out.println(String.format("  %-12s %12d %14.2f %12.4f %8.3f%%", codes, quantized.byteSize(),
+        (double) quantized.byteSize() / quantized.getNumNgrams(), quantizedPerplexity, 100.0 * (quantizedPerplexity / perplexity - 1.0)));
+  }
+
+  // the outcome of rescoring one n-best list, with the scores verbose output displays
+  static class RescoringResult {
+    List<String> bestGuess;
+    double numWithBestScores;
+    double distanceForBestScores;
+    double bestGuessLanguageModelScore;
+    double correctLanguageModelScore;
+  }
+
+  static double calculateWordErrorRate(final LanguageModel languageModel, List<SpeechNBestList> speechNBestLists, final boolean verbose) {
     double totalDistance = 0.0;
     double totalWords = 0.0;
-    EditDistance editDistance = new EditDistance();
-    for (SpeechNBestList speechNBestList : speechNBestLists) {
-      List<String> correctSentence = speechNBestList.getCorrectSentence();
-      List<String> bestGuess = null;
-      double bestScore = Double.NEGATIVE_INFINITY;
-      double numWithBestScores = 0.0;
-      double distanceForBestScores = 0.0;
-      for (List<String> guess : speechNBestList.getNBestSentences()) {
-        double score = Math.log(languageModel.getSentenceProbability(guess)) + (speechNBestList.getAcousticScore(guess) / 16.0);
-        double distance = editDistance.getDistance(correctSentence, guess);
-        if (score == bestScore) {
-          numWithBestScores += 1.0;
-          distanceForBestScores += distance;
+    final MetricsRegistry.Timer listTimer = metrics.timer("wer.nbestList");
+    final MetricsRegistry.Timer scoreTimer = metrics.timer("wer.lmScore");
+    final MetricsRegistry.Timer distanceTimer = metrics.timer("wer.editDistance");
+    final MetricsRegistry.Meter tokenMeter = metrics.meter("wer.hypothesisTokens");
+    final MetricsRegistry.Meter nodeMeter = metrics.meter("wer.trieNodes");
+    List<RescoringResult> results = scoreAll(speechNBestLists, new ItemScorer<SpeechNBestList, RescoringResult>() {
+      public RescoringResult score(SpeechNBestList speechNBestList) {
+        long listStart = listTimer.start();
+        NBestRescorer rescorer = new NBestRescorer(speechNBestList, languageModel);
+        long start = scoreTimer.start();
+        rescorer.scoreLanguageModel();
+        scoreTimer.stop(start);
+        start = distanceTimer.start();
+        rescorer.scoreEditDistance();
+        distanceTimer.stop(start);
+        List<List<String>> guesses = speechNBestList.getNBestSentences();
+        int bestGuess = -1;
+        double bestScore = Double.NEGATIVE_INFINITY;
+        double numWithBestScores = 0.0;
+        double distanceForBestScores = 0.0;
+        for (int h = 0; h < guesses.size(); h++) {
+          double score = rescorer.getScore(h);
+          double distance = rescorer.getDistance(h);
+          if (score == bestScore) {
+            numWithBestScores += 1.0;
+            distanceForBestScores += distance;
+          }
+          if (score > bestScore || bestGuess < 0) {
+            bestScore = score;
+            bestGuess = h;
+            distanceForBestScores = distance;
+            numWithBestScores = 1.0;
+          }
+          tokenMeter.add(guesses.get(h).size());
         }
-        if (score > bestScore || bestGuess == null) {
-          bestScore = score;
-          bestGuess = guess;
-          distanceForBestScores = distance;
-          numWithBestScores = 1.0;
+        nodeMeter.add(rescorer.getNumNodes());
+        RescoringResult result = new RescoringResult();
+        result.bestGuess = (bestGuess < 0 ? null : guesses.get(bestGuess));
+        result.numWithBestScores = numWithBestScores;
+        result.distanceForBestScores = distanceForBestScores;
+        if (verbose && distanceForBestScores > 0.0) {
+          result.bestGuessLanguageModelScore = rescorer.getLanguageModelScore(bestGuess);
+          result.correctLanguageModelScore = rescorer.getLanguageModelScore(speechNBestList.getCorrectSentence());
         }
+        listTimer.stop(listStart);
+        return result;
       }
-//      double distance = editDistance.getDistance(correctSentence, bestGuess);
-      totalDistance += distanceForBestScores / numWithBestScores;
+    });
+    for (int i = 0; i < speechNBestLists.size(); i++) {
+      SpeechNBestList speechNBestList = speechNBestLists.get(i);
+      RescoringResult result = results.get(i);
+      List<String> correctSentence = speechNBestList.getCorrectSentence();
+      totalDistance += result.distanceForBestScores / result.numWithBestScores;
       totalWords += correctSentence.size();
       if (verbose) {
-        if (distanceForBestScores > 0.0) {
+        if (result.distanceForBestScores > 0.0) {
           System.out.println();
-          displayHypothesis("GUESS:",bestGuess, speechNBestList, languageModel);
-          displayHypothesis("GOLD: ",correctSentence, speechNBestList, languageModel);
+          displayHypothesis("GUESS:",result.bestGuess, speechNBestList, result.bestGuessLanguageModelScore);
+          displayHypothesis("GOLD: ",correctSentence, speechNBestList, result.correctLanguageModelScore);
 //          System.out.println("GOLD:  "+correctSentence);
         }
       }
@@ -193,26 +438,32 @@ public class LanguageModelTester {
   }
 
   private static NumberFormat nf = new DecimalFormat("0.00E00");
-  private static void displayHypothesis(String prefix, List<String> guess, SpeechNBestList speechNBestList, LanguageModel languageModel) {
+  private static void displayHypothesis(String prefix, List<String> guess, SpeechNBestList speechNBestList, double language) {
     double acoustic = speechNBestList.getAcousticScore(guess)/16.0;
-    double language = Math.log(languageModel.getSentenceProbability(guess));
     System.out.println(prefix+" AM: "+nf.format(acoustic)+" LM: "+nf.format(language)+ " Total: "+nf.format(acoustic+language)+" "+guess);
   }
 
   static double calculateWordErrorRateLowerBound(List<SpeechNBestList> speechNBestLists) {
     double totalDistance = 0.0;
     double totalWords = 0.0;
-    EditDistance editDistance = new EditDistance();
-    for (SpeechNBestList speechNBestList : speechNBestLists) {
-      List<String> correctSentence = speechNBestList.getCorrectSentence();
-      double bestDistance = Double.POSITIVE_INFINITY;
-      for (List<String> guess : speechNBestList.getNBestSentences()) {
-        double distance = editDistance.getDistance(correctSentence, guess);
-        if (distance < bestDistance)
-          bestDistance = distance;
+    List<Double> bestDistances = scoreAll(speechNBestLists, new ItemScorer<SpeechNBestList, Double>() {
+      public Double score(SpeechNBestList speechNBestList) {
+        int[] correctSentence = toTokenIds(speechNBestList.getCorrectSentence());
+        double bestDistance = Double.POSITIVE_INFINITY;
+        for (List<String> guess : speechNBestList.getNBestSentences()) {
+          // only a guess closer than the best so far matters, so the search can stop early
+          double distance = (bestDistance == Double.POSITIVE_INFINITY
+              ? IntEditDistance.getDistance(correctSentence, toTokenIds(guess))
+              : IntEditDistance.getDistance(correctSentence, toTokenIds(guess), (int) bestDistance - 1));
+          if (distance < bestDistance)
+            bestDistance = distance;
+        }
+        return bestDistance;
       }
-      totalDistance += bestDistance;
-      totalWords += correctSentence.size();
+    });
+    for (int i = 0; i < speechNBestLists.size(); i++) {
+      totalDistance += bestDistances.get(i);
+      totalWords += speechNBestLists.get(i).getCorrectSentence().size();
     }
     return totalDistance / totalWords;
   }
@@ -220,17 +471,21 @@ public class LanguageModelTester {
   static double calculateWordErrorRateUpperBound(List<SpeechNBestList> speechNBestLists) {
     double totalDistance = 0.0;
     double totalWords = 0.0;
-    EditDistance editDistance = new EditDistance();
-    for (SpeechNBestList speechNBestList : speechNBestLists) {
-      List<String> correctSentence = speechNBestList.getCorrectSentence();
-      double worstDistance = Double.NEGATIVE_INFINITY;
-      for (List<String> guess : speechNBestList.getNBestSentences()) {
-        double distance = editDistance.getDistance(correctSentence, guess);
-        if (distance > worstDistance)
-          worstDistance = distance;
+    List<Double> worstDistances = scoreAll(speechNBestLists, new ItemScorer<SpeechNBestList, Double>() {
+      public Double score(SpeechNBestList speechNBestList) {
+        int[] correctSentence = toTokenIds(speechNBestList.getCorrectSentence());
+        double worstDistance = Double.NEGATIVE_INFINITY;
+        for (List<String> guess : speechNBestList.getNBestSentences()) {
+          double distance = IntEditDistance.getDistance(correctSentence, toTokenIds(guess));
+          if (distance > worstDistance)
+            worstDistance = distance;
+        }
+        return worstDistance;
       }
-      totalDistance += worstDistance;
-      totalWords += correctSentence.size();
+    });
+    for (int i = 0; i < speechNBestLists.size(); i++) {
+      totalDistance += worstDistances.get(i);
+      totalWords += speechNBestLists.get(i).getCorrectSentence().size();
     }
     return totalDistance / totalWords;
   }
@@ -238,18 +493,22 @@ public class LanguageModelTester {
   static double calculateWordErrorRateRandomChoice(List<SpeechNBestList> speechNBestLists) {
     double totalDistance = 0.0;
     double totalWords = 0.0;
-    EditDistance editDistance = new EditDistance();
-    for (SpeechNBestList speechNBestList : speechNBestLists) {
-      List<String> correctSentence = speechNBestList.getCorrectSentence();
-      double sumDistance = 0.0;
-      double numGuesses = 0.0;
-      for (List<String> guess : speechNBestList.getNBestSentences()) {
-        double distance = editDistance.getDistance(correctSentence, guess);
-        sumDistance += distance;
-        numGuesses += 1.0;
+    List<Double> averageDistances = scoreAll(speechNBestLists, new ItemScorer<SpeechNBestList, Double>() {
+      public Double score(SpeechNBestList speechNBestList) {
+        int[] correctSentence = toTokenIds(speechNBestList.getCorrectSentence());
+        double sumDistance = 0.0;
+        double numGuesses = 0.0;
+        for (List<String> guess : speechNBestList.getNBestSentences()) {
+          double distance = IntEditDistance.getDistance(correctSentence, toTokenIds(guess));
+          sumDistance += distance;
+          numGuesses += 1.0;
+        }
+        return sumDistance / numGuesses;
       }
-      totalDistance += sumDistance / numGuesses;
-      totalWords += correctSentence.size();
+    });
+    for (int i = 0; i < speechNBestLists.size(); i++) {
+      totalDistance += averageDistances.get(i);
+      totalWords += speechNBestLists.get(i).getCorrectSentence().size();
     }
     return totalDistance / totalWords;
   }
@@ -345,15 +604,72 @@ public class LanguageModelTester {
       verbose = false;
     }
 
+    // Whether to read sentences from compiled corpus files, made on first use.
+    boolean compiled = argMap.containsKey("-compiled");
+
+    // How many threads to evaluate on; results do not depend on it.
+    if (argMap.containsKey("-threads")) {
+      numThreads = Integer.parseInt(argMap.get("-threads"));
+    }
+
+    // Whether the interpolated models tune their weights on the validation
+    // sentences held out from the counts, and in how many history count
+    // buckets.
+    boolean tune = argMap.containsKey("-tune");
+    int tuneBuckets = 1;
+    if (argMap.containsKey("-tuneBuckets")) {
+      tuneBuckets = Integer.parseInt(argMap.get("-tuneBuckets"));
+    }
+
+    // The memory budget and depth of the sketch_trigram model's Count-Min sketches.
+    long sketchBytes = 16L << 20;
+    if (argMap.containsKey("-sketchBytes")) {
+      sketchBytes = Long.parseLong(argMap.get("-sketchBytes"));
+    }
+    int sketchDepth = 4;
+    if (argMap.containsKey("-sketchDepth")) {
+      sketchDepth = Integer.parseInt(argMap.get("-sketchDepth"));
+    }
+
+    // The width of the codes trigram models are quantized to, and how their
+    // codebooks are trained.
+    int quantizeBits = 0;
+    if (argMap.containsKey("-quantize")) {
+      quantizeBits = Integer.parseInt(argMap.get("-quantize"));
+    }
+    Codebook.Method quantizer = Codebook.Method.KMEANS;
+    if (argMap.containsKey("-quantizer")) {
+      quantizer = Codebook.Method.valueOf(argMap.get("-quantizer").toUpperCase());
+    }
+
+    // How many word probabilities to cache, if any, and how to evict them.
+    int cacheCapacity = 0;
+    if (argMap.containsKey("-cache")) {
+      cacheCapacity = Integer.parseInt(argMap.get("-cache"));
+    }
+    LongDoubleCache.Policy cachePolicy = LongDoubleCache.Policy.CLOCK;
+    if (argMap.containsKey("-cachePolicy")) {
+      cachePolicy = LongDoubleCache.Policy.valueOf(argMap.get("-cachePolicy").toUpperCase());
+    }
+
     // Read in all the assignment data
     String trainingSentencesFile = "/treebank-sentences-spoken-train.txt";
     String validationSentencesFile = "/treebank-sentences-spoken-validate.txt";
     String testSentencesFile = "/treebank-sentences-spoken-test.txt";
     String speechNBestListsPath = "/wsj_n_bst";
     
-    Collection<List<String>> trainingSentenceCollection = SentenceCollection.Reader.readSentenceCollection(basePath + trainingSentencesFile);
-    Collection<List<String>> validationSentenceCollection = SentenceCollection.Reader.readSentenceCollection(basePath + validationSentencesFile);
-    Collection<List<String>> testSentenceCollection = SentenceCollection.Reader.readSentenceCollection(basePath + testSentencesFile);
+    Collection<List<String>> trainingSentenceCollection;
+    Collection<List<String>> validationSentenceCollection;
+    Collection<List<String>> testSentenceCollection;
+    if (compiled) {
+      trainingSentenceCollection = SentenceCollection.Reader.readCompiledSentenceCollection(basePath + trainingSentencesFile);
+      validationSentenceCollection = SentenceCollection.Reader.readCompiledSentenceCollection(basePath + validationSentencesFile);
+      testSentenceCollection = SentenceCollection.Reader.readCompiledSentenceCollection(basePath + testSentencesFile);
+    } else {
+      trainingSentenceCollection = SentenceCollection.Reader.readSentenceCollection(basePath + trainingSentencesFile);
+      validationSentenceCollection = SentenceCollection.Reader.readSentenceCollection(basePath + validationSentencesFile);
+      testSentenceCollection = SentenceCollection.Reader.readSentenceCollection(basePath + testSentencesFile);
+    }
     
     Set<String> trainingVocabulary = extractVocabulary(trainingSentenceCollection);
     Set<String> unkstartstopVocabulary = new HashSet<String>(trainingVocabulary);
@@ -369,12 +685,13 @@ public class LanguageModelTester {
     Collection<List<String>> validSentences = new ArrayList<List<String>>();
     Collection<List<String>> testSentences = new ArrayList<List<String>>();
     
+    // unkSent() rewrites its sentence, and compiled sentences are read-only
     for (List<String> sentence : validationSentenceCollection) {
-    	List<String>unksent = unkSent(sentence, trainingVocabulary, output);
+    	List<String>unksent = unkSent(new ArrayList<String>(sentence), trainingVocabulary, output);
     	validSentences.add(unksent);
     }
     for (List<String> sentence : testSentenceCollection) {
-    	List<String>unksent = unkSent(sentence, trainingVocabulary, output);
+    	List<String>unksent = unkSent(new ArrayList<String>(sentence), trainingVocabulary, output);
     	testSentences.add(unksent);
     }
 //    
@@ -387,20 +704,70 @@ public class LanguageModelTester {
     LanguageModel languageModel = null;
     if (model.equalsIgnoreCase("baseline")) {
       languageModel = new EmpiricalUnigramLanguageModel(trainingSentenceCollection);
+    } else if (model.equalsIgnoreCase("bigram") && tune) {
+      languageModel = InterpolatedBigramLanguagemodel.trainTuned(trainingSentenceCollection, validSentences, tuneBuckets);
     } else if (model.equalsIgnoreCase("bigram")) {
       languageModel = new InterpolatedBigramLanguagemodel(trainingSentenceCollection, validSentences);
     } else if (model.equalsIgnoreCase("kn_bigram")) {
       languageModel = new KN_BigramLanguageModel(trainingSentenceCollection, validSentences);
+    } else if (model.equalsIgnoreCase("trigram") && tune) {
+      languageModel = InterpolatedTrigramLanguageModel.trainTuned(trainingSentenceCollection, validSentences, tuneBuckets);
     } else if (model.equalsIgnoreCase("trigram")) {
     	languageModel = new InterpolatedTrigramLanguageModel(trainingSentenceCollection, validSentences);
     } else if (model.equalsIgnoreCase("kn_trigram")) {
     	languageModel = new KN_TrigramLanguageModel(trainingSentenceCollection, validSentences);
+    } else if (model.equalsIgnoreCase("sketch_trigram")) {
+      languageModel = new SketchTrigramLanguageModel(trainingSentenceCollection, validSentences, sketchBytes, sketchDepth);
     }
       else {
       throw new RuntimeException("Unknown model descriptor: " + model);
     }
+    if (argMap.containsKey("-sketchReport")) {
+      reportSketchBudgets(new InterpolatedTrigramLanguageModel(trainingSentenceCollection, validSentences),
+          trainingSentenceCollection, validSentences, testSentences, sketchDepth);
+    }
+    if (argMap.containsKey("-pruneTrigrams") || argMap.containsKey("-pruneThreshold")) {
+      if (!(languageModel instanceof EntropyPruner.Prunable))
+        throw new RuntimeException("Only trigram models can be pruned: " + model);
+      EntropyPruner.Prunable prunable = (EntropyPruner.Prunable) languageModel;
+      int numTrigrams = prunable.getNgrams().getNumTrigrams();
+      if (argMap.containsKey("-pruneTrigrams"))
+        EntropyPruner.pruneToSize(prunable, Integer.parseInt(argMap.get("-pruneTrigrams")));
+      else
+        EntropyPruner.pruneByThreshold(prunable, Double.parseDouble(argMap.get("-pruneThreshold")));
+      System.out.println("Pruned trigrams: " + numTrigrams + " -> " + prunable.getNgrams().getNumTrigrams()
+          + " (" + prunable.getNgrams().byteSize() + " bytes)");
+    }
+    if (argMap.containsKey("-pruneReport")) {
+      reportPruning(model, trainingSentenceCollection, validSentences, testSentences);
+    }
+    if (argMap.containsKey("-quantizeReport")) {
+      if (!(languageModel instanceof QuantizedTrigramLanguageModel.Exportable))
+        throw new RuntimeException("Only trigram models can be quantized: " + model);
+      reportQuantization((QuantizedTrigramLanguageModel.Exportable) languageModel, testSentences);
+    }
+    if (quantizeBits > 0) {
+      if (!(languageModel instanceof QuantizedTrigramLanguageModel.Exportable))
+        throw new RuntimeException("Only trigram models can be quantized: " + model);
+      QuantizedTrigramLanguageModel quantized = QuantizedTrigramLanguageModel.export((QuantizedTrigramLanguageModel.Exportable) languageModel, quantizeBits, quantizer);
+      // evaluate what a deployment would load
+      if (argMap.containsKey("-quantizedFile")) {
+        File quantizedFile = new File(argMap.get("-quantizedFile"));
+        quantized.write(quantizedFile);
+        quantized = QuantizedTrigramLanguageModel.read(quantizedFile);
+      }
+      System.out.println("Quantized to " + quantizeBits + " bits: " + quantized.byteSize() + " bytes, "
+          + String.format("%.2f", (double) quantized.byteSize() / quantized.getNumNgrams()) + " bytes per n-gram");
+      languageModel = quantized;
+    }
+    LongDoubleCache cache = null;
+    if (cacheCapacity > 0) {
+      cache = new LongDoubleCache(cacheCapacity, cachePolicy, 4 * numThreads);
+      languageModel = new CachingLanguageModel(languageModel, cache);
+    }
 
     // Evaluate the language model
+    metrics.reset();
     double wsjPerplexity = calculatePerplexity(languageModel, testSentences);
     double hubPerplexity = calculatePerplexity(languageModel, extractCorrectSentenceList(speechNBestLists));
     System.out.println("WSJ Perplexity:  " + wsjPerplexity);
@@ -411,6 +778,13 @@ public class LanguageModelTester {
     System.out.println("  Avg Path:   " + calculateWordErrorRateRandomChoice(speechNBestLists));
     double wordErrorRate = calculateWordErrorRate(languageModel, speechNBestLists, verbose);
     System.out.println("HUB Word Error Rate: " + wordErrorRate);
+    if (cache != null) {
+      metrics.meter("lmCache.hits").add(cache.getHits());
+      metrics.meter("lmCache.misses").add(cache.getMisses());
+      metrics.meter("lmCache.evictions").add(cache.getEvictions());
+      System.out.println("LM cache: " + cache);
+    }
+    System.out.print(metrics.report());
     
 //    System.out.println("Word Tests:");
 //    Set<String> testWords = new HashSet<String>();
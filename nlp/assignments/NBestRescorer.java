@@ -0,0 +1,208 @@
+package nlp.assignments;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import nlp.langmodel.LanguageModel;
+import nlp.langmodel.LanguageModelState;
+import nlp.langmodel.StatefulLanguageModel;
+import nlp.util.StringIndexer;
+
+/**
+ * Rescores the hypotheses of one SpeechNBestList with a language model,
+ * sharing work between hypotheses with a common prefix.  The hypotheses are
+ * put in a prefix trie.  Each trie node scores its word once, and extends
+ * its parent's edit distance row against the correct sentence by one token.
+ * Words are scored by extending the parent's history state if the model is
+ * a StatefulLanguageModel, and with getWordLogProbability() otherwise.
+ * Rescoring thus
+ * costs time in proportion to the number of trie nodes rather than the total
+ * number of hypothesis tokens.  Scores and distances are the same, to the
+ * bit, as getSentenceLogProbability() and IntEditDistance.getDistance() (unit
+ * costs) give.
+ */
+class NBestRescorer {
+
+  final SpeechNBestList speechNBestList;
+  final LanguageModel languageModel;
+  final List<List<String>> hypotheses;
+
+  // trie nodes, parents before children; node 0 is the root (empty prefix)
+  int numNodes = 1;
+  int[] parents = new int[64];
+  int[] depths = new int[64];
+  // a hypothesis passing through each node, whose first depths[node] words are its prefix
+  int[] pathHypotheses = new int[64];
+  List<Map<String, Integer>> children = new ArrayList<Map<String, Integer>>();
+  // the trie node each hypothesis ends at
+  int[] hypothesisNodes;
+
+  double[] languageModelScores;
+  double[] distances;
+
+  public NBestRescorer(SpeechNBestList speechNBestList, LanguageModel languageModel) {
+    this.speechNBestList = speechNBestList;
+    this.languageModel = languageModel;
+    this.hypotheses = speechNBestList.getNBestSentences();
+    children.add(null);
+    hypothesisNodes = new int[hypotheses.size()];
+    for (int h = 0; h < hypotheses.size(); h++) {
+      hypothesisNodes[h] = insert(h);
+    }
+  }
+
+  private int insert(int hypothesis) {
+    List<String> words = hypotheses.get(hypothesis);
+    int node = 0;
+    for (int depth = 0; depth < words.size(); depth++) {
+      Map<String, Integer> nodeChildren = children.get(node);
+      if (nodeChildren == null) {
+        nodeChildren = new HashMap<String, Integer>();
+        children.set(node, nodeChildren);
+      }
+      Integer child = nodeChildren.get(words.get(depth));
+      if (child == null) {
+        child = addNode(node, depth + 1, hypothesis);
+        nodeChildren.put(words.get(depth), child);
+      }
+      node = child;
+    }
+    return node;
+  }
+
+  private int addNode(int parent, int depth, int hypothesis) {
+    if (numNodes == parents.length) {
+      parents = Arrays.copyOf(parents, 2 * numNodes);
+      depths = Arrays.copyOf(depths, 2 * numNodes);
+      pathHypotheses = Arrays.copyOf(pathHypotheses, 2 * numNodes);
+    }
+    parents[numNodes] = parent;
+    depths[numNodes] = depth;
+    pathHypotheses[numNodes] = hypothesis;
+    children.add(null);
+    return numNodes++;
+  }
+
+  /**
+   * The number of trie nodes, not counting the root.
+   */
+  public int getNumNodes() {
+    return numNodes - 1;
+  }
+
+  /**
+   * Scores every hypothesis with the language model, one word per trie node.
+   */
+  public void scoreLanguageModel() {
+    if (languageModel instanceof StatefulLanguageModel) {
+      scoreStatefulLanguageModel((StatefulLanguageModel) languageModel);
+      return;
+    }
+    double[] prefixScores = new double[numNodes];
+    for (int node = 1; node < numNodes; node++) {
+      List<String> path = hypotheses.get(pathHypotheses[node]);
+      prefixScores[node] = prefixScores[parents[node]] + languageModel.getWordLogProbability(path, depths[node] - 1);
+    }
+    languageModelScores = new double[hypotheses.size()];
+    for (int h = 0; h < hypotheses.size(); h++) {
+      List<String> hypothesis = hypotheses.get(h);
+      languageModelScores[h] = prefixScores[hypothesisNodes[h]] + languageModel.getWordLogProbability(hypothesis, hypothesis.size());
+    }
+  }
+
+  // each node extends its parent's history state by its word
+  private void scoreStatefulLanguageModel(StatefulLanguageModel model) {
+    StringIndexer vocabulary = model.getVocabulary();
+    double[] prefixScores = new double[numNodes];
+    LanguageModelState[] states = new LanguageModelState[numNodes];
+    states[0] = model.beginSentence();
+    for (int node = 1; node < numNodes; node++) {
+      int wordId = vocabulary.indexOf(hypotheses.get(pathHypotheses[node]).get(depths[node] - 1));
+      states[node] = new LanguageModelState();
+      prefixScores[node] = prefixScores[parents[node]] + model.score(states[parents[node]], wordId, states[node]);
+    }
+    LanguageModelState endState = new LanguageModelState();
+    languageModelScores = new double[hypotheses.size()];
+    for (int h = 0; h < hypotheses.size(); h++) {
+      int node = hypothesisNodes[h];
+      languageModelScores[h] = prefixScores[node] + model.score(states[node], model.getEndOfSentenceId(), endState);
+    }
+  }
+
+  /**
+   * Computes the edit distance of every hypothesis from the correct sentence,
+   * one dynamic programming row per trie node.
+   */
+  public void scoreEditDistance() {
+    List<String> correctSentence = speechNBestList.getCorrectSentence();
+    int length = correctSentence.size();
+    int[][] rows = new int[numNodes][];
+    rows[0] = new int[length + 1];
+    for (int j = 0; j <= length; j++) {
+      rows[0][j] = j;
+    }
+    for (int node = 1; node < numNodes; node++) {
+      int[] parentRow = rows[parents[node]];
+      int[] row = new int[length + 1];
+      String word = hypotheses.get(pathHypotheses[node]).get(depths[node] - 1);
+      row[0] = parentRow[0] + 1;
+      for (int j = 1; j <= length; j++) {
+        int distance = Math.min(parentRow[j], row[j - 1]) + 1;
+        int diagonal = parentRow[j - 1] + (word.equals(correctSentence.get(j - 1)) ? 0 : 1);
+        row[j] = Math.min(distance, diagonal);
+      }
+      rows[node] = row;
+    }
+    distances = new double[hypotheses.size()];
+    for (int h = 0; h < hypotheses.size(); h++) {
+      distances[h] = rows[hypothesisNodes[h]][length];
+    }
+  }
+
+  /**
+   * The language model log probability of the given hypothesis, from the
+   * cache if it is in the n-best list.
+   */
+  public double getLanguageModelScore(List<String> sentence) {
+    int h = indexOf(sentence);
+    if (h < 0 || languageModelScores == null)
+      return languageModel.getSentenceLogProbability(sentence);
+    return languageModelScores[h];
+  }
+
+  public double getLanguageModelScore(int hypothesis) {
+    return languageModelScores[hypothesis];
+  }
+
+  public double getDistance(int hypothesis) {
+    return distances[hypothesis];
+  }
+
+  /**
+   * The combined score the harness ranks hypotheses by: language model log
+   * probability plus the acoustic score over 16.
+   */
+  public double getScore(int hypothesis) {
+    return languageModelScores[hypothesis] + (speechNBestList.getAcousticScore(hypotheses.get(hypothesis)) / 16.0);
+  }
+
+  // the position of the sentence in the n-best list, found by walking the trie
+  private int indexOf(List<String> sentence) {
+    int node = 0;
+    for (String word : sentence) {
+      Map<String, Integer> nodeChildren = children.get(node);
+      Integer child = (nodeChildren == null ? null : nodeChildren.get(word));
+      if (child == null)
+        return -1;
+      node = child;
+    }
+    for (int h = 0; h < hypotheses.size(); h++) {
+      if (hypothesisNodes[h] == node)
+        return h;
+    }
+    return -1;
+  }
+}
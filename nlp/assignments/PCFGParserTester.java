@@ -14,6 +14,9 @@ import nlp.util.*;
  */
 public class PCFGParserTester {
 
+  // per-sentence and per-component timings, reported after testing
+  static final MetricsRegistry metrics = new MetricsRegistry();
+
   /**
    * Parsers are required to map sentences to trees.  How a parser is constructed and trained is not specified.
    */
@@ -32,13 +35,19 @@ public class PCFGParserTester {
     Lexicon lexicon;
 
     public Tree<String> getBestParse(List<String> sentence) {
+      MetricsRegistry.Timer tagTimer = metrics.timer("parser.tag");
+      long start = tagTimer.start();
       List<String> tags = getBaselineTagging(sentence);
+      tagTimer.stop(start);
+      MetricsRegistry.Timer treeTimer = metrics.timer("parser.tree");
+      start = treeTimer.start();
       Tree<String> annotatedBestParse = null;
       if (knownParses.keySet().contains(tags)) {
         annotatedBestParse = getBestKnownParse(tags);
       } else {
         annotatedBestParse = buildRightBranchParse(sentence, tags);
       }
+      treeTimer.stop(start);
       return TreeAnnotations.unAnnotateTree(annotatedBestParse);
     }
 
@@ -199,7 +208,7 @@ public class PCFGParserTester {
    * P(tag|word)/P(tag).
    */
   static class Lexicon {
-    CounterMap<String, String> wordToTagCounters = new CounterMap<String, String>();
+    FrozenCounterMap<String, String> wordToTagCounters;
     double totalTokens = 0.0;
     double totalWordTypes = 0.0;
     Counter<String> tagCounter = new Counter<String>();
@@ -228,18 +237,21 @@ public class PCFGParserTester {
     }
 
     public Lexicon(List<Tree<String>> trainTrees) {
+      CounterMap<String, String> wordToTagCounts = new CounterMap<String, String>();
       for (Tree<String> trainTree : trainTrees) {
         List<String> words = trainTree.getYield();
         List<String> tags = trainTree.getPreTerminalYield();
         for (int position = 0; position < words.size(); position++) {
           String word = words.get(position);
           String tag = tags.get(position);
-          tallyTagging(word, tag);
+          tallyTagging(word, tag, wordToTagCounts);
         }
       }
+      // only read from here on
+      wordToTagCounters = wordToTagCounts.freeze();
     }
 
-    private void tallyTagging(String word, String tag) {
+    private void tallyTagging(String word, String tag, CounterMap<String, String> wordToTagCounts) {
       if (!isKnown(word)) {
         totalWordTypes += 1.0;
         typeTagCounter.incrementCount(tag, 1.0);
@@ -247,7 +259,7 @@ public class PCFGParserTester {
       totalTokens += 1.0;
       tagCounter.incrementCount(tag, 1.0);
       wordCounter.incrementCount(word, 1.0);
-      wordToTagCounters.incrementCount(word, tag, 1.0);
+      wordToTagCounts.incrementCount(word, tag, 1.0);
     }
   }
 
@@ -690,9 +702,15 @@ public class PCFGParserTester {
 
   private static void testParser(Parser parser, List<Tree<String>> testTrees, boolean verbose) {
     EnglishPennTreebankParseEvaluator.LabeledConstituentEval<String> eval = new EnglishPennTreebankParseEvaluator.LabeledConstituentEval<String>(Collections.singleton("ROOT"), new HashSet<String>(Arrays.asList(new String[]{"''", "``", ".", ":", ","})));
+    metrics.reset();
+    MetricsRegistry.Timer sentenceTimer = metrics.timer("parser.sentence");
+    MetricsRegistry.Meter wordMeter = metrics.meter("parser.words");
     for (Tree<String> testTree : testTrees) {
       List<String> testSentence = testTree.getYield();
+      long start = sentenceTimer.start();
       Tree<String> guessedTree = parser.getBestParse(testSentence);
+      sentenceTimer.stop(start);
+      wordMeter.add(testSentence.size());
       if (verbose) {
         System.out.println("Guess:\n" + Trees.PennTreeRenderer.render(guessedTree));
         System.out.println("Gold:\n" + Trees.PennTreeRenderer.render(testTree));
@@ -700,6 +718,7 @@ public class PCFGParserTester {
       eval.evaluate(guessedTree, testTree);
     }
     eval.display(true);
+    System.out.print(metrics.report());
   }
 
   private static List<Tree<String>> readTrees(String basePath, int low, int high, int maxLength) {
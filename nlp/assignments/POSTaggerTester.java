@@ -1,6 +1,8 @@
 package nlp.assignments;
 
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
 
 import nlp.io.PennTreebankReader;
@@ -18,6 +20,9 @@ public class POSTaggerTester {
   static final String START_TAG = "<S>";
   static final String STOP_TAG = "</S>";
 
+  // per-sentence and per-component timings, reported after evaluation
+  static final MetricsRegistry metrics = new MetricsRegistry();
+
   /**
    * Tagged sentences are a bundling of a list of words and a list of their
    * tags.
@@ -86,13 +91,20 @@ public class POSTaggerTester {
    */
   static class State {
 
-    private static transient Interner<State> stateInterner = new Interner<State>(new Interner.CanonicalFactory<State>() {
+    // shared by all tagging threads; bounded so a long-running tagger does not
+    // keep every state it has ever seen (states are compared with equals())
+    private static transient Interner<State> stateInterner = new ConcurrentInterner<State>(new Interner.CanonicalFactory<State>() {
       public State build(State state) {
         return new State(state);
       }
-    });
+    }, 1 << 20);
 
-    private static transient State tempState = new State();
+    // each thread probes the interner with its own scratch state
+    private static final ThreadLocal<State> tempState = new ThreadLocal<State>() {
+      protected State initialValue() {
+        return new State();
+      }
+    };
 
     public static State getStartState() {
       return buildState(START_TAG, START_TAG, 0);
@@ -103,8 +115,9 @@ public class POSTaggerTester {
     }
 
     public static State buildState(String previousPreviousTag, String previousTag, int position) {
-      tempState.setState(previousPreviousTag, previousTag, position);
-      return stateInterner.intern(tempState);
+      State probe = tempState.get();
+      probe.setState(previousPreviousTag, previousTag, position);
+      return stateInterner.intern(probe);
     }
 
     public static List<String> toTagList(List<State> states) {
@@ -408,8 +421,14 @@ public class POSTaggerTester {
 
     // to tag a sentence: build its trellis and find a path through that trellis
     public List<String> tag(List<String> sentence) {
+      MetricsRegistry.Timer trellisTimer = metrics.timer("tagger.trellis");
+      long start = trellisTimer.start();
       Trellis<State> trellis = buildTrellis(sentence);
+      trellisTimer.stop(start);
+      MetricsRegistry.Timer decodeTimer = metrics.timer("tagger.decode");
+      start = decodeTimer.start();
       List<State> states = trellisDecoder.getBestPath(trellis);
+      decodeTimer.stop(start);
       List<String> tags = State.toTagList(states);
       tags = stripBoundaryTags(tags);
       return tags;
@@ -606,13 +625,54 @@ public class POSTaggerTester {
 	static class HMMTrigramTagScorer implements LocalTrigramScorer {
 		
 		CounterMap<String,String> wordsToTags = new CounterMap<String,String>();
-		CounterMap<String,String> tagsToWords = new CounterMap<String,String>();
-		CounterMap<String,String> tagBigramCounterMap = new CounterMap<String,String>();
-		CounterMap<String,String> tagTrigramCounterMap = new CounterMap<String,String>();
+		// read-only after training, so these are kept in frozen form
+		FrozenCounterMap<String,String> tagsToWords;
+		FrozenCounterMap<String,String> tagBigramCounterMap;
+		FrozenCounterMap<String,String> tagTrigramCounterMap;
 		
 		Counter<String> unknownWordTags = new Counter<String>();
-    Set<String> seenTagTrigrams = new HashSet<String>();
-    Set<String> seenTagBigrams = new HashSet<String>();
+    // only added to and looked up in, so a loaded snapshot can serve them mapped
+    Collection<String> seenTagTrigrams = new HashSet<String>();
+    Collection<String> seenTagBigrams = new HashSet<String>();
+
+    static final String[] SNAPSHOT_FILES = {"wordsToTags", "tagsToWords", "tagBigrams", "tagTrigrams",
+        "unknownWordTags", "seenTagBigrams", "seenTagTrigrams"};
+
+    static boolean hasSnapshot(File dir) {
+      for (String name : SNAPSHOT_FILES) {
+        if (!new File(dir, name).exists())
+          return false;
+      }
+      return true;
+    }
+
+    /**
+     * Writes the trained tables as Snapshots files in the directory.
+     */
+    public void save(File dir) throws IOException {
+      dir.mkdirs();
+      Snapshots.writeCounterMap(wordsToTags, new File(dir, "wordsToTags"));
+      Snapshots.writeFrozenCounterMap(tagsToWords, new File(dir, "tagsToWords"));
+      Snapshots.writeFrozenCounterMap(tagBigramCounterMap, new File(dir, "tagBigrams"));
+      Snapshots.writeFrozenCounterMap(tagTrigramCounterMap, new File(dir, "tagTrigrams"));
+      Snapshots.writeCounter(unknownWordTags, new File(dir, "unknownWordTags"));
+      Snapshots.writeIndexer(seenTagBigrams, new File(dir, "seenTagBigrams"));
+      Snapshots.writeIndexer(seenTagTrigrams, new File(dir, "seenTagTrigrams"));
+    }
+
+    /**
+     * Replaces the trained tables with those saved by save().  The frozen
+     * maps and seen tag sets are looked up in the mapped files directly.
+     */
+    public void load(File dir) throws IOException {
+      wordsToTags = Snapshots.readCounterMap(new File(dir, "wordsToTags"));
+      tagsToWords = Snapshots.readFrozenCounterMap(new File(dir, "tagsToWords"));
+      tagBigramCounterMap = Snapshots.readFrozenCounterMap(new File(dir, "tagBigrams"));
+      tagTrigramCounterMap = Snapshots.readFrozenCounterMap(new File(dir, "tagTrigrams"));
+      unknownWordTags = Snapshots.readCounter(new File(dir, "unknownWordTags"));
+      seenTagBigrams = Snapshots.mapIndexer(new File(dir, "seenTagBigrams"));
+      seenTagTrigrams = Snapshots.mapIndexer(new File(dir, "seenTagTrigrams"));
+    }
     
     public int getHistorySize() {
       return 2;
@@ -637,8 +697,7 @@ public class POSTaggerTester {
       	double logScore = 0.0;
       	String tagTrigram = makeTrigramString(previousPreviousTag, previousTag, tag);
       	if (knownWord) {
-	      	Counter<String> emissionCounter = tagsToWords.getCounter(tag);
-	      	emissionProb = emissionCounter.getCount(word);
+	      	emissionProb = tagsToWords.getCount(tag, word);
 	      	if (emissionProb == 0.0) {System.out.println("emiterr: " + word);}
 	      	if (allowedFollowingTags.contains(tag)) {
 	      		transitionProb = tagTrigramCounterMap.getCount(previousTwoTags, tag);
@@ -682,27 +741,31 @@ public class POSTaggerTester {
     }
 
 		public void train(List<LabeledLocalTrigramContext> labeledLocalTrigramContexts) {
+      LongCounterMap<String,String> wordsToTagCounts = new LongCounterMap<String,String>();
+      LongCounterMap<String,String> tagsToWordCounts = new LongCounterMap<String,String>();
+      LongCounterMap<String,String> tagBigramCounts = new LongCounterMap<String,String>();
+      LongCounterMap<String,String> tagTrigramCounts = new LongCounterMap<String,String>();
       // collect word-tag counts
       for (LabeledLocalTrigramContext labeledLocalTrigramContext : labeledLocalTrigramContexts) {
         String word = labeledLocalTrigramContext.getCurrentWord();
         String tag = labeledLocalTrigramContext.getCurrentTag();
         String previousTag = labeledLocalTrigramContext.getPreviousTag();
         String previousPreviousTag = labeledLocalTrigramContext.getPreviousPreviousTag();
-        if (!wordsToTags.keySet().contains(word)) {
+        if (!wordsToTagCounts.containsKey(word)) {
           // word is currently unknown, so tally its tag in the unknown tag counter
           unknownWordTags.incrementCount(tag, 1.0);
         }
-        wordsToTags.incrementCount(word, tag, 1.0);
-        tagsToWords.incrementCount(tag, word, 1.0);
-        tagBigramCounterMap.incrementCount(previousTag, tag, 1.0);
-        tagTrigramCounterMap.incrementCount(makeBigramString(previousPreviousTag, previousTag), tag, 1.0);
+        wordsToTagCounts.incrementCount(word, tag, 1.0);
+        tagsToWordCounts.incrementCount(tag, word, 1.0);
+        tagBigramCounts.incrementCount(previousTag, tag, 1.0);
+        tagTrigramCounts.incrementCount(makeBigramString(previousPreviousTag, previousTag), tag, 1.0);
         seenTagTrigrams.add(makeTrigramString(previousPreviousTag, previousTag, tag));
         seenTagBigrams.add(makeBigramString(previousTag, tag));
       }
-      wordsToTags = Counters.conditionalNormalize(wordsToTags);
-      tagsToWords = Counters.conditionalNormalize(tagsToWords);
-      tagBigramCounterMap = Counters.conditionalNormalize(tagBigramCounterMap);
-      tagTrigramCounterMap = Counters.conditionalNormalize(tagTrigramCounterMap);
+      wordsToTags = Counters.conditionalNormalize(wordsToTagCounts);
+      tagsToWords = Counters.conditionalNormalize(tagsToWordCounts).freeze();
+      tagBigramCounterMap = Counters.conditionalNormalize(tagBigramCounts).freeze();
+      tagTrigramCounterMap = Counters.conditionalNormalize(tagTrigramCounts).freeze();
       unknownWordTags = Counters.normalize(unknownWordTags);
 //      System.out.println(tagsToWords.keySet());
     }
@@ -733,10 +796,16 @@ public class POSTaggerTester {
     double numUnknownWords = 0.0;
     double numUnknownWordsCorrect = 0.0;
     int numDecodingInversions = 0;
+    metrics.reset();
+    MetricsRegistry.Timer sentenceTimer = metrics.timer("tagger.sentence");
+    MetricsRegistry.Meter wordMeter = metrics.meter("tagger.words");
     for (TaggedSentence taggedSentence : taggedSentences) {
       List<String> words = taggedSentence.getWords();
       List<String> goldTags = taggedSentence.getTags();
+      long start = sentenceTimer.start();
       List<String> guessedTags = posTagger.tag(words);
+      sentenceTimer.stop(start);
+      wordMeter.add(words.size());
       for (int position = 0; position < words.size() - 1; position++) {
         String word = words.get(position);
         String goldTag = goldTags.get(position);
@@ -759,6 +828,7 @@ public class POSTaggerTester {
       if (verbose) System.out.println(alignedTaggings(words, goldTags, guessedTags, true) + "\n");
     }
     System.out.println("Tag Accuracy: " + (numTagsCorrect / numTags) + " (Unknown Accuracy: " + (numUnknownWordsCorrect / numUnknownWords) + ")  Decoder Suboptimalities Detected: " + numDecodingInversions);
+    System.out.print(metrics.report());
   }
 
   // pretty-print a pair of taggings for a sentence, possibly suppressing the tags which correctly match
@@ -807,7 +877,7 @@ public class POSTaggerTester {
     return vocabulary;
   }
 
-  public static void main(String[] args) {
+  public static void main(String[] args) throws IOException {
     // Parse command line flags and arguments
     Map<String, String> argMap = CommandLineUtils.simpleCommandLineParser(args);
 
@@ -837,11 +907,23 @@ public class POSTaggerTester {
       verbose = true;
     }
 
+    // Load a snapshot of the trained tables from this directory, or train and
+    // write one there
+    File snapshotDir = null;
+    if (argMap.containsKey("-snapshot")) {
+      snapshotDir = new File(argMap.get("-snapshot"));
+    }
+    boolean loadSnapshot = (snapshotDir != null && HMMTrigramTagScorer.hasSnapshot(snapshotDir));
+
     // Read in data
-    System.out.print("Loading training sentences...");
-    List<TaggedSentence> trainTaggedSentences = readTaggedSentences(basePath, 200, 2199);
-    Set<String> trainingVocabulary = extractVocabulary(trainTaggedSentences);
-    System.out.println("done.");
+    List<TaggedSentence> trainTaggedSentences = null;
+    Set<String> trainingVocabulary = null;
+    if (!loadSnapshot) {
+      System.out.print("Loading training sentences...");
+      trainTaggedSentences = readTaggedSentences(basePath, 200, 2199);
+      trainingVocabulary = extractVocabulary(trainTaggedSentences);
+      System.out.println("done.");
+    }
     System.out.print("Loading validation sentences...");
     List<TaggedSentence> validationTaggedSentences = readTaggedSentences(basePath, 2200, 2299);
     System.out.println("done.");
@@ -850,13 +932,25 @@ public class POSTaggerTester {
     System.out.println("done.");
 
     // Construct tagger components
-    LocalTrigramScorer localTrigramScorer = new HMMTrigramTagScorer();
+    HMMTrigramTagScorer localTrigramScorer = new HMMTrigramTagScorer();
     // TODO : improve on the GreedyDecoder
     TrellisDecoder<State> trellisDecoder = new ViterbiDecoder<State>();
 
-    // Train tagger
+    // Train tagger, or load it
     POSTagger posTagger = new POSTagger(localTrigramScorer, trellisDecoder);
-    posTagger.train(trainTaggedSentences);
+    long start = System.nanoTime();
+    if (loadSnapshot) {
+      localTrigramScorer.load(snapshotDir);
+      trainingVocabulary = localTrigramScorer.wordsToTags.keySet();
+      System.out.printf("Loaded snapshot from %s in %.1f ms%n", snapshotDir, (System.nanoTime() - start) / 1e6);
+    } else {
+      posTagger.train(trainTaggedSentences);
+      System.out.printf("Trained in %.1f ms%n", (System.nanoTime() - start) / 1e6);
+      if (snapshotDir != null) {
+        localTrigramScorer.save(snapshotDir);
+        System.out.println("Wrote snapshot to " + snapshotDir);
+      }
+    }
     posTagger.validate(validationTaggedSentences);
 
     // Test tagger
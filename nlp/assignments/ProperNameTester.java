@@ -20,11 +20,12 @@ import nlp.classify.ProbabilisticClassifierFactory;
 import nlp.util.CommandLineUtils;
 import nlp.util.Counter;
 import nlp.util.CounterMap;
+import nlp.util.MetricsRegistry;
 
 /**
  * This is the main harness for assignment 2.  To run this harness, use
  * <p/>
- * java edu.berkeley.nlp.assignments.ProperNameTester -path ASSIGNMENT_DATA_PATH -model MODEL_DESCRIPTOR_STRING
+ * java edu.berkeley.nlp.assignments.ProperNameTester -path ASSIGNMENT_DATA_PATH -model MODEL_DESCRIPTOR_STRING [-threads N]
  * <p/>
  * First verify that the data can be read on your system using the baseline model.  Second, find the point in the main
  * method (near the bottom) where a MostFrequentLabelClassifier is constructed.  You will be writing new
@@ -32,6 +33,9 @@ import nlp.util.CounterMap;
  */
 public class ProperNameTester {
 
+  // per-instance and per-component timings, reported after testing
+  static final MetricsRegistry metrics = new MetricsRegistry();
+
   public static class ProperNameFeatureExtractor implements FeatureExtractor<String,String> {
 
     /**
@@ -247,11 +251,21 @@ public class ProperNameTester {
   	CounterMap<String,String> confusionmap = new CounterMap<String,String>();
   	List<String> categories = new ArrayList<String>();
   	CounterMap<Double,String> confidenceBin = new CounterMap<Double,String>();
+    metrics.reset();
+    MetricsRegistry.Timer instanceTimer = metrics.timer("classifier.instance");
+    MetricsRegistry.Timer labelTimer = metrics.timer("classifier.label");
+    MetricsRegistry.Timer probabilitiesTimer = metrics.timer("classifier.probabilities");
     for (LabeledInstance<String, String> testDatum : testData) {
+      long instanceStart = instanceTimer.start();
       String name = testDatum.getInput();
       String gold_label = testDatum.getLabel();
+      long start = labelTimer.start();
       String response_label = classifier.getLabel(name);
+      labelTimer.stop(start);
+      start = probabilitiesTimer.start();
       double confidence = classifier.getProbabilities(name).getCount(response_label);
+      probabilitiesTimer.stop(start);
+      instanceTimer.stop(instanceStart);
       if (response_label.equals(gold_label)) {
         confidenceBin.incrementCount(Math.ceil(confidence * 10), "Correct", 1.0);
       } else {
@@ -278,6 +292,7 @@ public class ProperNameTester {
     System.out.println("Accuracy: " + cm.totalAccuracy());
     printCM(cm, cats);
     printConfHist(confidenceBin);
+    System.out.print(metrics.report());
   }
 
   public static void main(String[] args) throws IOException {
@@ -289,6 +304,7 @@ public class ProperNameTester {
     String model = "baseline";
     boolean verbose = false;
     boolean useValidation = true;
+    int numThreads = 1;
 
     // Update defaults using command line specifications
 
@@ -317,6 +333,12 @@ public class ProperNameTester {
       verbose = true;
     }
 
+    // How many threads the character unigram model counts on; counts are
+    // integral, so results do not depend on it.
+    if (argMap.containsKey("-threads")) {
+      numThreads = Integer.parseInt(argMap.get("-threads"));
+    }
+
     // Load training, validation, and test data
     List<LabeledInstance<String, String>> trainingData = loadData(basePath + "/pnp-train.txt");
     List<LabeledInstance<String, String>> validationData = loadData(basePath + "/pnp-validate.txt");
@@ -330,7 +352,7 @@ public class ProperNameTester {
     if (model.equalsIgnoreCase("baseline")) {
       classifier = new MostFrequentLabelClassifier.Factory<String, String>().trainClassifier(trainingData);
     } else if (model.equalsIgnoreCase("n-gram")) {
-      ProbabilisticClassifierFactory<String,String> factory = new CharacterUnigramClassifier.Factory<String,String,String>(new ProperNameFeatureExtractor(nameDict, wordDict));
+      ProbabilisticClassifierFactory<String,String> factory = new CharacterUnigramClassifier.Factory<String,String,String>(new ProperNameFeatureExtractor(nameDict, wordDict), numThreads);
       classifier = factory.trainClassifier(trainingData);
     } else if (model.equalsIgnoreCase("maxent")) {
       ProbabilisticClassifierFactory<String,String> factory = new MaximumEntropyClassifier.Factory<String,String,String>(1.0, 40, new ProperNameFeatureExtractor(nameDict, wordDict));
@@ -0,0 +1,253 @@
+package nlp.assignments;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import nlp.langmodel.LanguageModel;
+import nlp.util.CountMinSketch;
+import nlp.util.StringIndexer;
+
+/**
+ * The interpolated trigram model of InterpolatedTrigramLanguageModel, trained
+ * in one pass over its sentences with bigram and trigram counts kept in
+ * Count-Min sketches of fixed size, so memory does not grow with the number
+ * of distinct n-grams.  Only the vocabulary and a count per word are exact.
+ * Sketch counts can only be overestimates; trigram counts are capped by
+ * their bigram count and bigram counts by their history count, so every
+ * conditional estimate stays a probability.  With sketches wide enough to
+ * have no collisions the model scores exactly as InterpolatedTrigramLanguageModel.
+ */
+class SketchTrigramLanguageModel implements LanguageModel {
+
+  static final String STOP = "</S>";
+  static final String START = "<S>";
+
+  /** Word ids are packed three to a long in sketch keys. */
+  static final int BITS_PER_WORD = 21;
+
+  double lambda3 = 0.7;
+  double lambda2 = 0.2;
+  double lambda1 = 0.1;
+
+  double wordCount = 0.0;
+  double vocabSize = 0.0;
+  double sentenceCount = 0.0;
+
+  final StringIndexer vocabulary = new StringIndexer();
+  // c(w .), the count of each word as a context
+  int[] historyCounts = new int[1024];
+  final CountMinSketch bigramCounts;
+  final CountMinSketch trigramCounts;
+  int startId;
+  int stopId;
+  // each thread's running totals for generateSentence(), one per word
+  private final ThreadLocal<double[]> sampleWeights = new ThreadLocal<double[]>() {
+    protected double[] initialValue() {
+      return new double[vocabulary.size()];
+    }
+  };
+
+  private static long pack(int id1, int id2) {
+    return ((long) id1 << BITS_PER_WORD) | id2;
+  }
+
+  private static long pack(int id1, int id2, int id3) {
+    return ((long) id1 << (2 * BITS_PER_WORD)) | ((long) id2 << BITS_PER_WORD) | id3;
+  }
+
+  private void addSentence(List<String> sentence, int[] ids) {
+    int length = 0;
+    ids[length++] = startId;
+    for (String word : sentence) {
+      ids[length++] = vocabulary.addAndGetIndex(word);
+    }
+    ids[length++] = stopId;
+    if (vocabulary.size() > (1 << BITS_PER_WORD))
+      throw new IllegalStateException("SketchTrigramLanguageModel supports at most " + (1 << BITS_PER_WORD) + " words");
+    if (historyCounts.length < vocabulary.size())
+      historyCounts = Arrays.copyOf(historyCounts, Math.max(vocabulary.size(), 2 * historyCounts.length));
+    for (int i = 0; i + 1 < length; i++) {
+      historyCounts[ids[i]]++;
+      bigramCounts.add(pack(ids[i], ids[i + 1]));
+      if (i + 2 < length)
+        trigramCounts.add(pack(ids[i], ids[i + 1], ids[i + 2]));
+    }
+    sentenceCount++;
+  }
+
+  double trueUnigramCount(int id) {
+    if (id == stopId) { return sentenceCount; }
+    return (id < 0 ? 0 : historyCounts[id]);
+  }
+
+  double unigramProb(int id) {
+    return trueUnigramCount(id) / wordCount;
+  }
+
+  double bigramCount(int id1, int id2) {
+    if (id1 < 0 || id2 < 0)
+      return 0;
+    return Math.min(bigramCounts.estimate(pack(id1, id2)), trueUnigramCount(id1));
+  }
+
+  double condTrigramProb(int id1, int id2, int id3) {
+    double bicount = bigramCount(id1, id2);
+    if (bicount > 0) {
+      double tricount = (id3 < 0 ? 0 : Math.min(trigramCounts.estimate(pack(id1, id2, id3)), bicount));
+      return tricount / bicount;
+    }
+    else { return 1 / vocabSize; }
+  }
+
+  double p_interp(int id1, int id2, int id3) {
+    double bigramProb = bigramCount(id2, id3) / trueUnigramCount(id2);
+    return (lambda3 * condTrigramProb(id1, id2, id3)) + (lambda2 * bigramProb) +
+        (lambda1 * unigramProb(id3));
+  }
+
+  // the id of the index-th word of the sentence padded with START and STOP
+  private int paddedId(List<String> sentence, int index) {
+    if (index == 0) { return startId; }
+    return (index <= sentence.size() ? vocabulary.indexOf(sentence.get(index-1)) : stopId);
+  }
+
+  // index is a position in the padded sentence
+  double getP_interp(List<String> sentence, int index) {
+    return p_interp(paddedId(sentence, index), paddedId(sentence, index+1), paddedId(sentence, index+2));
+  }
+
+  public double getSentenceProbability(List<String> sentence) {
+    double probability = 1.0;
+    for (int index = 0; index < sentence.size(); index++) {
+      probability *= getP_interp(sentence, index);
+    }
+    return probability;
+  }
+
+  public double getSentenceLogProbability(List<String> sentence) {
+    double logProbability = 0.0;
+    for (int index = 0; index < sentence.size(); index++) {
+      logProbability += Math.log(getP_interp(sentence, index));
+    }
+    return logProbability;
+  }
+
+  // the first word is not scored, as in getSentenceLogProbability
+  public double getWordLogProbability(List<String> sentence, int index) {
+    return (index == 0 ? 0.0 : Math.log(getP_interp(sentence, index-1)));
+  }
+
+  public StringIndexer getVocabulary() {
+    return vocabulary;
+  }
+
+  // like getSentenceLogProbability, scores every word but the first
+  public double[] getSentenceLogProbabilities(int[][] sentences) {
+    double[] logProbabilities = new double[sentences.length];
+    for (int i = 0; i < sentences.length; i++) {
+      int[] sentence = sentences[i];
+      double logProbability = 0.0;
+      int id1 = startId;
+      int id2 = (sentence.length > 0 ? sentence[0] : stopId);
+      for (int index = 1; index <= sentence.length; index++) {
+        int id3 = (index < sentence.length ? sentence[index] : stopId);
+        logProbability += Math.log(p_interp(id1, id2, id3));
+        id1 = id2;
+        id2 = id3;
+      }
+      logProbabilities[i] = logProbability;
+    }
+    return logProbabilities;
+  }
+
+  public List<String> generateSentence() {
+    return generateSentence(new SplittableRandom());
+  }
+
+  /**
+   * Draws the first word from the bigram counts after START, as the exact
+   * model does, and later words from p_interp.  A sketch cannot list the
+   * n-grams it holds, so unlike the NgramStore models each word costs a pass
+   * over the vocabulary; the pass reuses a per-thread array and allocates
+   * nothing.
+   */
+  public List<String> generateSentence(SplittableRandom random) {
+    List<String> sentence = new ArrayList<String>();
+    double[] weights = sampleWeights.get();
+    int id1 = -1;
+    int id2 = startId;
+    while (true) {
+      double total = 0.0;
+      for (int id = 0; id < weights.length; id++) {
+        double weight = 0.0;
+        if (id != startId)
+          weight = (id1 < 0 ? bigramCount(id2, id) : p_interp(id1, id2, id));
+        total += weight;
+        weights[id] = total;
+      }
+      if (!(total > 0))
+        return sentence;
+      // the first word whose running total exceeds the draw
+      double draw = random.nextDouble() * total;
+      int low = 0;
+      int high = weights.length - 1;
+      while (low < high) {
+        int middle = (low + high) >>> 1;
+        if (weights[middle] > draw)
+          high = middle;
+        else
+          low = middle + 1;
+      }
+      int word = low;
+      if (word == stopId)
+        return sentence;
+      sentence.add(vocabulary.get(word));
+      id1 = id2;
+      id2 = word;
+    }
+  }
+
+  /**
+   * Bytes held by the model: the sketches and per-word counts, not the
+   * vocabulary strings.
+   */
+  public long byteSize() {
+    return bigramCounts.byteSize() + trigramCounts.byteSize() + 4L * historyCounts.length;
+  }
+
+  /**
+   * A model whose sketches have the given depth and share budgetBytes, a
+   * third for bigrams and two thirds for the more numerous trigrams.
+   */
+  public SketchTrigramLanguageModel(Iterable<List<String>> trainingSet, Iterable<List<String>> validSet, long budgetBytes, int depth) {
+    this(trainingSet, validSet, CountMinSketch.withBudget(budgetBytes / 3, depth), CountMinSketch.withBudget(budgetBytes - budgetBytes / 3, depth));
+  }
+
+  public SketchTrigramLanguageModel(Iterable<List<String>> trainingSet, Iterable<List<String>> validSet, CountMinSketch bigramCounts, CountMinSketch trigramCounts) {
+    this.bigramCounts = bigramCounts;
+    this.trigramCounts = trigramCounts;
+    startId = vocabulary.addAndGetIndex(START);
+    stopId = vocabulary.addAndGetIndex(STOP);
+    int[] ids = new int[64];
+    for (Iterable<List<String>> sentences : Arrays.asList(trainingSet, validSet)) {
+      for (List<String> sentence : sentences) {
+        if (ids.length < sentence.size() + 2)
+          ids = new int[2 * (sentence.size() + 2)];
+        addSentence(sentence, ids);
+      }
+    }
+    int numContexts = 0;
+    for (int id = 0; id < vocabulary.size(); id++) {
+      if (historyCounts[id] > 0)
+        numContexts++;
+    }
+    // the exact model normalizes unigrams by the total bigram count too
+    wordCount = bigramCounts.getTotalCount();
+    vocabSize = numContexts + 1;
+    System.out.println("Wordcount:  "+wordCount);
+    System.out.println("Vocabsize:  "+vocabSize);
+    System.out.println("Sketches:  depth "+bigramCounts.getDepth()+", widths "+bigramCounts.getWidth()+" / "+trigramCounts.getWidth()+", "+byteSize()+" bytes");
+  }
+}
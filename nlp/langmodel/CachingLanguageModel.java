@@ -0,0 +1,173 @@
+package nlp.langmodel;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.SplittableRandom;
+
+import nlp.util.LongDoubleCache;
+import nlp.util.StringIndexer;
+
+/**
+ * Wraps a language model with a bounded cache of its word log probabilities,
+ * which may be shared by any number of threads.  A word's entry is keyed by
+ * the vocabulary ids of the word and the two words before it, with the
+ * number of those history words that exist (0 to 2) packed into the key.
+ * This is exact for every model whose word probabilities depend on at most
+ * the two previous words, as with all the n-gram models up to trigrams.
+ * Vocabulary ids beyond what fits in a key are scored without the cache.
+ * Sentence scores are sums of the cached word scores, in the same order as
+ * the wrapped model sums them, so they are the same to the bit.
+ */
+public class CachingLanguageModel implements LanguageModel {
+
+  static final int BITS_PER_WORD = 20;
+  // word code of the stop symbol; other words are coded as id + 1, so unknown words are 0
+  static final long STOP_CODE = (1L << BITS_PER_WORD) - 1;
+  // no log probability is +infinity, so it marks a missing entry
+  static final double ABSENT = Double.POSITIVE_INFINITY;
+
+  final LanguageModel model;
+  final StringIndexer vocabulary;
+  final LongDoubleCache cache;
+  // a word the vocabulary lacks, standing in for id -1
+  final String unknownWord;
+
+  /**
+   * A read-only view of an array of token ids as words.
+   */
+  class IdSentence extends AbstractList<String> implements RandomAccess {
+    final int[] ids;
+
+    IdSentence(int[] ids) {
+      this.ids = ids;
+    }
+
+    public String get(int index) {
+      return (ids[index] < 0 ? unknownWord : vocabulary.get(ids[index]));
+    }
+
+    public int size() {
+      return ids.length;
+    }
+  }
+
+  // the cache key for a word with the given history, or -1 if an id does not fit
+  static long key(int historyLength, int id1, int id2, long wordCode) {
+    if (id1 + 1 >= STOP_CODE || id2 + 1 >= STOP_CODE || wordCode > STOP_CODE)
+      return -1L;
+    return ((long) historyLength << (3 * BITS_PER_WORD))
+        | ((long) (id1 + 1) << (2 * BITS_PER_WORD))
+        | ((long) (id2 + 1) << BITS_PER_WORD)
+        | wordCode;
+  }
+
+  // the key for the index-th word of a sentence of word ids
+  static long key(int[] ids, int index) {
+    int historyLength = Math.min(index, 2);
+    int id1 = (historyLength == 2 ? ids[index - 2] : -1);
+    int id2 = (historyLength >= 1 ? ids[index - 1] : -1);
+    long wordCode = (index == ids.length ? STOP_CODE : ids[index] + 1L);
+    return key(historyLength, id1, id2, wordCode);
+  }
+
+  public double getSentenceProbability(List<String> sentence) {
+    return model.getSentenceProbability(sentence);
+  }
+
+  public List<String> generateSentence() {
+    return model.generateSentence();
+  }
+
+  public List<String> generateSentence(SplittableRandom random) {
+    return model.generateSentence(random);
+  }
+
+  public double getSentenceLogProbability(List<String> sentence) {
+    int[] ids = toIds(sentence);
+    double logProbability = 0.0;
+    for (int index = 0; index <= ids.length; index++) {
+      logProbability += getWordLogProbability(sentence, ids, index);
+    }
+    return logProbability;
+  }
+
+  public double getWordLogProbability(List<String> sentence, int index) {
+    int historyLength = Math.min(index, 2);
+    int id1 = (historyLength == 2 ? vocabulary.indexOf(sentence.get(index - 2)) : -1);
+    int id2 = (historyLength >= 1 ? vocabulary.indexOf(sentence.get(index - 1)) : -1);
+    long wordCode = (index == sentence.size() ? STOP_CODE : vocabulary.indexOf(sentence.get(index)) + 1L);
+    return cachedWordLogProbability(key(historyLength, id1, id2, wordCode), sentence, index);
+  }
+
+  private double getWordLogProbability(List<String> sentence, int[] ids, int index) {
+    return cachedWordLogProbability(key(ids, index), sentence, index);
+  }
+
+  private double cachedWordLogProbability(long key, List<String> sentence, int index) {
+    if (key < 0)
+      return model.getWordLogProbability(sentence, index);
+    double logProbability = cache.get(key, ABSENT);
+    if (logProbability == ABSENT) {
+      logProbability = model.getWordLogProbability(sentence, index);
+      cache.put(key, logProbability);
+    }
+    return logProbability;
+  }
+
+  public StringIndexer getVocabulary() {
+    return vocabulary;
+  }
+
+  public double[] getSentenceLogProbabilities(int[][] sentences) {
+    double[] logProbabilities = new double[sentences.length];
+    for (int i = 0; i < sentences.length; i++) {
+      int[] ids = sentences[i];
+      List<String> sentence = new IdSentence(ids);
+      double logProbability = 0.0;
+      for (int index = 0; index <= ids.length; index++) {
+        logProbability += getWordLogProbability(sentence, ids, index);
+      }
+      logProbabilities[i] = logProbability;
+    }
+    return logProbabilities;
+  }
+
+  private int[] toIds(List<String> sentence) {
+    int[] ids = new int[sentence.size()];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = vocabulary.indexOf(sentence.get(i));
+    }
+    return ids;
+  }
+
+  /**
+   * The cache, whose hit and miss counts can be read for monitoring.
+   */
+  public LongDoubleCache getCache() {
+    return cache;
+  }
+
+  public LanguageModel getModel() {
+    return model;
+  }
+
+  public CachingLanguageModel(LanguageModel model, int capacity) {
+    this(model, new LongDoubleCache(capacity));
+  }
+
+  /**
+   * Wraps the model with the given cache, which must not be used for
+   * anything else.
+   */
+  public CachingLanguageModel(LanguageModel model, LongDoubleCache cache) {
+    this.model = model;
+    this.vocabulary = model.getVocabulary();
+    this.cache = cache;
+    String word = "<UNK>";
+    while (vocabulary.contains(word)) {
+      word = "<" + word + ">";
+    }
+    unknownWord = word;
+  }
+}
@@ -0,0 +1,200 @@
+package nlp.langmodel;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractCollection;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+import nlp.util.FrozenStringIndexer;
+import nlp.util.StringIndexer;
+
+/**
+ * A tokenized corpus compiled to a flat file of word ids, which is
+ * memory-mapped rather than parsed.  The file (all ints big-endian) is:
+ * <pre>
+ *   MAGIC, VERSION, numSentences, numTokens
+ *   vocabulary               a FrozenStringIndexer, padded to 4 bytes
+ *   offsets[numSentences + 1] start of each sentence in tokens
+ *   tokens[numTokens]        word ids
+ * </pre>
+ * As a Collection, a CompiledCorpus holds its sentences in order; size() is
+ * a field read, and each sentence is a read-only List view over its range of
+ * ids, whose words are decoded once per vocabulary entry rather than once
+ * per token.  Iterating again costs no parsing or string building.  Code
+ * which wants to change a sentence (replacing unknown words, say) must copy
+ * it first.  Write one with compile().
+ */
+public class CompiledCorpus extends AbstractCollection<List<String>> {
+
+  static final int MAGIC = 0x4E4C5043; // "NLPC"
+  static final int VERSION = 1;
+
+  final FrozenStringIndexer vocabulary;
+  final IntBuffer offsets;
+  final IntBuffer tokens;
+  final int numSentences;
+
+  /**
+   * A read-only view of one sentence.
+   */
+  class Sentence extends AbstractList<String> implements RandomAccess {
+    final int start;
+    final int size;
+
+    Sentence(int sentence) {
+      start = offsets.get(sentence);
+      size = offsets.get(sentence + 1) - start;
+    }
+
+    public String get(int index) {
+      return vocabulary.get(getTokenId(index));
+    }
+
+    public int getTokenId(int index) {
+      if (index < 0 || index >= size)
+        throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+      return tokens.get(start + index);
+    }
+
+    public int size() {
+      return size;
+    }
+  }
+
+  /**
+   * Writes the sentences, in order, to a compiled corpus file.
+   */
+  public static void compile(Iterable<List<String>> sentences, File file) throws IOException {
+    StringIndexer strings = new StringIndexer();
+    int[] offsets = new int[1024];
+    int[] tokens = new int[1 << 16];
+    int numSentences = 0;
+    int numTokens = 0;
+    for (List<String> sentence : sentences) {
+      if (numSentences + 1 == offsets.length)
+        offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+      if (numTokens + sentence.size() > tokens.length)
+        tokens = Arrays.copyOf(tokens, Math.max(2 * tokens.length, numTokens + sentence.size()));
+      for (String word : sentence) {
+        tokens[numTokens++] = strings.addAndGetIndex(word);
+      }
+      offsets[++numSentences] = numTokens;
+    }
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(numSentences);
+      out.writeInt(numTokens);
+      strings.freeze().write(out);
+      while (out.size() % 4 != 0) {
+        out.writeByte(0);
+      }
+      for (int i = 0; i <= numSentences; i++) {
+        out.writeInt(offsets[i]);
+      }
+      for (int i = 0; i < numTokens; i++) {
+        out.writeInt(tokens[i]);
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Memory-maps a file written by compile().
+   */
+  public CompiledCorpus(File file) throws IOException {
+    ByteBuffer buffer;
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      raf.close();
+    }
+    if (buffer.getInt() != MAGIC)
+      throw new IOException("Not a compiled corpus: " + file);
+    int version = buffer.getInt();
+    if (version != VERSION)
+      throw new IOException("Unsupported compiled corpus version " + version + ": " + file);
+    numSentences = buffer.getInt();
+    int numTokens = buffer.getInt();
+    vocabulary = new FrozenStringIndexer(buffer);
+    buffer.position((buffer.position() + vocabulary.byteSize() + 3) & ~3);
+    offsets = slice(buffer, numSentences + 1);
+    tokens = slice(buffer, numTokens);
+  }
+
+  private static IntBuffer slice(ByteBuffer buffer, int length) {
+    ByteBuffer view = buffer.slice();
+    view.limit(4 * length);
+    buffer.position(buffer.position() + 4 * length);
+    return view.asIntBuffer();
+  }
+
+  public Iterator<List<String>> iterator() {
+    return new Iterator<List<String>>() {
+      int next = 0;
+
+      public boolean hasNext() {
+        return next < numSentences;
+      }
+
+      public List<String> next() {
+        if (next >= numSentences)
+          throw new NoSuchElementException();
+        return new Sentence(next++);
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  public int size() {
+    return numSentences;
+  }
+
+  /**
+   * A read-only view of the given sentence.
+   */
+  public List<String> getSentence(int sentence) {
+    if (sentence < 0 || sentence >= numSentences)
+      throw new IndexOutOfBoundsException("Sentence: " + sentence + ", Size: " + numSentences);
+    return new Sentence(sentence);
+  }
+
+  /**
+   * The word ids of the given sentence, which index getVocabulary().
+   */
+  public int[] getTokenIds(int sentence) {
+    int start = offsets.get(sentence);
+    int[] ids = new int[offsets.get(sentence + 1) - start];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = tokens.get(start + i);
+    }
+    return ids;
+  }
+
+  public FrozenStringIndexer getVocabulary() {
+    return vocabulary;
+  }
+
+  public int getNumTokens() {
+    return tokens.limit();
+  }
+}
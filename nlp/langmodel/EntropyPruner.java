@@ -0,0 +1,158 @@
+package nlp.langmodel;
+
+import java.util.Arrays;
+
+/**
+ * Relative entropy pruning of trigrams (Stolcke, "Entropy-based Pruning of
+ * Backoff Language Models", 1998), for models whose trigram probabilities
+ * have the form
+ * <pre>
+ *   p(w | h) = a(h, w) + gamma(h) * lower(h, w)
+ * </pre>
+ * where the explicit estimate a is nonzero only for trigrams in the store,
+ * and lower is a lower-order distribution of total mass getLowerMass(h).
+ * Interpolated and Kneser-Ney trigram models both have this form.  Pruning
+ * (h, w) drops a(h, w) and, to keep p(. | h) normalized, raises gamma(h) by
+ * a(h, w) / getLowerMass(h), which hands the mass to the lower order.
+ * <p/>
+ * Each trigram is scored, as if it alone were pruned, by the resulting rise
+ * in relative entropy of the model, weighted by the probability of its
+ * history.  As in Stolcke's backoff case, the change for the other words of
+ * h is taken to be that of words without an explicit estimate, whose
+ * probabilities all scale by the change in gamma(h).  Trigrams scoring
+ * below the threshold are pruned; lower orders are untouched.
+ */
+public class EntropyPruner {
+
+  /**
+   * A trigram model of the form above, over the trigrams of getNgrams().
+   */
+  public interface Prunable {
+    NgramStore getNgrams();
+
+    /** a(h, w) for the trigram entry extending bigram entry h. */
+    double getExplicitProbability(int bigramIndex, int trigramIndex);
+
+    /** gamma(h) for a bigram entry with trigrams. */
+    double getBackoffWeight(int bigramIndex);
+
+    /** lower(h, w) for a bigram entry and word id w. */
+    double getLowerProbability(int bigramIndex, int wordId);
+
+    /** The sum of lower(h, w) over all words. */
+    double getLowerMass(int bigramIndex);
+
+    /**
+     * Replaces the store with getNgrams().pruneTrigrams(keep), and raises
+     * the backoff weight of each bigram entry b by backoffIncreases[b].
+     */
+    void applyPruning(boolean[] keep, double[] backoffIncreases);
+  }
+
+  /**
+   * The rise in relative entropy from pruning each trigram entry alone.
+   */
+  public static double[] getScores(Prunable model) {
+    NgramStore ngrams = model.getNgrams();
+    double[] scores = new double[ngrams.getNumTrigrams()];
+    double totalBigramCount = ngrams.getTotalBigramCount();
+    for (int b = 0; b < ngrams.getNumBigrams(); b++) {
+      int start = ngrams.getTrigramsStart(b);
+      int end = ngrams.getTrigramsEnd(b);
+      if (start == end)
+        continue;
+      double historyProbability = ngrams.getBigramCount(b) / totalBigramCount;
+      double gamma = model.getBackoffWeight(b);
+      double lowerMass = model.getLowerMass(b);
+      for (int t = start; t < end; t++) {
+        double explicit = model.getExplicitProbability(b, t);
+        double lower = model.getLowerProbability(b, ngrams.getTrigramWord(t));
+        double probability = explicit + gamma * lower;
+        double prunedGamma = gamma + explicit / lowerMass;
+        double prunedProbability = prunedGamma * lower;
+        double divergence = probability * Math.log(probability / prunedProbability);
+        if (gamma > 0)
+          divergence += gamma * (lowerMass - lower) * Math.log(gamma / prunedGamma);
+        scores[t] = historyProbability * divergence;
+      }
+    }
+    return scores;
+  }
+
+  /**
+   * The total probability of the history of a bigram entry, the sum over
+   * every word id of a(h, w) + gamma(h) * lower(h, w).  Unlike the pruning
+   * itself this does not trust getLowerMass(), so comparing it before and
+   * after pruning checks that the history kept its mass.
+   */
+  public static double getHistoryMass(Prunable model, int bigramIndex) {
+    NgramStore ngrams = model.getNgrams();
+    double explicitMass = 0.0;
+    for (int t = ngrams.getTrigramsStart(bigramIndex); t < ngrams.getTrigramsEnd(bigramIndex); t++) {
+      explicitMass += model.getExplicitProbability(bigramIndex, t);
+    }
+    double lowerMass = 0.0;
+    for (int w = 0; w < ngrams.getVocabulary().size(); w++) {
+      lowerMass += model.getLowerProbability(bigramIndex, w);
+    }
+    return explicitMass + model.getBackoffWeight(bigramIndex) * lowerMass;
+  }
+
+  /**
+   * Prunes every trigram whose score is below the threshold.
+   */
+  public static void pruneByThreshold(Prunable model, double threshold) {
+    double[] scores = getScores(model);
+    boolean[] keep = new boolean[scores.length];
+    for (int t = 0; t < scores.length; t++) {
+      keep[t] = !(scores[t] < threshold);
+    }
+    prune(model, keep);
+  }
+
+  /**
+   * Prunes the lowest scoring trigrams until numTrigrams are left, breaking
+   * ties in favor of keeping earlier entries.
+   */
+  public static void pruneToSize(Prunable model, int numTrigrams) {
+    double[] scores = getScores(model);
+    boolean[] keep = new boolean[scores.length];
+    if (numTrigrams >= scores.length) {
+      Arrays.fill(keep, true);
+    } else if (numTrigrams > 0) {
+      double[] sorted = scores.clone();
+      Arrays.sort(sorted);
+      double threshold = sorted[sorted.length - numTrigrams];
+      int numAbove = 0;
+      for (double score : scores) {
+        if (score > threshold)
+          numAbove++;
+      }
+      int numTies = numTrigrams - numAbove;
+      for (int t = 0; t < scores.length; t++) {
+        if (scores[t] > threshold) {
+          keep[t] = true;
+        } else if (scores[t] == threshold && numTies > 0) {
+          keep[t] = true;
+          numTies--;
+        }
+      }
+    }
+    prune(model, keep);
+  }
+
+  private static void prune(Prunable model, boolean[] keep) {
+    NgramStore ngrams = model.getNgrams();
+    double[] backoffIncreases = new double[ngrams.getNumBigrams()];
+    for (int b = 0; b < backoffIncreases.length; b++) {
+      double prunedMass = 0.0;
+      for (int t = ngrams.getTrigramsStart(b); t < ngrams.getTrigramsEnd(b); t++) {
+        if (!keep[t])
+          prunedMass += model.getExplicitProbability(b, t);
+      }
+      if (prunedMass > 0)
+        backoffIncreases[b] = prunedMass / model.getLowerMass(b);
+    }
+    model.applyPruning(keep, backoffIncreases);
+  }
+}
@@ -0,0 +1,150 @@
+package nlp.langmodel;
+
+import java.util.Arrays;
+
+/**
+ * Fits the weights of a linear interpolation of component models to held-out
+ * tokens by expectation maximization.  Each token's component probabilities
+ * are added once, into a flat primitive array, and every EM iteration is a
+ * pass over that array, so tuning never queries the model again.  Tokens may
+ * be put in buckets (typically by the count of their history, see
+ * getBucket()) and each bucket gets weights of its own.  Each iteration
+ * cannot lower the held-out likelihood.
+ */
+public class InterpolationWeightOptimizer {
+
+  final int numComponents;
+  final int numBuckets;
+  // token t's probability under component k is at t * numComponents + k
+  double[] probabilities = new double[1 << 12];
+  int[] buckets = new int[1 << 10];
+  int numTokens = 0;
+
+  /**
+   * The bucket of a history seen count times: 0 for unseen histories, then
+   * 1, 2-3, 4-7 and so on, with all larger counts in the last bucket.
+   */
+  public static int getBucket(double count, int numBuckets) {
+    if (numBuckets <= 1 || count < 1)
+      return 0;
+    int bucket = 1 + (63 - Long.numberOfLeadingZeros((long) count));
+    return Math.min(bucket, numBuckets - 1);
+  }
+
+  /**
+   * Adds a held-out token with the probability each component gives it.  NaN
+   * probabilities (from a component with an unseen history) count as zero,
+   * and tokens no component gives any probability are ignored, as they
+   * would make every weighting equally bad.
+   */
+  public void addToken(int bucket, double[] componentProbabilities) {
+    if (bucket < 0 || bucket >= numBuckets)
+      throw new IllegalArgumentException("Bucket " + bucket + " is not in [0, " + numBuckets + ")");
+    double total = 0.0;
+    for (int k = 0; k < numComponents; k++) {
+      double probability = componentProbabilities[k];
+      if (probability > 0)
+        total += probability;
+    }
+    if (!(total > 0))
+      return;
+    if ((numTokens + 1) * numComponents > probabilities.length)
+      probabilities = Arrays.copyOf(probabilities, 2 * probabilities.length);
+    if (numTokens == buckets.length)
+      buckets = Arrays.copyOf(buckets, 2 * buckets.length);
+    for (int k = 0; k < numComponents; k++) {
+      double probability = componentProbabilities[k];
+      probabilities[numTokens * numComponents + k] = (probability > 0 ? probability : 0.0);
+    }
+    buckets[numTokens++] = bucket;
+  }
+
+  public int getNumTokens() {
+    return numTokens;
+  }
+
+  /**
+   * The natural log likelihood of the held-out tokens under the weights,
+   * indexed [bucket][component].
+   */
+  public double getLogLikelihood(double[][] weights) {
+    double logLikelihood = 0.0;
+    for (int t = 0; t < numTokens; t++) {
+      double[] bucketWeights = weights[buckets[t]];
+      double mixture = 0.0;
+      for (int k = 0; k < numComponents; k++) {
+        mixture += bucketWeights[k] * probabilities[t * numComponents + k];
+      }
+      logLikelihood += Math.log(mixture);
+    }
+    return logLikelihood;
+  }
+
+  /**
+   * Runs EM from the given starting weights, one row per bucket, until an
+   * iteration improves the log likelihood by less than tolerance times its
+   * size, or for maxIterations.  Starting weights must be positive where
+   * EM is to move them; a zero weight stays zero.  Buckets with no tokens
+   * keep their starting weights.
+   */
+  public double[][] optimize(double[][] initialWeights, int maxIterations, double tolerance) {
+    double[][] weights = new double[numBuckets][];
+    for (int b = 0; b < numBuckets; b++) {
+      weights[b] = initialWeights[b].clone();
+    }
+    double[][] expectedCounts = new double[numBuckets][numComponents];
+    double previousLogLikelihood = Double.NEGATIVE_INFINITY;
+    for (int iteration = 0; iteration < maxIterations; iteration++) {
+      for (double[] counts : expectedCounts) {
+        Arrays.fill(counts, 0.0);
+      }
+      double logLikelihood = 0.0;
+      for (int t = 0; t < numTokens; t++) {
+        int offset = t * numComponents;
+        double[] bucketWeights = weights[buckets[t]];
+        double mixture = 0.0;
+        for (int k = 0; k < numComponents; k++) {
+          mixture += bucketWeights[k] * probabilities[offset + k];
+        }
+        logLikelihood += Math.log(mixture);
+        double[] counts = expectedCounts[buckets[t]];
+        for (int k = 0; k < numComponents; k++) {
+          counts[k] += bucketWeights[k] * probabilities[offset + k] / mixture;
+        }
+      }
+      for (int b = 0; b < numBuckets; b++) {
+        double total = 0.0;
+        for (int k = 0; k < numComponents; k++) {
+          total += expectedCounts[b][k];
+        }
+        if (total > 0) {
+          for (int k = 0; k < numComponents; k++) {
+            weights[b][k] = expectedCounts[b][k] / total;
+          }
+        }
+      }
+      if (logLikelihood - previousLogLikelihood < tolerance * Math.abs(logLikelihood))
+        break;
+      previousLogLikelihood = logLikelihood;
+    }
+    return weights;
+  }
+
+  /**
+   * Runs EM from uniform weights.
+   */
+  public double[][] optimize(int maxIterations, double tolerance) {
+    double[][] initialWeights = new double[numBuckets][numComponents];
+    for (double[] bucketWeights : initialWeights) {
+      Arrays.fill(bucketWeights, 1.0 / numComponents);
+    }
+    return optimize(initialWeights, maxIterations, tolerance);
+  }
+
+  public InterpolationWeightOptimizer(int numComponents, int numBuckets) {
+    if (numComponents < 1 || numBuckets < 1)
+      throw new IllegalArgumentException("Need at least one component and bucket");
+    this.numComponents = numComponents;
+    this.numBuckets = numBuckets;
+  }
+}
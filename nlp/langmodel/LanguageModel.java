@@ -1,6 +1,9 @@
 package nlp.langmodel;
 
 import java.util.List;
+import java.util.SplittableRandom;
+
+import nlp.util.StringIndexer;
 
 
 /**
@@ -9,6 +12,41 @@ import java.util.List;
 public interface LanguageModel {
 	double getSentenceProbability(List<String> sentence);
   List<String> generateSentence();
+
+  /**
+   * Generates a sentence using the given source of randomness, so the same
+   * seed gives the same sentence.  Give each thread its own source, e.g.
+   * from SplittableRandom.split().
+   */
+  List<String> generateSentence(SplittableRandom random);
+
+  /**
+   * The natural log of getSentenceProbability(sentence), summed word by word
+   * so that long sentences do not underflow to zero.
+   */
+  double getSentenceLogProbability(List<String> sentence);
+
+  /**
+   * The natural log probability of the index-th word of the sentence given
+   * the words before it, where index sentence.size() is the stop symbol.
+   * Depends only on the words up to index, and summing it over 0 to
+   * sentence.size() gives getSentenceLogProbability(sentence).
+   */
+  double getWordLogProbability(List<String> sentence, int index);
+
+  /**
+   * The words the model knows, whose indices are the token ids taken by
+   * getSentenceLogProbabilities().
+   */
+  StringIndexer getVocabulary();
+
+  /**
+   * Scores many sentences at once.  Each sentence is an array of token ids
+   * from getVocabulary(), without start or stop symbols, and -1 for words the
+   * vocabulary lacks.  Entry i of the result is the natural log probability
+   * of sentences[i].
+   */
+  double[] getSentenceLogProbabilities(int[][] sentences);
 //  double p_interp(String word1, String word2, String word3);
 //  double p_interp(String word1, String word2);
 //  double unigramProb(String word1);
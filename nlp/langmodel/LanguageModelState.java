@@ -0,0 +1,41 @@
+package nlp.langmodel;
+
+/**
+ * The history a StatefulLanguageModel scores the next word against: up to
+ * two context word ids, most recent last, and the trie node they matched,
+ * so extending a hypothesis by a word needs no context lookups.  States are
+ * small and mutable; callers keep one per hypothesis and have score() write
+ * the extended state into another.
+ */
+public class LanguageModelState {
+  /** The number of context words held, 0 to 2. */
+  public int length;
+  /** The older context word, if length is 2. */
+  public int word1 = -1;
+  /** The most recent context word, if length is at least 1. */
+  public int word2 = -1;
+  /** The bigram entry for (word1, word2) in the model's NgramStore, or -1. */
+  public int bigramIndex = -1;
+
+  public void copyFrom(LanguageModelState other) {
+    length = other.length;
+    word1 = other.word1;
+    word2 = other.word2;
+    bigramIndex = other.bigramIndex;
+  }
+
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (!(o instanceof LanguageModelState)) return false;
+    LanguageModelState other = (LanguageModelState) o;
+    return length == other.length && word1 == other.word1 && word2 == other.word2;
+  }
+
+  public int hashCode() {
+    return (length * 31 + word1) * 31 + word2;
+  }
+
+  public String toString() {
+    return "[" + word1 + " " + word2 + "]";
+  }
+}
@@ -0,0 +1,695 @@
+package nlp.langmodel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import nlp.util.StringIndexer;
+
+/**
+ * Compact storage for the unigram, bigram and trigram counts of a corpus,
+ * over integer word ids.  Each order is a sorted array trie, as in BerkeleyLM
+ * and KenLM: the bigrams starting with word w1 are the contiguous range
+ * [bigramOffsets[w1], bigramOffsets[w1 + 1]) of bigramWords, sorted by w2,
+ * and likewise the trigrams extending bigram entry b are the range
+ * [trigramOffsets[b], trigramOffsets[b + 1]) of trigramWords.  Lookups are a
+ * binary search within a range, and every count is an int.  Alongside the
+ * counts the store keeps the continuation counts Kneser-Ney smoothing needs:
+ * <pre>
+ *   getHistoryCount(w)            c(w .), the count of w as a context
+ *   getRightContinuations(w)      N1+(w .)
+ *   getLeftContinuations(w)       N1+(. w)
+ *   getMiddleContinuations(w)     N1+(. w .)
+ *   getBigramRightContinuations(b) N1+(w1 w2 .) for bigram entry b
+ *   getBigramLeftContinuations(b)  N1+(. w1 w2) for bigram entry b
+ * </pre>
+ * Counts are gathered with a Builder, which counts every n-gram (up to the
+ * maximum order) of each sentence it is given, padding included, and can
+ * count a whole corpus in parallel shards.  Words not in the store have id
+ * -1, and every lookup involving them returns zero.
+ */
+public class NgramStore {
+
+  /** Word ids are packed three to a long while counting. */
+  static final int BITS_PER_WORD = 21;
+  static final int MAX_VOCABULARY_SIZE = 1 << BITS_PER_WORD;
+  private static final long WORD_MASK = MAX_VOCABULARY_SIZE - 1;
+
+  final StringIndexer vocabulary;
+  final int maxOrder;
+
+  // order 1, indexed by word id
+  int[] unigramCounts;
+  int[] historyCounts;
+  int[] leftContinuations;
+  int[] middleContinuations;
+
+  // order 2
+  int[] bigramOffsets;
+  int[] bigramWords;
+  int[] bigramCounts;
+  int[] bigramLeftContinuations;
+  long totalBigramCount;
+  long totalTrigramCount;
+
+  // order 3
+  int[] trigramOffsets;
+  int[] trigramWords;
+  int[] trigramCounts;
+
+  // running totals of the counts within each bigram and trigram range, built
+  // on the first draw from that order
+  private volatile int[] bigramCumulativeCounts;
+  private volatile int[] trigramCumulativeCounts;
+
+  /**
+   * Counts n-grams of sentences, then builds the store.
+   */
+  public static class Builder {
+    final StringIndexer vocabulary = new StringIndexer();
+    final int maxOrder;
+    final NgramCounts[] counts;
+    int numThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Counts every n-gram of the sentence of order 1 to the maximum order.
+     * The sentence should already carry whatever start and stop padding the
+     * model uses.
+     */
+    public Builder addSentence(List<String> sentence) {
+      int[] ids = new int[sentence.size()];
+      for (int i = 0; i < ids.length; i++) {
+        ids[i] = vocabulary.addAndGetIndex(sentence.get(i));
+      }
+      checkVocabularySize(vocabulary);
+      count(ids, ids.length);
+      return this;
+    }
+
+    /**
+     * Counts every n-gram of each sentence with start prepended and stop
+     * appended.  The result, word ids included, is exactly that of calling
+     * addSentence() on the padded sentences in order.  The sentences are
+     * split into contiguous shards, each counted on its own thread into its
+     * own tables over shard-local word ids; the shards are then merged in
+     * order, which gives words their ids in order of first occurrence.
+     */
+    public Builder addSentences(Collection<? extends List<String>> sentences, String start, String stop) {
+      final List<? extends List<String>> sentenceList = (sentences instanceof List
+          ? (List<? extends List<String>>) sentences : new ArrayList<List<String>>(sentences));
+      int numShards = Math.max(1, Math.min(numThreads, sentenceList.size() / MIN_SHARD_SENTENCES));
+      if (numShards == 1) {
+        addPaddedSentences(sentenceList, start, stop);
+        return this;
+      }
+      ExecutorService executor = Executors.newFixedThreadPool(numShards);
+      try {
+        List<Future<Builder>> futures = new ArrayList<Future<Builder>>();
+        int shardSize = (sentenceList.size() + numShards - 1) / numShards;
+        for (int from = 0; from < sentenceList.size(); from += shardSize) {
+          final List<? extends List<String>> shardSentences = sentenceList.subList(from, Math.min(from + shardSize, sentenceList.size()));
+          final String shardStart = start;
+          final String shardStop = stop;
+          futures.add(executor.submit(new Callable<Builder>() {
+            public Builder call() {
+              return new Builder(maxOrder).addPaddedSentences(shardSentences, shardStart, shardStop);
+            }
+          }));
+        }
+        List<Builder> shards = new ArrayList<Builder>();
+        for (Future<Builder> future : futures) {
+          shards.add(future.get());
+        }
+        merge(shards, executor);
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      } catch (ExecutionException e) {
+        throw new RuntimeException(e.getCause());
+      } finally {
+        executor.shutdown();
+      }
+      return this;
+    }
+
+    /**
+     * Sets how many threads addSentences() counts on.  The counts do not
+     * depend on it.
+     */
+    public Builder setNumThreads(int numThreads) {
+      this.numThreads = Math.max(1, numThreads);
+      return this;
+    }
+
+    private Builder addPaddedSentences(List<? extends List<String>> sentences, String start, String stop) {
+      int startId = vocabulary.addAndGetIndex(start);
+      int[] ids = new int[64];
+      for (List<String> sentence : sentences) {
+        if (ids.length < sentence.size() + 2)
+          ids = new int[2 * (sentence.size() + 2)];
+        int length = 0;
+        ids[length++] = startId;
+        for (String word : sentence) {
+          ids[length++] = vocabulary.addAndGetIndex(word);
+        }
+        ids[length++] = vocabulary.addAndGetIndex(stop);
+        checkVocabularySize(vocabulary);
+        count(ids, length);
+      }
+      return this;
+    }
+
+    private void count(int[] ids, int length) {
+      for (int order = 1; order <= maxOrder; order++) {
+        for (int start = 0; start + order <= length; start++) {
+          long packed = 0;
+          for (int i = start; i < start + order; i++) {
+            packed = (packed << BITS_PER_WORD) | ids[i];
+          }
+          counts[order].add(packed, 1);
+        }
+      }
+    }
+
+    // adds the shards' counts in order, translating their word ids; each order is merged on its own thread
+    private void merge(List<Builder> shards, ExecutorService executor) throws InterruptedException, ExecutionException {
+      final int[][] idMaps = new int[shards.size()][];
+      for (int s = 0; s < shards.size(); s++) {
+        StringIndexer shardVocabulary = shards.get(s).vocabulary;
+        idMaps[s] = new int[shardVocabulary.size()];
+        for (int id = 0; id < idMaps[s].length; id++) {
+          idMaps[s][id] = vocabulary.addAndGetIndex(shardVocabulary.get(id));
+        }
+      }
+      checkVocabularySize(vocabulary);
+      List<Future<?>> futures = new ArrayList<Future<?>>();
+      for (int order = 1; order <= maxOrder; order++) {
+        final int mergeOrder = order;
+        final List<Builder> mergeShards = shards;
+        futures.add(executor.submit(new Callable<Void>() {
+          public Void call() {
+            for (int s = 0; s < mergeShards.size(); s++) {
+              counts[mergeOrder].addAll(mergeShards.get(s).counts[mergeOrder], mergeOrder, idMaps[s]);
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    }
+
+    public NgramStore build() {
+      return new NgramStore(this);
+    }
+
+    public Builder(int maxOrder) {
+      if (maxOrder < 2 || maxOrder > 3)
+        throw new IllegalArgumentException("NgramStore supports orders 2 and 3, not " + maxOrder);
+      this.maxOrder = maxOrder;
+      counts = new NgramCounts[maxOrder + 1];
+      for (int order = 1; order <= maxOrder; order++) {
+        counts[order] = new NgramCounts();
+      }
+    }
+  }
+
+  /** Shards smaller than this are not worth a thread. */
+  static final int MIN_SHARD_SENTENCES = 1000;
+
+  private static void checkVocabularySize(StringIndexer vocabulary) {
+    if (vocabulary.size() > MAX_VOCABULARY_SIZE)
+      throw new IllegalStateException("NgramStore supports at most " + MAX_VOCABULARY_SIZE + " words");
+  }
+
+  /**
+   * Open-addressing map from packed n-grams to int counts, used while
+   * building.
+   */
+  static class NgramCounts {
+    private static final long EMPTY = -1L;
+
+    long[] keys = newKeys(1 << 10);
+    int[] values = new int[1 << 10];
+    int size = 0;
+
+    private static long[] newKeys(int capacity) {
+      long[] keys = new long[capacity];
+      Arrays.fill(keys, EMPTY);
+      return keys;
+    }
+
+    private static int slot(long key, int mask) {
+      long h = key * 0x9E3779B97F4A7C15L;
+      return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    void add(long key, int count) {
+      int mask = keys.length - 1;
+      int slot = slot(key, mask);
+      while (keys[slot] != EMPTY) {
+        if (keys[slot] == key) {
+          values[slot] += count;
+          return;
+        }
+        slot = (slot + 1) & mask;
+      }
+      keys[slot] = key;
+      values[slot] = count;
+      if (++size * 2 > keys.length)
+        rehash();
+    }
+
+    /**
+     * Adds every count of other, whose n-grams of the given order are over
+     * word ids which idMap translates to this map's ids.
+     */
+    void addAll(NgramCounts other, int order, int[] idMap) {
+      for (int i = 0; i < other.keys.length; i++) {
+        long key = other.keys[i];
+        if (key == EMPTY)
+          continue;
+        long translated = 0;
+        for (int shift = (order - 1) * BITS_PER_WORD; shift >= 0; shift -= BITS_PER_WORD) {
+          translated = (translated << BITS_PER_WORD) | idMap[(int) ((key >>> shift) & WORD_MASK)];
+        }
+        add(translated, other.values[i]);
+      }
+    }
+
+    int get(long key) {
+      int mask = keys.length - 1;
+      int slot = slot(key, mask);
+      while (keys[slot] != EMPTY) {
+        if (keys[slot] == key)
+          return values[slot];
+        slot = (slot + 1) & mask;
+      }
+      return 0;
+    }
+
+    private void rehash() {
+      long[] oldKeys = keys;
+      int[] oldValues = values;
+      keys = newKeys(oldKeys.length * 2);
+      values = new int[oldKeys.length * 2];
+      int mask = keys.length - 1;
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldKeys[i] == EMPTY)
+          continue;
+        int slot = slot(oldKeys[i], mask);
+        while (keys[slot] != EMPTY) {
+          slot = (slot + 1) & mask;
+        }
+        keys[slot] = oldKeys[i];
+        values[slot] = oldValues[i];
+      }
+    }
+
+    /**
+     * Fills keys and counts with the entries, sorted by key.
+     */
+    void sortedEntries(long[] sortedKeys, int[] sortedCounts) {
+      int n = 0;
+      for (long key : keys) {
+        if (key != EMPTY)
+          sortedKeys[n++] = key;
+      }
+      Arrays.sort(sortedKeys);
+      for (int i = 0; i < n; i++) {
+        sortedCounts[i] = get(sortedKeys[i]);
+      }
+    }
+  }
+
+  NgramStore(Builder builder) {
+    vocabulary = builder.vocabulary;
+    maxOrder = builder.maxOrder;
+    int numWords = vocabulary.size();
+    unigramCounts = new int[numWords];
+    historyCounts = new int[numWords];
+    leftContinuations = new int[numWords];
+    middleContinuations = new int[numWords];
+    for (int word = 0; word < numWords; word++) {
+      unigramCounts[word] = builder.counts[1].get(word);
+    }
+
+    int numBigrams = builder.counts[2].size;
+    long[] bigrams = new long[numBigrams];
+    bigramCounts = new int[numBigrams];
+    builder.counts[2].sortedEntries(bigrams, bigramCounts);
+    bigramOffsets = new int[numWords + 1];
+    bigramWords = new int[numBigrams];
+    bigramLeftContinuations = new int[numBigrams];
+    for (int b = 0; b < numBigrams; b++) {
+      int w1 = (int) (bigrams[b] >>> BITS_PER_WORD);
+      int w2 = (int) (bigrams[b] & WORD_MASK);
+      bigramWords[b] = w2;
+      bigramOffsets[w1 + 1]++;
+      historyCounts[w1] += bigramCounts[b];
+      leftContinuations[w2]++;
+      totalBigramCount += bigramCounts[b];
+    }
+    for (int word = 0; word < numWords; word++) {
+      bigramOffsets[word + 1] += bigramOffsets[word];
+    }
+
+    if (maxOrder >= 3) {
+      int numTrigrams = builder.counts[3].size;
+      long[] trigrams = new long[numTrigrams];
+      trigramCounts = new int[numTrigrams];
+      builder.counts[3].sortedEntries(trigrams, trigramCounts);
+      trigramOffsets = new int[numBigrams + 1];
+      trigramWords = new int[numTrigrams];
+      // trigrams are sorted by context, and every context is a bigram
+      int b = 0;
+      for (int t = 0; t < numTrigrams; t++) {
+        long context = trigrams[t] >>> BITS_PER_WORD;
+        while (bigrams[b] != context) {
+          trigramOffsets[++b] = t;
+        }
+        int w2 = (int) (context & WORD_MASK);
+        int w3 = (int) (trigrams[t] & WORD_MASK);
+        trigramWords[t] = w3;
+        totalTrigramCount += trigramCounts[t];
+        middleContinuations[w2]++;
+        bigramLeftContinuations[getBigramIndex(w2, w3)]++;
+      }
+      while (b < numBigrams) {
+        trigramOffsets[++b] = numTrigrams;
+      }
+    }
+  }
+
+  // a copy of full with only the trigram entries marked in keep
+  private NgramStore(NgramStore full, boolean[] keep) {
+    vocabulary = full.vocabulary;
+    maxOrder = full.maxOrder;
+    unigramCounts = full.unigramCounts;
+    historyCounts = full.historyCounts;
+    leftContinuations = full.leftContinuations;
+    middleContinuations = full.middleContinuations;
+    bigramOffsets = full.bigramOffsets;
+    bigramWords = full.bigramWords;
+    bigramCounts = full.bigramCounts;
+    bigramLeftContinuations = full.bigramLeftContinuations;
+    totalBigramCount = full.totalBigramCount;
+    int numTrigrams = 0;
+    for (int t = 0; t < keep.length; t++) {
+      if (keep[t])
+        numTrigrams++;
+    }
+    int numBigrams = bigramWords.length;
+    trigramOffsets = new int[numBigrams + 1];
+    trigramWords = new int[numTrigrams];
+    trigramCounts = new int[numTrigrams];
+    int kept = 0;
+    for (int b = 0; b < numBigrams; b++) {
+      for (int t = full.trigramOffsets[b]; t < full.trigramOffsets[b + 1]; t++) {
+        if (keep[t]) {
+          trigramWords[kept] = full.trigramWords[t];
+          trigramCounts[kept] = full.trigramCounts[t];
+          totalTrigramCount += trigramCounts[kept];
+          kept++;
+        }
+      }
+      trigramOffsets[b + 1] = kept;
+    }
+  }
+
+  /**
+   * A store with only the trigram entries t for which keep[t] is true.
+   * Unigrams, bigrams and the continuation counts built from trigrams
+   * (getMiddleContinuations(), getBigramLeftContinuations()) are shared with
+   * this store and stay those of the full counts, so a model's lower orders
+   * are unchanged by pruning; getBigramRightContinuations() counts only the
+   * kept trigrams.
+   */
+  public NgramStore pruneTrigrams(boolean[] keep) {
+    if (maxOrder < 3 || keep.length != trigramWords.length)
+      throw new IllegalArgumentException("Need one keep flag per trigram");
+    return new NgramStore(this, keep);
+  }
+
+  /**
+   * The words of the store, indexed by id.
+   */
+  public StringIndexer getVocabulary() {
+    return vocabulary;
+  }
+
+  /**
+   * The id of the word, or -1 if it never occurred.
+   */
+  public int getWordId(String word) {
+    return vocabulary.indexOf(word);
+  }
+
+  public String getWord(int wordId) {
+    return vocabulary.get(wordId);
+  }
+
+  public int getMaxOrder() {
+    return maxOrder;
+  }
+
+  private static boolean isWord(int[] perWord, int wordId) {
+    return wordId >= 0 && wordId < perWord.length;
+  }
+
+  public int getCount(int w1) {
+    return (isWord(unigramCounts, w1) ? unigramCounts[w1] : 0);
+  }
+
+  /**
+   * c(w .), the number of bigrams starting with w.
+   */
+  public int getHistoryCount(int w) {
+    return (isWord(historyCounts, w) ? historyCounts[w] : 0);
+  }
+
+  /**
+   * N1+(w .), the number of distinct words seen after w.
+   */
+  public int getRightContinuations(int w) {
+    return (isWord(historyCounts, w) ? bigramOffsets[w + 1] - bigramOffsets[w] : 0);
+  }
+
+  /**
+   * N1+(. w), the number of distinct words seen before w.
+   */
+  public int getLeftContinuations(int w) {
+    return (isWord(leftContinuations, w) ? leftContinuations[w] : 0);
+  }
+
+  /**
+   * N1+(. w .), the number of distinct (before, after) pairs seen around w.
+   */
+  public int getMiddleContinuations(int w) {
+    return (isWord(middleContinuations, w) ? middleContinuations[w] : 0);
+  }
+
+  /**
+   * The position of the bigram (w1, w2) in the bigram arrays, or -1 if it was
+   * not seen.
+   */
+  public int getBigramIndex(int w1, int w2) {
+    if (!isWord(historyCounts, w1) || w2 < 0)
+      return -1;
+    int b = Arrays.binarySearch(bigramWords, bigramOffsets[w1], bigramOffsets[w1 + 1], w2);
+    return (b < 0 ? -1 : b);
+  }
+
+  public int getCount(int w1, int w2) {
+    int b = getBigramIndex(w1, w2);
+    return (b < 0 ? 0 : bigramCounts[b]);
+  }
+
+  /**
+   * The bigram entries starting with w are getBigramIndex ranges
+   * [getBigramsStart(w), getBigramsEnd(w)).
+   */
+  public int getBigramsStart(int w) {
+    return (isWord(historyCounts, w) ? bigramOffsets[w] : 0);
+  }
+
+  public int getBigramsEnd(int w) {
+    return (isWord(historyCounts, w) ? bigramOffsets[w + 1] : 0);
+  }
+
+  /**
+   * The second word of a bigram entry.
+   */
+  public int getBigramWord(int bigramIndex) {
+    return bigramWords[bigramIndex];
+  }
+
+  public int getBigramCount(int bigramIndex) {
+    return (bigramIndex < 0 ? 0 : bigramCounts[bigramIndex]);
+  }
+
+  /**
+   * N1+(. w1 w2) for the bigram entry (w1, w2).
+   */
+  public int getBigramLeftContinuations(int bigramIndex) {
+    return (bigramIndex < 0 ? 0 : bigramLeftContinuations[bigramIndex]);
+  }
+
+  /**
+   * N1+(w1 w2 .) for the bigram entry (w1, w2).
+   */
+  public int getBigramRightContinuations(int bigramIndex) {
+    return (bigramIndex < 0 ? 0 : trigramOffsets[bigramIndex + 1] - trigramOffsets[bigramIndex]);
+  }
+
+  /**
+   * The position of the trigram extending a bigram entry with w3, or -1.
+   */
+  public int getTrigramIndex(int bigramIndex, int w3) {
+    if (bigramIndex < 0 || w3 < 0)
+      return -1;
+    int t = Arrays.binarySearch(trigramWords, trigramOffsets[bigramIndex], trigramOffsets[bigramIndex + 1], w3);
+    return (t < 0 ? -1 : t);
+  }
+
+  public int getCount(int w1, int w2, int w3) {
+    int t = getTrigramIndex(getBigramIndex(w1, w2), w3);
+    return (t < 0 ? 0 : trigramCounts[t]);
+  }
+
+  /**
+   * The trigram entries extending bigram entry b are the range
+   * [getTrigramsStart(b), getTrigramsEnd(b)).
+   */
+  public int getTrigramsStart(int bigramIndex) {
+    return (bigramIndex < 0 ? 0 : trigramOffsets[bigramIndex]);
+  }
+
+  public int getTrigramsEnd(int bigramIndex) {
+    return (bigramIndex < 0 ? 0 : trigramOffsets[bigramIndex + 1]);
+  }
+
+  public int getTrigramWord(int trigramIndex) {
+    return trigramWords[trigramIndex];
+  }
+
+  public int getTrigramCount(int trigramIndex) {
+    return trigramCounts[trigramIndex];
+  }
+
+  /**
+   * Draws a bigram entry starting with w with probability proportional to its
+   * count, c(w w') / c(w .), or returns -1 if no bigram starts with w.  The
+   * first draw builds running count totals for every range; after that each
+   * draw is one binary search.  Safe to call from several threads, given a
+   * random source per thread.
+   */
+  public int sampleBigram(int w, SplittableRandom random) {
+    int[] cumulative = bigramCumulativeCounts;
+    if (cumulative == null) {
+      cumulative = cumulativeCounts(bigramOffsets, bigramCounts);
+      bigramCumulativeCounts = cumulative;
+    }
+    return sample(cumulative, getBigramsStart(w), getBigramsEnd(w), random);
+  }
+
+  /**
+   * Draws a trigram entry extending bigram entry b with probability
+   * c(w1 w2 w3) / c(w1 w2), or returns -1 if no trigram extends it.
+   */
+  public int sampleTrigram(int bigramIndex, SplittableRandom random) {
+    int[] cumulative = trigramCumulativeCounts;
+    if (cumulative == null) {
+      cumulative = cumulativeCounts(trigramOffsets, trigramCounts);
+      trigramCumulativeCounts = cumulative;
+    }
+    return sample(cumulative, getTrigramsStart(bigramIndex), getTrigramsEnd(bigramIndex), random);
+  }
+
+  // two threads may both build a table, but they build the same one
+  private static int[] cumulativeCounts(int[] offsets, int[] counts) {
+    int[] cumulative = new int[counts.length];
+    for (int range = 0; range + 1 < offsets.length; range++) {
+      int total = 0;
+      for (int i = offsets[range]; i < offsets[range + 1]; i++) {
+        total += counts[i];
+        cumulative[i] = total;
+      }
+    }
+    return cumulative;
+  }
+
+  // the first entry of [start, end) whose running total exceeds a uniform draw
+  private static int sample(int[] cumulative, int start, int end, SplittableRandom random) {
+    if (start >= end)
+      return -1;
+    int draw = random.nextInt(cumulative[end - 1]);
+    int low = start;
+    int high = end - 1;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (cumulative[mid] > draw)
+        high = mid;
+      else
+        low = mid + 1;
+    }
+    return low;
+  }
+
+  /**
+   * The number of words which start at least one bigram.
+   */
+  public int getNumContexts() {
+    int numContexts = 0;
+    for (int w = 0; w < historyCounts.length; w++) {
+      if (bigramOffsets[w + 1] > bigramOffsets[w])
+        numContexts++;
+    }
+    return numContexts;
+  }
+
+  /**
+   * The number of distinct bigrams.
+   */
+  public int getNumBigrams() {
+    return bigramWords.length;
+  }
+
+  /**
+   * The number of distinct trigrams (0 for a bigram store).
+   */
+  public int getNumTrigrams() {
+    return (trigramWords == null ? 0 : trigramWords.length);
+  }
+
+  /**
+   * The total count of all bigrams.
+   */
+  public long getTotalBigramCount() {
+    return totalBigramCount;
+  }
+
+  /**
+   * The total count of all trigrams.
+   */
+  public long getTotalTrigramCount() {
+    return totalTrigramCount;
+  }
+
+  /**
+   * Approximate bytes held by the count arrays (not the vocabulary).
+   */
+  public long byteSize() {
+    long ints = unigramCounts.length * 4L + bigramOffsets.length + bigramWords.length * 3L;
+    if (trigramWords != null)
+      ints += trigramOffsets.length + trigramWords.length * 2L;
+    return 4 * ints;
+  }
+}
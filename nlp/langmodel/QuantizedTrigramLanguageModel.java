@@ -0,0 +1,594 @@
+package nlp.langmodel;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import nlp.util.Codebook;
+import nlp.util.StringIndexer;
+
+/**
+ * A trigram model for deployment, in backoff form over the int-id n-gram
+ * structure of an NgramStore with the counts dropped:
+ * <pre>
+ *   log p(w | u v) = P3(u v w)               if (u v w) is stored
+ *                  = B3(u v) + log p(w | v)  otherwise (B3 = 0 if (u v) is not stored)
+ *   log p(w | v)   = P2(v w)                 if (v w) is stored
+ *                  = B2(v) + P1(w)           otherwise
+ * </pre>
+ * Each of the five tables (P1, B2 and P2 by word and bigram entry, B3 and P3
+ * by bigram and trigram entry) is quantized on its own: an entry is an 8 or
+ * 16 bit code into a Codebook trained on that table, so each order's
+ * probabilities and backoff weights get centers fitted to their own range.
+ * With 32 bits entries are plain floats, which measures the cost of the
+ * backoff conversion alone.  Scoring reads codes directly, and words outside
+ * the vocabulary get probability zero.  As in the trigram models, the first
+ * word of a sentence is not scored.  Build one with export(), and save and
+ * load it with write() and read().  The file (big-endian) is:
+ * <pre>
+ *   MAGIC, VERSION, bits, vocabulary size, words (UTF), startId, stopId
+ *   bigramOffsets, bigramWords, trigramOffsets, trigramWords (length, then ints)
+ *   P1, B2, P2, B3, P3 (each length, then the codebook and codes, or floats)
+ * </pre>
+ */
+public class QuantizedTrigramLanguageModel implements StatefulLanguageModel {
+
+  static final int MAGIC = 0x4E4C5051; // "NLPQ"
+  static final int VERSION = 1;
+  // rejected draws sampleWord() allows before scanning the vocabulary
+  static final int MAX_REJECTIONS = 64;
+
+  /**
+   * A trained trigram model which can give its probabilities in the backoff
+   * form above, over the n-grams of getNgrams().  Values are probabilities
+   * and backoff weights, not logs.
+   */
+  public interface Exportable {
+    NgramStore getNgrams();
+
+    /** The id of the start symbol which begins every history. */
+    int getStartId();
+
+    int getEndOfSentenceId();
+
+    double getUnigramProbability(int wordId);
+
+    /** The backoff weight of a word as a bigram history. */
+    double getBigramBackoff(int wordId);
+
+    /** The probability of bigram entry bigramIndex, which starts with wordId. */
+    double getBigramProbability(int wordId, int bigramIndex);
+
+    /** The backoff weight of a bigram entry as a trigram history. */
+    double getTrigramBackoff(int bigramIndex);
+
+    /** The probability of the trigram entry extending bigram entry bigramIndex. */
+    double getTrigramProbability(int bigramIndex, int trigramIndex);
+  }
+
+  /**
+   * One table of log values, as codes of 8 or 16 bits or as floats.
+   */
+  static class QuantizedArray {
+    final Codebook codebook;
+    final byte[] bytes;
+    final char[] chars;
+    final float[] floats;
+
+    double get(int i) {
+      if (bytes != null)
+        return codebook.decode(bytes[i] & 0xFF);
+      if (chars != null)
+        return codebook.decode(chars[i]);
+      return floats[i];
+    }
+
+    int length() {
+      return (bytes != null ? bytes.length : (chars != null ? chars.length : floats.length));
+    }
+
+    long byteSize() {
+      if (bytes != null)
+        return bytes.length + codebook.byteSize();
+      if (chars != null)
+        return 2L * chars.length + codebook.byteSize();
+      return 4L * floats.length;
+    }
+
+    static QuantizedArray quantize(double[] values, int bits, Codebook.Method method) {
+      if (bits == 32) {
+        float[] floats = new float[values.length];
+        for (int i = 0; i < values.length; i++) {
+          floats[i] = (float) values[i];
+        }
+        return new QuantizedArray(null, null, null, floats);
+      }
+      Codebook codebook = Codebook.train(values, bits, method);
+      if (bits == 8) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+          bytes[i] = (byte) codebook.encode(values[i]);
+        }
+        return new QuantizedArray(codebook, bytes, null, null);
+      }
+      char[] chars = new char[values.length];
+      for (int i = 0; i < values.length; i++) {
+        chars[i] = (char) codebook.encode(values[i]);
+      }
+      return new QuantizedArray(codebook, null, chars, null);
+    }
+
+    void write(DataOutputStream out) throws IOException {
+      out.writeInt(length());
+      if (floats != null) {
+        for (float value : floats)
+          out.writeFloat(value);
+        return;
+      }
+      out.writeInt(codebook.size());
+      for (int code = 0; code < codebook.size(); code++)
+        out.writeDouble(codebook.decode(code));
+      if (bytes != null)
+        out.write(bytes);
+      else
+        for (char code : chars)
+          out.writeChar(code);
+    }
+
+    static QuantizedArray read(DataInputStream in, int bits) throws IOException {
+      int length = in.readInt();
+      if (bits == 32) {
+        float[] floats = new float[length];
+        for (int i = 0; i < length; i++)
+          floats[i] = in.readFloat();
+        return new QuantizedArray(null, null, null, floats);
+      }
+      double[] centers = new double[in.readInt()];
+      for (int code = 0; code < centers.length; code++)
+        centers[code] = in.readDouble();
+      Codebook codebook = Codebook.fromCenters(centers);
+      if (bits == 8) {
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new QuantizedArray(codebook, bytes, null, null);
+      }
+      char[] chars = new char[length];
+      for (int i = 0; i < length; i++)
+        chars[i] = in.readChar();
+      return new QuantizedArray(codebook, null, chars, null);
+    }
+
+    QuantizedArray(Codebook codebook, byte[] bytes, char[] chars, float[] floats) {
+      this.codebook = codebook;
+      this.bytes = bytes;
+      this.chars = chars;
+      this.floats = floats;
+    }
+  }
+
+  final int bits;
+  final StringIndexer vocabulary;
+  final int startId;
+  final int stopId;
+
+  // the n-gram structure of NgramStore, without counts
+  final int[] bigramOffsets;
+  final int[] bigramWords;
+  final int[] trigramOffsets;
+  final int[] trigramWords;
+
+  final QuantizedArray unigramLogProbabilities;
+  final QuantizedArray bigramLogBackoffs;
+  final QuantizedArray bigramLogProbabilities;
+  final QuantizedArray trigramLogBackoffs;
+  final QuantizedArray trigramLogProbabilities;
+
+  // running totals for sampleWord(), built on first use; two threads may
+  // both build them, but they build the same ones, and volatile publishes
+  // each array only once it is filled
+  private volatile double[] unigramCumulative;
+  private volatile double[] bigramCumulative;
+  private volatile double[] trigramCumulative;
+
+  /**
+   * The model in backoff form, with every table quantized to the given
+   * number of bits (8 or 16, or 32 for unquantized floats).
+   */
+  public static QuantizedTrigramLanguageModel export(Exportable model, int bits, Codebook.Method method) {
+    if (bits != 8 && bits != 16 && bits != 32)
+      throw new IllegalArgumentException("Quantized models take 8, 16 or 32 bits, not " + bits);
+    NgramStore ngrams = model.getNgrams();
+    int numWords = ngrams.getVocabulary().size();
+    int numBigrams = ngrams.getNumBigrams();
+    int numTrigrams = ngrams.getNumTrigrams();
+    int[] bigramOffsets = new int[numWords + 1];
+    int[] bigramWords = new int[numBigrams];
+    int[] trigramOffsets = new int[numBigrams + 1];
+    int[] trigramWords = new int[numTrigrams];
+    double[] unigrams = new double[numWords];
+    double[] bigramBackoffs = new double[numWords];
+    double[] bigrams = new double[numBigrams];
+    double[] trigramBackoffs = new double[numBigrams];
+    double[] trigrams = new double[numTrigrams];
+    for (int w = 0; w < numWords; w++) {
+      bigramOffsets[w] = ngrams.getBigramsStart(w);
+      unigrams[w] = Math.log(model.getUnigramProbability(w));
+      bigramBackoffs[w] = Math.log(model.getBigramBackoff(w));
+      for (int b = ngrams.getBigramsStart(w); b < ngrams.getBigramsEnd(w); b++) {
+        bigramWords[b] = ngrams.getBigramWord(b);
+        bigrams[b] = Math.log(model.getBigramProbability(w, b));
+        trigramOffsets[b] = ngrams.getTrigramsStart(b);
+        trigramBackoffs[b] = Math.log(model.getTrigramBackoff(b));
+        for (int t = ngrams.getTrigramsStart(b); t < ngrams.getTrigramsEnd(b); t++) {
+          trigramWords[t] = ngrams.getTrigramWord(t);
+          trigrams[t] = Math.log(model.getTrigramProbability(b, t));
+        }
+      }
+    }
+    bigramOffsets[numWords] = numBigrams;
+    trigramOffsets[numBigrams] = numTrigrams;
+    return new QuantizedTrigramLanguageModel(bits, ngrams.getVocabulary(), model.getStartId(), model.getEndOfSentenceId(),
+        bigramOffsets, bigramWords, trigramOffsets, trigramWords,
+        QuantizedArray.quantize(unigrams, bits, method), QuantizedArray.quantize(bigramBackoffs, bits, method),
+        QuantizedArray.quantize(bigrams, bits, method), QuantizedArray.quantize(trigramBackoffs, bits, method),
+        QuantizedArray.quantize(trigrams, bits, method));
+  }
+
+  /**
+   * The position of the bigram (w1, w2) in the bigram arrays, or -1.
+   */
+  int getBigramIndex(int w1, int w2) {
+    if (w1 < 0 || w2 < 0)
+      return -1;
+    int b = Arrays.binarySearch(bigramWords, bigramOffsets[w1], bigramOffsets[w1 + 1], w2);
+    return (b < 0 ? -1 : b);
+  }
+
+  int getTrigramIndex(int bigramIndex, int w3) {
+    if (bigramIndex < 0 || w3 < 0)
+      return -1;
+    int t = Arrays.binarySearch(trigramWords, trigramOffsets[bigramIndex], trigramOffsets[bigramIndex + 1], w3);
+    return (t < 0 ? -1 : t);
+  }
+
+  // log p(id3 | id2)
+  double bigramLogProbability(int id2, int id3) {
+    if (id3 < 0)
+      return Double.NEGATIVE_INFINITY;
+    int b = getBigramIndex(id2, id3);
+    if (b >= 0)
+      return bigramLogProbabilities.get(b);
+    return (id2 < 0 ? 0.0 : bigramLogBackoffs.get(id2)) + unigramLogProbabilities.get(id3);
+  }
+
+  // log p(id3 | id1 id2), where b is the bigram entry of (id1, id2)
+  double trigramLogProbability(int b, int id2, int id3) {
+    int t = getTrigramIndex(b, id3);
+    if (t >= 0)
+      return trigramLogProbabilities.get(t);
+    return (b < 0 ? 0.0 : trigramLogBackoffs.get(b)) + bigramLogProbability(id2, id3);
+  }
+
+  // the id of the index-th word of the sentence padded with START and STOP
+  private int paddedId(List<String> sentence, int index) {
+    if (index == 0) { return startId; }
+    return (index <= sentence.size() ? vocabulary.indexOf(sentence.get(index-1)) : stopId);
+  }
+
+  public double getSentenceProbability(List<String> sentence) {
+    return Math.exp(getSentenceLogProbability(sentence));
+  }
+
+  public double getSentenceLogProbability(List<String> sentence) {
+    double logProbability = 0.0;
+    for (int index = 1; index <= sentence.size(); index++) {
+      logProbability += getWordLogProbability(sentence, index);
+    }
+    return logProbability;
+  }
+
+  // the first word is not scored, as in getSentenceLogProbability
+  public double getWordLogProbability(List<String> sentence, int index) {
+    if (index == 0)
+      return 0.0;
+    int id1 = paddedId(sentence, index - 1);
+    int id2 = paddedId(sentence, index);
+    return trigramLogProbability(getBigramIndex(id1, id2), id2, paddedId(sentence, index + 1));
+  }
+
+  public LanguageModelState beginSentence() {
+    LanguageModelState state = new LanguageModelState();
+    state.length = 1;
+    state.word2 = startId;
+    return state;
+  }
+
+  public double score(LanguageModelState state, int wordId, LanguageModelState outState) {
+    double logProbability = (state.length < 2 ? 0.0 : trigramLogProbability(state.bigramIndex, state.word2, wordId));
+    outState.length = 2;
+    outState.word1 = state.word2;
+    outState.word2 = wordId;
+    outState.bigramIndex = getBigramIndex(state.word2, wordId);
+    return logProbability;
+  }
+
+  public int getEndOfSentenceId() {
+    return stopId;
+  }
+
+  public StringIndexer getVocabulary() {
+    return vocabulary;
+  }
+
+  // like getSentenceLogProbability, scores every word but the first
+  public double[] getSentenceLogProbabilities(int[][] sentences) {
+    double[] logProbabilities = new double[sentences.length];
+    for (int i = 0; i < sentences.length; i++) {
+      int[] sentence = sentences[i];
+      double logProbability = 0.0;
+      int id2 = (sentence.length > 0 ? sentence[0] : stopId);
+      int b = getBigramIndex(startId, id2);
+      for (int index = 1; index <= sentence.length; index++) {
+        int id3 = (index < sentence.length ? sentence[index] : stopId);
+        logProbability += trigramLogProbability(b, id2, id3);
+        b = getBigramIndex(id2, id3);
+        id2 = id3;
+      }
+      logProbabilities[i] = logProbability;
+    }
+    return logProbabilities;
+  }
+
+  public List<String> generateSentence() {
+    return generateSentence(new SplittableRandom());
+  }
+
+  /**
+   * Draws each word from the backoff distribution, the first from
+   * p(w | START) since START has no history.  See sampleWord().
+   */
+  public List<String> generateSentence(SplittableRandom random) {
+    List<String> sentence = new ArrayList<String>();
+    int b = -1;
+    int id2 = startId;
+    while (true) {
+      int word = sampleWord(b, id2, random);
+      if (word < 0 || word == stopId)
+        return sentence;
+      sentence.add(vocabulary.get(word));
+      b = getBigramIndex(id2, word);
+      id2 = word;
+    }
+  }
+
+  /**
+   * A word drawn with probability proportional to exp(trigramLogProbability(b,
+   * id2, w)), or -1 if no word has any (or the weights are not finite).  Draws come from the stored trigrams
+   * of b, then after B3 the stored bigrams of id2, then after B2 all
+   * unigrams, each a binary search of running totals within its range.  A
+   * word drawn at a lower order which has an entry of its own at a higher one
+   * is rejected and the draw repeated, which leaves exactly the backoff
+   * distribution.  After MAX_REJECTIONS the vocabulary is scanned instead.
+   */
+  int sampleWord(int b, int id2, SplittableRandom random) {
+    double[] unigramTotals = unigramCumulative;
+    if (unigramTotals == null) {
+      unigramTotals = cumulative(unigramLogProbabilities, new int[] { 0, vocabulary.size() }, null);
+      unigramCumulative = unigramTotals;
+    }
+    double[] bigramTotals = bigramCumulative;
+    if (bigramTotals == null) {
+      bigramTotals = cumulative(bigramLogProbabilities, bigramOffsets, bigramWords);
+      bigramCumulative = bigramTotals;
+    }
+    double[] trigramTotals = trigramCumulative;
+    if (trigramTotals == null) {
+      trigramTotals = cumulative(trigramLogProbabilities, trigramOffsets, trigramWords);
+      trigramCumulative = trigramTotals;
+    }
+    int trigramsStart = (b < 0 ? 0 : trigramOffsets[b]);
+    int trigramsEnd = (b < 0 ? 0 : trigramOffsets[b + 1]);
+    int bigramsStart = (id2 < 0 ? 0 : bigramOffsets[id2]);
+    int bigramsEnd = (id2 < 0 ? 0 : bigramOffsets[id2 + 1]);
+    double trigramMass = rangeTotal(trigramTotals, trigramsStart, trigramsEnd);
+    double bigramMass = rangeTotal(bigramTotals, bigramsStart, bigramsEnd);
+    double unigramMass = rangeTotal(unigramTotals, 0, unigramTotals.length);
+    double trigramBackoff = (b < 0 ? 1.0 : Math.exp(trigramLogBackoffs.get(b)));
+    double bigramBackoff = (id2 < 0 ? 1.0 : Math.exp(bigramLogBackoffs.get(id2)));
+    double total = trigramMass + trigramBackoff * (bigramMass + bigramBackoff * unigramMass);
+    if (!(total > 0 && total < Double.POSITIVE_INFINITY))
+      return -1;
+    for (int attempt = 0; attempt < MAX_REJECTIONS; attempt++) {
+      double draw = random.nextDouble() * total;
+      if (draw < trigramMass)
+        return trigramWords[sample(trigramTotals, trigramsStart, trigramsEnd, draw)];
+      draw = (draw - trigramMass) / trigramBackoff;
+      int word;
+      if (draw < bigramMass) {
+        word = bigramWords[sample(bigramTotals, bigramsStart, bigramsEnd, draw)];
+      } else {
+        word = sample(unigramTotals, 0, unigramTotals.length, (draw - bigramMass) / bigramBackoff);
+        if (word == startId || getBigramIndex(id2, word) >= 0)
+          continue;
+      }
+      if (getTrigramIndex(b, word) < 0)
+        return word;
+    }
+    return scanWord(b, id2, random);
+  }
+
+  // the same draw as sampleWord(), by two passes over the vocabulary
+  private int scanWord(int b, int id2, SplittableRandom random) {
+    double total = 0.0;
+    for (int id = 0; id < vocabulary.size(); id++) {
+      double weight = (id == startId ? 0.0 : Math.exp(trigramLogProbability(b, id2, id)));
+      if (weight > 0)
+        total += weight;
+    }
+    if (!(total > 0 && total < Double.POSITIVE_INFINITY))
+      return -1;
+    double draw = random.nextDouble() * total;
+    double runningTotal = 0.0;
+    int word = -1;
+    for (int id = 0; id < vocabulary.size() && !(runningTotal > draw); id++) {
+      double weight = (id == startId ? 0.0 : Math.exp(trigramLogProbability(b, id2, id)));
+      if (weight > 0) {
+        runningTotal += weight;
+        word = id;
+      }
+    }
+    return word;
+  }
+
+  // running totals of the probabilities within each range; words is null
+  // when entry i is word i
+  private double[] cumulative(QuantizedArray logProbabilities, int[] offsets, int[] words) {
+    double[] cumulative = new double[logProbabilities.length()];
+    for (int range = 0; range + 1 < offsets.length; range++) {
+      double total = 0.0;
+      for (int i = offsets[range]; i < offsets[range + 1]; i++) {
+        double weight = Math.exp(logProbabilities.get(i));
+        if (weight > 0 && (words == null ? i : words[i]) != startId)
+          total += weight;
+        cumulative[i] = total;
+      }
+    }
+    return cumulative;
+  }
+
+  private static double rangeTotal(double[] cumulative, int start, int end) {
+    return (start < end ? cumulative[end - 1] : 0.0);
+  }
+
+  // the first entry of [start, end) whose running total exceeds the draw
+  private static int sample(double[] cumulative, int start, int end, double draw) {
+    int low = start;
+    int high = end - 1;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (cumulative[middle] > draw)
+        high = middle;
+      else
+        low = middle + 1;
+    }
+    return low;
+  }
+
+  public int getBits() {
+    return bits;
+  }
+
+  /**
+   * The number of stored n-grams: every word, bigram and trigram.
+   */
+  public long getNumNgrams() {
+    return (long) vocabulary.size() + bigramWords.length + trigramWords.length;
+  }
+
+  /**
+   * Bytes held by the model: structure, codes and codebooks, not the
+   * vocabulary strings.
+   */
+  public long byteSize() {
+    long ints = bigramOffsets.length + bigramWords.length + trigramOffsets.length + trigramWords.length;
+    return 4 * ints + unigramLogProbabilities.byteSize() + bigramLogBackoffs.byteSize() + bigramLogProbabilities.byteSize()
+        + trigramLogBackoffs.byteSize() + trigramLogProbabilities.byteSize();
+  }
+
+  private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+    out.writeInt(values.length);
+    for (int value : values)
+      out.writeInt(value);
+  }
+
+  private static int[] readInts(DataInputStream in) throws IOException {
+    int[] values = new int[in.readInt()];
+    for (int i = 0; i < values.length; i++)
+      values[i] = in.readInt();
+    return values;
+  }
+
+  public void write(File file) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(bits);
+      out.writeInt(vocabulary.size());
+      for (String word : vocabulary)
+        out.writeUTF(word);
+      out.writeInt(startId);
+      out.writeInt(stopId);
+      writeInts(out, bigramOffsets);
+      writeInts(out, bigramWords);
+      writeInts(out, trigramOffsets);
+      writeInts(out, trigramWords);
+      unigramLogProbabilities.write(out);
+      bigramLogBackoffs.write(out);
+      bigramLogProbabilities.write(out);
+      trigramLogBackoffs.write(out);
+      trigramLogProbabilities.write(out);
+    } finally {
+      out.close();
+    }
+  }
+
+  public static QuantizedTrigramLanguageModel read(File file) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+    try {
+      if (in.readInt() != MAGIC)
+        throw new IOException(file + " is not a quantized language model");
+      int version = in.readInt();
+      if (version != VERSION)
+        throw new IOException(file + " has version " + version + ", expected " + VERSION);
+      int bits = in.readInt();
+      StringIndexer vocabulary = new StringIndexer();
+      int numWords = in.readInt();
+      for (int w = 0; w < numWords; w++)
+        vocabulary.add(in.readUTF());
+      int startId = in.readInt();
+      int stopId = in.readInt();
+      int[] bigramOffsets = readInts(in);
+      int[] bigramWords = readInts(in);
+      int[] trigramOffsets = readInts(in);
+      int[] trigramWords = readInts(in);
+      QuantizedArray unigrams = QuantizedArray.read(in, bits);
+      QuantizedArray bigramBackoffs = QuantizedArray.read(in, bits);
+      QuantizedArray bigrams = QuantizedArray.read(in, bits);
+      QuantizedArray trigramBackoffs = QuantizedArray.read(in, bits);
+      QuantizedArray trigrams = QuantizedArray.read(in, bits);
+      return new QuantizedTrigramLanguageModel(bits, vocabulary, startId, stopId, bigramOffsets, bigramWords, trigramOffsets, trigramWords,
+          unigrams, bigramBackoffs, bigrams, trigramBackoffs, trigrams);
+    } finally {
+      in.close();
+    }
+  }
+
+  QuantizedTrigramLanguageModel(int bits, StringIndexer vocabulary, int startId, int stopId,
+      int[] bigramOffsets, int[] bigramWords, int[] trigramOffsets, int[] trigramWords,
+      QuantizedArray unigramLogProbabilities, QuantizedArray bigramLogBackoffs, QuantizedArray bigramLogProbabilities,
+      QuantizedArray trigramLogBackoffs, QuantizedArray trigramLogProbabilities) {
+    this.bits = bits;
+    this.vocabulary = vocabulary;
+    this.startId = startId;
+    this.stopId = stopId;
+    this.bigramOffsets = bigramOffsets;
+    this.bigramWords = bigramWords;
+    this.trigramOffsets = trigramOffsets;
+    this.trigramWords = trigramWords;
+    this.unigramLogProbabilities = unigramLogProbabilities;
+    this.bigramLogBackoffs = bigramLogBackoffs;
+    this.bigramLogProbabilities = bigramLogProbabilities;
+    this.trigramLogBackoffs = trigramLogBackoffs;
+    this.trigramLogProbabilities = trigramLogProbabilities;
+  }
+}
@@ -0,0 +1,35 @@
+package nlp.langmodel;
+
+/**
+ * A language model which can score a sentence one word at a time, carrying
+ * the history in a LanguageModelState rather than re-reading it from the
+ * sentence.  Scoring a sentence w1 ... wn is
+ * <pre>
+ *   LanguageModelState state = model.beginSentence();
+ *   LanguageModelState next = new LanguageModelState();
+ *   for each word id w, then model.getEndOfSentenceId():
+ *     logProbability += model.score(state, w, next);
+ *     swap state and next
+ * </pre>
+ * which gives the same total as getSentenceLogProbability().  Word ids come
+ * from getVocabulary(), with -1 for unknown words.
+ */
+public interface StatefulLanguageModel extends LanguageModel {
+
+  /**
+   * A new state holding just the start of a sentence.
+   */
+  LanguageModelState beginSentence();
+
+  /**
+   * The natural log probability of the word following the history in state,
+   * exactly as getWordLogProbability() gives it.  The history extended by the
+   * word is written to outState, which may not be state itself.
+   */
+  double score(LanguageModelState state, int wordId, LanguageModelState outState);
+
+  /**
+   * The id of the stop symbol which ends every sentence.
+   */
+  int getEndOfSentenceId();
+}
@@ -0,0 +1,205 @@
+package nlp.util;
+
+import java.util.Arrays;
+
+/**
+ * A scalar quantizer: each value is replaced by a code, the index of the
+ * nearest of at most 2^bits centers.  Centers are trained on the values to be
+ * coded, either by binning (equal-population bins, each represented by its
+ * mean, as in IRSTLM and BerkeleyLM) or by one-dimensional k-means (Lloyd's
+ * algorithm started from the bins, which cannot raise the squared error).
+ * When there are no more distinct values than codes every value is coded
+ * exactly.  Non-finite values (log probabilities of zero, say) are never
+ * averaged: each distinct one present gets a code of its own.
+ */
+public class Codebook {
+
+  public enum Method {
+    BINNED, KMEANS
+  }
+
+  static final int MAX_ITERATIONS = 20;
+
+  // finite centers in increasing order, then the non-finite values
+  final double[] centers;
+  final int numFinite;
+  // boundaries[i] lies halfway between centers i and i + 1
+  final double[] boundaries;
+
+  /**
+   * The code of the center nearest the value.
+   */
+  public int encode(double value) {
+    if (Double.isNaN(value) || Double.isInfinite(value)) {
+      for (int code = numFinite; code < centers.length; code++) {
+        if (Double.compare(centers[code], value) == 0)
+          return code;
+      }
+      throw new IllegalArgumentException("No code for " + value);
+    }
+    if (numFinite == 0)
+      throw new IllegalArgumentException("No code for " + value);
+    // the first boundary at or above the value
+    int low = 0;
+    int high = boundaries.length;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (boundaries[middle] < value)
+        low = middle + 1;
+      else
+        high = middle;
+    }
+    return low;
+  }
+
+  public double decode(int code) {
+    return centers[code];
+  }
+
+  /**
+   * The number of codes in use.
+   */
+  public int size() {
+    return centers.length;
+  }
+
+  /**
+   * The bytes held by the centers.
+   */
+  public long byteSize() {
+    return 8L * centers.length;
+  }
+
+  /**
+   * A codebook of at most 2^bits centers for the values.
+   */
+  public static Codebook train(double[] values, int bits, Method method) {
+    if (bits < 1 || bits > 24)
+      throw new IllegalArgumentException("Codebooks take 1 to 24 bits, not " + bits);
+    double[] sorted = values.clone();
+    Arrays.sort(sorted);
+    // NaN sorts last, after positive infinity
+    int start = 0;
+    while (start < sorted.length && sorted[start] == Double.NEGATIVE_INFINITY)
+      start++;
+    int end = sorted.length;
+    while (end > start && (Double.isNaN(sorted[end - 1]) || sorted[end - 1] == Double.POSITIVE_INFINITY))
+      end--;
+    double[] specials = new double[3];
+    int numSpecials = 0;
+    for (int i = 0; i < sorted.length; i++) {
+      if (i == start)
+        i = end;
+      if (i < sorted.length && (numSpecials == 0 || Double.compare(specials[numSpecials - 1], sorted[i]) != 0))
+        specials[numSpecials++] = sorted[i];
+    }
+    // the distinct finite values and how often each occurs
+    double[] distinct = new double[end - start];
+    int[] weights = new int[end - start];
+    int numDistinct = 0;
+    for (int i = start; i < end; i++) {
+      if (numDistinct > 0 && distinct[numDistinct - 1] == sorted[i]) {
+        weights[numDistinct - 1]++;
+      } else {
+        distinct[numDistinct] = sorted[i];
+        weights[numDistinct++] = 1;
+      }
+    }
+    int maxCenters = (1 << bits) - numSpecials;
+    if (maxCenters < 1 && numDistinct > 0)
+      throw new IllegalArgumentException(bits + " bits leave no codes for finite values");
+    double[] finite;
+    if (numDistinct <= maxCenters) {
+      finite = Arrays.copyOf(distinct, numDistinct);
+    } else {
+      // firsts[k] is the first distinct value of bin k, and firsts[numBins] the end
+      int[] firsts = bin(weights, numDistinct, end - start, maxCenters);
+      finite = means(distinct, weights, firsts);
+      if (method == Method.KMEANS)
+        finite = lloyd(distinct, weights, numDistinct, finite);
+    }
+    double[] centers = Arrays.copyOf(finite, finite.length + numSpecials);
+    System.arraycopy(specials, 0, centers, finite.length, numSpecials);
+    return new Codebook(centers, finite.length);
+  }
+
+  /**
+   * The codebook whose codes decode to the given centers, listed as decode()
+   * gives them for a trained codebook: finite centers in increasing order,
+   * then non-finite ones.  For reading back a saved codebook.
+   */
+  public static Codebook fromCenters(double[] centers) {
+    int numFinite = 0;
+    while (numFinite < centers.length && !Double.isNaN(centers[numFinite]) && !Double.isInfinite(centers[numFinite]))
+      numFinite++;
+    return new Codebook(centers.clone(), numFinite);
+  }
+
+  // bins of about equal total weight; a distinct value never spans two bins
+  private static int[] bin(int[] weights, int numDistinct, long totalWeight, int maxBins) {
+    int[] firsts = new int[maxBins + 1];
+    int numBins = 0;
+    long cumulative = 0;
+    for (int i = 0; i < numDistinct; i++) {
+      // open a new bin once the previous ones hold their share of the weight
+      if (numBins == 0 || (cumulative * maxBins >= numBins * totalWeight && numBins < maxBins))
+        firsts[numBins++] = i;
+      cumulative += weights[i];
+    }
+    firsts[numBins] = numDistinct;
+    return Arrays.copyOf(firsts, numBins + 1);
+  }
+
+  private static double[] means(double[] distinct, int[] weights, int[] firsts) {
+    double[] centers = new double[firsts.length - 1];
+    for (int k = 0; k < centers.length; k++) {
+      double sum = 0.0;
+      long weight = 0;
+      for (int i = firsts[k]; i < firsts[k + 1]; i++) {
+        sum += weights[i] * distinct[i];
+        weight += weights[i];
+      }
+      centers[k] = sum / weight;
+    }
+    return centers;
+  }
+
+  // Lloyd iterations over the sorted distinct values; a center left with no
+  // values keeps its place
+  private static double[] lloyd(double[] distinct, int[] weights, int numDistinct, double[] centers) {
+    double[] sums = new double[centers.length];
+    long[] counts = new long[centers.length];
+    for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+      Arrays.fill(sums, 0.0);
+      Arrays.fill(counts, 0);
+      int k = 0;
+      for (int i = 0; i < numDistinct; i++) {
+        while (k + 1 < centers.length && distinct[i] - centers[k] > centers[k + 1] - distinct[i])
+          k++;
+        sums[k] += weights[i] * distinct[i];
+        counts[k] += weights[i];
+      }
+      boolean moved = false;
+      for (k = 0; k < centers.length; k++) {
+        if (counts[k] > 0) {
+          double center = sums[k] / counts[k];
+          moved |= (center != centers[k]);
+          centers[k] = center;
+        }
+      }
+      if (!moved)
+        break;
+      Arrays.sort(centers);
+    }
+    return centers;
+  }
+
+  Codebook(double[] centers, int numFinite) {
+    this.centers = centers;
+    this.numFinite = numFinite;
+    boundaries = new double[Math.max(0, numFinite - 1)];
+    for (int i = 0; i < boundaries.length; i++) {
+      boundaries[i] = 0.5 * (centers[i] + centers[i + 1]);
+    }
+  }
+}
@@ -0,0 +1,111 @@
+package nlp.util;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+
+/**
+ * A Counter which may be shared between threads.  Each key's count is held in
+ * a DoubleAdder, so concurrent increments of the same key spread over striped
+ * cells instead of contending on one value.  Counting an existing key takes
+ * no lock; inserting a new one briefly locks its hash bin.  Reads (getCount,
+ * totalCount) are not atomic snapshots while other threads are still
+ * incrementing; call toCounter() once counting is done to get an ordinary
+ * Counter for the read-only phase.
+ */
+public class ConcurrentCounter <E> implements Serializable {
+  private static final long serialVersionUID = 5724671156522771672L;
+
+  ConcurrentHashMap<E, DoubleAdder> entries = new ConcurrentHashMap<E, DoubleAdder>();
+
+  private DoubleAdder ensureAdder(E key) {
+    DoubleAdder adder = entries.get(key);
+    if (adder == null) {
+      DoubleAdder newAdder = new DoubleAdder();
+      adder = entries.putIfAbsent(key, newAdder);
+      if (adder == null)
+        adder = newAdder;
+    }
+    return adder;
+  }
+
+  /**
+   * Increment a key's count by the given amount.  Safe to call from any
+   * thread.
+   */
+  public void incrementCount(E key, double increment) {
+    ensureAdder(key).add(increment);
+  }
+
+  /**
+   * Increment each key in the given counter by its count there.
+   */
+  public <T extends E> void incrementAll(Counter<T> counter) {
+    for (Map.Entry<T, Double> entry : counter.getEntrySet()) {
+      incrementCount(entry.getKey(), entry.getValue());
+    }
+  }
+
+  /**
+   * Set the count for the given key.  This is only well defined when no other
+   * thread is incrementing the same key at the same time.
+   */
+  public void setCount(E key, double count) {
+    DoubleAdder adder = new DoubleAdder();
+    adder.add(count);
+    entries.put(key, adder);
+  }
+
+  /**
+   * Get the count of the element, or zero if the element is not in the
+   * counter.
+   */
+  public double getCount(E key) {
+    DoubleAdder adder = entries.get(key);
+    return (adder == null ? 0.0 : adder.sum());
+  }
+
+  public boolean containsKey(E key) {
+    return entries.containsKey(key);
+  }
+
+  public Set<E> keySet() {
+    return entries.keySet();
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  public boolean isEmpty() {
+    return entries.isEmpty();
+  }
+
+  /**
+   * Sums all counts.  This is a linear scan, not a cached value.
+   */
+  public double totalCount() {
+    double total = 0.0;
+    for (DoubleAdder adder : entries.values()) {
+      total += adder.sum();
+    }
+    return total;
+  }
+
+  /**
+   * Copies the current counts into an ordinary (single-threaded) Counter.
+   */
+  public Counter<E> toCounter() {
+    Counter<E> counter = new Counter<E>();
+    for (Map.Entry<E, DoubleAdder> entry : entries.entrySet()) {
+      counter.setCount(entry.getKey(), entry.getValue().sum());
+    }
+    return counter;
+  }
+
+  public String toString() {
+    return toCounter().toString();
+  }
+}
@@ -0,0 +1,148 @@
+package nlp.util;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A CounterMap which may be shared between threads.  Sub-counters are
+ * ConcurrentCounters, and ensureCounter() installs a missing one with
+ * putIfAbsent, so two threads seeing a new key at once agree on a single
+ * sub-counter.  Looking up an existing key takes no lock; installing a new
+ * one briefly locks its hash bin.
+ * <p/>
+ * There are two ways to count in parallel.  Threads may increment a shared
+ * ConcurrentCounterMap directly, which is exact for integral counts; for
+ * other counts the order of additions, and so the last bits of the result,
+ * may vary from run to run.  Or each thread may count into its own
+ * CounterMap shard, with the shards then folded in with merge() one after
+ * another in a fixed order; each merge adds in the shard's own iteration
+ * order, so the result is then bit-for-bit reproducible for any counts.
+ */
+public class ConcurrentCounterMap <K,V> implements Serializable {
+  private static final long serialVersionUID = 5724671156522771673L;
+
+  ConcurrentHashMap<K, ConcurrentCounter<V>> counterMap = new ConcurrentHashMap<K, ConcurrentCounter<V>>();
+
+  protected ConcurrentCounter<V> ensureCounter(K key) {
+    ConcurrentCounter<V> valueCounter = counterMap.get(key);
+    if (valueCounter == null) {
+      ConcurrentCounter<V> newCounter = new ConcurrentCounter<V>();
+      valueCounter = counterMap.putIfAbsent(key, newCounter);
+      if (valueCounter == null)
+        valueCounter = newCounter;
+    }
+    return valueCounter;
+  }
+
+  /**
+   * Returns the keys that have been inserted into this map.
+   */
+  public Set<K> keySet() {
+    return counterMap.keySet();
+  }
+
+  /**
+   * Increments the count for a particular (key, value) pair.  Safe to call
+   * from any thread.
+   */
+  public void incrementCount(K key, V value, double count) {
+    ensureCounter(key).incrementCount(value, count);
+  }
+
+  public void incrementByCounter(K key, Counter<V> counter) {
+    ensureCounter(key).incrementAll(counter);
+  }
+
+  /**
+   * Sets the count for a particular (key, value) pair; see
+   * ConcurrentCounter.setCount() for the caveat.
+   */
+  public void setCount(K key, V value, double count) {
+    ensureCounter(key).setCount(value, count);
+  }
+
+  /**
+   * Gets the count of the given (key, value) entry, or zero if that entry is
+   * not present.  Does not create any objects.
+   */
+  public double getCount(K key, V value) {
+    ConcurrentCounter<V> valueCounter = counterMap.get(key);
+    if (valueCounter == null)
+      return 0.0;
+    return valueCounter.getCount(value);
+  }
+
+  /**
+   * Gets the sub-counter for the given key, installing an empty one if the
+   * key is new.
+   */
+  public ConcurrentCounter<V> getCounter(K key) {
+    return ensureCounter(key);
+  }
+
+  public boolean containsKey(K key) {
+    return counterMap.containsKey(key);
+  }
+
+  /**
+   * Adds every count in the given shard to this map, in the shard's own
+   * iteration order.  Merging thread-local shards in the same order on every
+   * run gives the same totals every run.
+   */
+  public void merge(CounterMap<K,V> shard) {
+    for (Map.Entry<K, Counter<V>> entry : shard.counterMap.entrySet()) {
+      ensureCounter(entry.getKey()).incrementAll(entry.getValue());
+    }
+  }
+
+  /**
+   * Returns the total of all counts in sub-counters (a linear scan).
+   */
+  public double totalCount() {
+    double total = 0.0;
+    for (ConcurrentCounter<V> counter : counterMap.values()) {
+      total += counter.totalCount();
+    }
+    return total;
+  }
+
+  /**
+   * Returns the total number of (key, value) entries.
+   */
+  public int totalSize() {
+    int total = 0;
+    for (ConcurrentCounter<V> counter : counterMap.values()) {
+      total += counter.size();
+    }
+    return total;
+  }
+
+  /**
+   * The number of keys in this map.
+   */
+  public int size() {
+    return counterMap.size();
+  }
+
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  /**
+   * Copies the current counts into an ordinary (single-threaded) CounterMap,
+   * for the read-only phase after counting.
+   */
+  public CounterMap<K,V> toCounterMap() {
+    CounterMap<K,V> result = new CounterMap<K,V>();
+    for (Map.Entry<K, ConcurrentCounter<V>> entry : counterMap.entrySet()) {
+      result.incrementByCounter(entry.getKey(), entry.getValue().toCounter());
+    }
+    return result;
+  }
+
+  public String toString() {
+    return toCounterMap().toString();
+  }
+}
@@ -0,0 +1,133 @@
+package nlp.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An Interner which may be shared between threads.  The canonical map is
+ * split into shards by hash code, and a lookup of an object which is already
+ * interned never locks, so it costs no more than a ConcurrentHashMap get().
+ * <p/>
+ * An interner may optionally be bounded.  Once a shard holds more than its
+ * share of maxSize objects, it is cleared and starts a new epoch.  After an
+ * epoch change intern(x) may return a different (but equal) canonical object
+ * than before, so callers of a bounded interner may rely on equals() between
+ * interned objects but not on ==.
+ */
+public class ConcurrentInterner <T> extends Interner<T> {
+
+  private final ConcurrentHashMap<T, T>[] shards;
+  private final AtomicInteger[] shardSizes;
+  private final int maxShardSize;
+  private final AtomicInteger epochs = new AtomicInteger();
+
+  private int shardIndex(Object object) {
+    int h = object.hashCode() * 0x9E3779B9;
+    return (h ^ (h >>> 16)) & (shards.length - 1);
+  }
+
+  private ConcurrentHashMap<T, T> shardFor(Object object) {
+    return shards[shardIndex(object)];
+  }
+
+  /**
+   * Returns a canonical representation of the given object, building one
+   * with the CanonicalFactory if there is none yet.  If two threads intern
+   * equal new objects at once, both get the same canonical object back.  The
+   * argument itself is never stored unless the factory returns it, so callers
+   * may pass a reused probe object.
+   */
+  public T intern(T object) {
+    int shard = shardIndex(object);
+    ConcurrentHashMap<T, T> map = shards[shard];
+    T canonical = map.get(object);
+    if (canonical != null)
+      return canonical;
+    T built = cf.build(object);
+    canonical = map.putIfAbsent(built, built);
+    if (canonical != null)
+      return canonical;
+    if (maxShardSize > 0 && shardSizes[shard].incrementAndGet() > maxShardSize) {
+      synchronized (map) {
+        if (shardSizes[shard].get() > maxShardSize) {
+          map.clear();
+          shardSizes[shard].set(0);
+          epochs.incrementAndGet();
+        }
+      }
+    }
+    return built;
+  }
+
+  public boolean contains(T object) {
+    return shardFor(object).containsKey(object);
+  }
+
+  public int size() {
+    int size = 0;
+    for (ConcurrentHashMap<T, T> shard : shards) {
+      size += shard.size();
+    }
+    return size;
+  }
+
+  public Collection<T> getCanonicalObjects() {
+    List<T> objects = new ArrayList<T>();
+    for (ConcurrentHashMap<T, T> shard : shards) {
+      objects.addAll(shard.values());
+    }
+    return objects;
+  }
+
+  /**
+   * How many times a shard of a bounded interner has been cleared.
+   */
+  public int getEpochs() {
+    return epochs.get();
+  }
+
+  public void clear() {
+    for (int i = 0; i < shards.length; i++) {
+      synchronized (shards[i]) {
+        shards[i].clear();
+        shardSizes[i].set(0);
+      }
+    }
+  }
+
+  public ConcurrentInterner() {
+    this(new IdentityCanonicalFactory<T>());
+  }
+
+  public ConcurrentInterner(CanonicalFactory<T> cf) {
+    this(cf, 0);
+  }
+
+  /**
+   * Builds an interner holding at most about maxSize objects (0 for no
+   * bound), spread over a number of shards chosen from the processor count.
+   */
+  public ConcurrentInterner(CanonicalFactory<T> cf, int maxSize) {
+    this(cf, maxSize, 4 * Runtime.getRuntime().availableProcessors());
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public ConcurrentInterner(CanonicalFactory<T> cf, int maxSize, int numShards) {
+    // the shards stand in for the superclass's map
+    super(cf, null);
+    int n = 1;
+    while (n < numShards) {
+      n <<= 1;
+    }
+    shards = new ConcurrentHashMap[n];
+    shardSizes = new AtomicInteger[n];
+    for (int i = 0; i < n; i++) {
+      shards[i] = new ConcurrentHashMap<T, T>();
+      shardSizes[i] = new AtomicInteger();
+    }
+    maxShardSize = (maxSize > 0 ? Math.max(1, maxSize / n) : 0);
+  }
+}
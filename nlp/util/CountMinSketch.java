@@ -0,0 +1,119 @@
+package nlp.util;
+
+/**
+ * Approximate counts of long keys in a fixed amount of memory (Cormode and
+ * Muthukrishnan's Count-Min sketch).  The sketch is depth rows of width int
+ * counters; a key adds to one counter per row, chosen by a per-row hash, and
+ * its estimate is the least of those counters.  Estimates never fall below
+ * the true count, and with probability 1 - exp(-depth) exceed it by at most
+ * e * getTotalCount() / width.  Updates are conservative (Estan and
+ * Varghese): a row's counter is only raised as far as the key's new
+ * estimate, which leaves the guarantee intact and much reduces the
+ * overestimate of rare keys.  Counters saturate rather than overflow.
+ * Updates are not thread-safe; estimates may be read from any number of
+ * threads once updating is done.
+ */
+public class CountMinSketch {
+
+  final int depth;
+  final int width;
+  // row r occupies [r * width, (r + 1) * width)
+  final int[] counters;
+  final long[] seeds;
+  long totalCount = 0;
+
+  private static long mix(long h) {
+    h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+    h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+    return h ^ (h >>> 33);
+  }
+
+  // the counter of the key in the given row
+  private int cell(long key, int row) {
+    long h = mix(key ^ seeds[row]);
+    return row * width + (int) (((h >>> 32) * width) >>> 32);
+  }
+
+  /**
+   * Adds one occurrence of the key.
+   */
+  public void add(long key) {
+    add(key, 1);
+  }
+
+  /**
+   * Adds count occurrences of the key, raising each of its counters only as
+   * far as its new estimate.
+   */
+  public void add(long key, int count) {
+    if (count < 0)
+      throw new IllegalArgumentException("Count-Min sketches cannot subtract: " + count);
+    int estimate = Integer.MAX_VALUE;
+    for (int row = 0; row < depth; row++) {
+      estimate = Math.min(estimate, counters[cell(key, row)]);
+    }
+    int target = (int) Math.min(Integer.MAX_VALUE, (long) estimate + count);
+    for (int row = 0; row < depth; row++) {
+      int cell = cell(key, row);
+      if (counters[cell] < target)
+        counters[cell] = target;
+    }
+    totalCount += count;
+  }
+
+  /**
+   * An upper bound on the number of times the key was added, usually exact
+   * when the sketch is wide enough.
+   */
+  public int estimate(long key) {
+    int estimate = Integer.MAX_VALUE;
+    for (int row = 0; row < depth; row++) {
+      estimate = Math.min(estimate, counters[cell(key, row)]);
+    }
+    return estimate;
+  }
+
+  public int getDepth() {
+    return depth;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  /**
+   * The sum of all counts added.
+   */
+  public long getTotalCount() {
+    return totalCount;
+  }
+
+  /**
+   * The bytes used by the counters.
+   */
+  public long byteSize() {
+    return 4L * counters.length;
+  }
+
+  /**
+   * The widest sketch of the given depth whose counters fit in budgetBytes.
+   */
+  public static CountMinSketch withBudget(long budgetBytes, int depth) {
+    long width = budgetBytes / (4L * depth);
+    if (width < 1)
+      throw new IllegalArgumentException("A budget of " + budgetBytes + " bytes cannot hold " + depth + " rows");
+    return new CountMinSketch(depth, (int) Math.min(width, Integer.MAX_VALUE / depth));
+  }
+
+  public CountMinSketch(int depth, int width) {
+    if (depth < 1 || width < 1)
+      throw new IllegalArgumentException("Bad sketch shape: depth " + depth + ", width " + width);
+    this.depth = depth;
+    this.width = width;
+    counters = new int[depth * width];
+    seeds = new long[depth];
+    for (int row = 0; row < depth; row++) {
+      seeds[row] = mix(0x9E3779B97F4A7C15L * (row + 1));
+    }
+  }
+}
@@ -1,21 +1,31 @@
 package nlp.util;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * A map from objects to doubles.  Includes convenience methods for getting,
  * setting, and incrementing element counts.  Objects not in the counter will
  * return a count of zero.  The counter is backed by a HashMap (unless specified
- * otherwise with the MapFactory constructor).
+ * otherwise with the MapFactory constructor).  Passing an
+ * ObjectDoubleHashMapFactory selects a primitive backend, which increments
+ * with a single unboxed probe and keeps a running total.
  */
 public class Counter <E> implements Serializable {
   private static final long serialVersionUID = 5724671156522771655L;
 
   Map<E, Double> entries;
+  ObjectDoubleHashMap<E> primitiveEntries;
 
   int currentModCount = 0;
   int cacheModCount = -1;
@@ -77,6 +87,8 @@ public class Counter <E> implements Serializable {
    * @return
    */
   public double getCount(E key) {
+    if (primitiveEntries != null)
+      return primitiveEntries.getDouble(key, 0.0);
     Double value = entries.get(key);
     if (value == null)
       return 0;
@@ -91,6 +103,10 @@ public class Counter <E> implements Serializable {
    */
   public void setCount(E key, double count) {
     currentModCount++;
+    if (primitiveEntries != null) {
+      primitiveEntries.putDouble(key, count);
+      return;
+    }
     entries.put(key, count);
   }
 
@@ -101,6 +117,11 @@ public class Counter <E> implements Serializable {
    * @param increment
    */
   public void incrementCount(E key, double increment) {
+    if (primitiveEntries != null) {
+      currentModCount++;
+      primitiveEntries.addToDouble(key, increment);
+      return;
+    }
     setCount(key, getCount(key) + increment);
   }
 
@@ -132,11 +153,14 @@ public class Counter <E> implements Serializable {
   /**
    * Finds the total of all counts in the counter.  This implementation uses
    * cached count which may get out of sync if the entries map is modified in
-   * some unantipicated way.
+   * some unantipicated way.  With the primitive backend the total is kept
+   * up to date by the map itself, so this is constant time.
    *
    * @return the counter's total
    */
   public double totalCount() {
+    if (primitiveEntries != null)
+      return primitiveEntries.total();
     if (currentModCount != cacheModCount) {
       double total = 0.0;
       for (Map.Entry<E, Double> entry : entries.entrySet()) {
@@ -176,6 +200,21 @@ public class Counter <E> implements Serializable {
   public E argMax() {
     double maxCount = Double.NEGATIVE_INFINITY;
     E maxKey = null;
+    if (primitiveEntries != null) {
+      Object[] keys = primitiveEntries.keys;
+      double[] values = primitiveEntries.values;
+      boolean found = false;
+      for (int i = 0; i < keys.length; i++) {
+        if (!ObjectDoubleHashMap.isLive(keys[i]))
+          continue;
+        if (values[i] > maxCount || !found) {
+          maxKey = ObjectDoubleHashMap.<E>unmaskNull(keys[i]);
+          maxCount = values[i];
+          found = true;
+        }
+      }
+      return maxKey;
+    }
     for (Map.Entry<E, Double> entry : entries.entrySet()) {
       if (entry.getValue() > maxCount || maxKey == null) {
         maxKey = entry.getKey();
@@ -203,7 +242,92 @@ public class Counter <E> implements Serializable {
    * @return partial string representation
    */
   public String toString(int maxKeysToPrint) {
-    return asPriorityQueue().toString(maxKeysToPrint);
+    return topK(maxKeysToPrint).toString(size());
+  }
+
+  /**
+   * Finds the k keys with largest counts in one pass, keeping only a k-sized
+   * heap rather than building a priority queue over every entry.
+   */
+  public TopK<E> topK(int k) {
+    TopK<E> topK = new TopK<E>(Math.max(0, Math.min(k, size())));
+    if (primitiveEntries != null) {
+      offerSlots(topK, primitiveEntries.keys, primitiveEntries.values, 0, primitiveEntries.keys.length);
+      return topK;
+    }
+    for (Map.Entry<E, Double> entry : entries.entrySet()) {
+      topK.offer(entry.getKey(), entry.getValue());
+    }
+    return topK;
+  }
+
+  /**
+   * Like topK(k), but splits the entries over numThreads threads, each
+   * keeping its own k best, and merges the results.  Only worth it for very
+   * large counters.  The counter must not be modified meanwhile.
+   */
+  public TopK<E> topK(int k, int numThreads) {
+    if (numThreads <= 1)
+      return topK(k);
+    final int kept = Math.max(0, Math.min(k, size()));
+    final Object[] keys;
+    final double[] values;
+    if (primitiveEntries != null) {
+      keys = primitiveEntries.keys;
+      values = primitiveEntries.values;
+    } else {
+      // generic maps cannot be split, so take a snapshot of the entries
+      keys = new Object[entries.size()];
+      values = new double[keys.length];
+      int i = 0;
+      for (Map.Entry<E, Double> entry : entries.entrySet()) {
+        keys[i] = entry.getKey();
+        values[i] = entry.getValue();
+        i++;
+      }
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    List<Future<TopK<E>>> futures = new ArrayList<Future<TopK<E>>>();
+    int chunkSize = (keys.length + numThreads - 1) / numThreads;
+    for (int start = 0; start < keys.length; start += chunkSize) {
+      final int from = start;
+      final int to = Math.min(start + chunkSize, keys.length);
+      futures.add(executor.submit(new Callable<TopK<E>>() {
+        public TopK<E> call() {
+          TopK<E> partial = new TopK<E>(kept);
+          if (primitiveEntries != null) {
+            offerSlots(partial, keys, values, from, to);
+          } else {
+            for (int i = from; i < to; i++) {
+              @SuppressWarnings("unchecked")
+              E key = (E) keys[i];
+              partial.offer(key, values[i]);
+            }
+          }
+          return partial;
+        }
+      }));
+    }
+    TopK<E> topK = new TopK<E>(kept);
+    try {
+      for (Future<TopK<E>> future : futures) {
+        topK.addAll(future.get());
+      }
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    } finally {
+      executor.shutdown();
+    }
+    return topK;
+  }
+
+  private static <E> void offerSlots(TopK<E> topK, Object[] keys, double[] values, int from, int to) {
+    for (int i = from; i < to; i++) {
+      if (ObjectDoubleHashMap.isLive(keys[i]))
+        topK.offer(ObjectDoubleHashMap.<E>unmaskNull(keys[i]), values[i]);
+    }
   }
 
   /**
@@ -232,6 +356,8 @@ public class Counter <E> implements Serializable {
 
   public Counter(MapFactory<E, Double> mf) {
     entries = mf.buildMap();
+    if (entries instanceof ObjectDoubleHashMap)
+      primitiveEntries = (ObjectDoubleHashMap<E>) entries;
   }
 
   public Counter(Counter<? extends E> counter) {
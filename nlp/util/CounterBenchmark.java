@@ -0,0 +1,92 @@
+package nlp.util;
+
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares the HashMap-backed Counter against the primitive
+ * ObjectDoubleHashMap backend on a Zipfian increment workload, which is what
+ * n-gram and feature counting looks like.  Usage:
+ * <p/>
+ *   java nlp.util.CounterBenchmark [-keys N] [-increments N] [-rounds N]
+ */
+public class CounterBenchmark {
+
+  static String[] zipfianStream(int numKeys, int numIncrements, long seed) {
+    String[] vocabulary = new String[numKeys];
+    for (int i = 0; i < numKeys; i++) {
+      vocabulary[i] = "w" + i;
+    }
+    double[] cumulative = new double[numKeys];
+    double sum = 0.0;
+    for (int i = 0; i < numKeys; i++) {
+      sum += 1.0 / (i + 1);
+      cumulative[i] = sum;
+    }
+    Random random = new Random(seed);
+    String[] stream = new String[numIncrements];
+    for (int i = 0; i < numIncrements; i++) {
+      double sample = random.nextDouble() * sum;
+      int low = 0, high = numKeys - 1;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (cumulative[mid] < sample) low = mid + 1;
+        else high = mid;
+      }
+      stream[i] = vocabulary[low];
+    }
+    return stream;
+  }
+
+  static double run(Counter<String> counter, String[] stream) {
+    double checksum = 0.0;
+    for (int i = 0; i < stream.length; i++) {
+      counter.incrementCount(stream[i], 1.0);
+      // relative-frequency lookups interleaved with counting, as in the LMs
+      if (i % 1000 == 0)
+        checksum += counter.totalCount();
+    }
+    for (String key : stream) {
+      checksum += counter.getCount(key);
+    }
+    return checksum + counter.getCount(counter.argMax());
+  }
+
+  static long usedMemory() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  static void report(String name, MapFactory<String, Double> mf, String[] stream, int rounds) {
+    Stopwatch stopwatch = new Stopwatch();
+    stopwatch.reset();
+    double checksum = 0.0;
+    for (int round = 0; round < rounds; round++) {
+      stopwatch.start();
+      checksum += run(new Counter<String>(mf), stream);
+      stopwatch.stop();
+    }
+    long before = usedMemory();
+    Counter<String> counter = new Counter<String>(mf);
+    run(counter, stream);
+    long after = usedMemory();
+    System.out.printf("%-12s %8.3f s/round  %10d bytes retained  %d keys  (checksum %.0f)\n",
+        name, stopwatch.getTotalElapsedTime() / rounds, after - before, counter.size(), checksum);
+  }
+
+  public static void main(String[] args) {
+    Map<String, String> argMap = CommandLineUtils.simpleCommandLineParser(args);
+    int numKeys = Integer.parseInt(CommandLineUtils.getValueOrUseDefault(argMap, "-keys", "200000"));
+    int numIncrements = Integer.parseInt(CommandLineUtils.getValueOrUseDefault(argMap, "-increments", "5000000"));
+    int rounds = Integer.parseInt(CommandLineUtils.getValueOrUseDefault(argMap, "-rounds", "5"));
+    String[] stream = zipfianStream(numKeys, numIncrements, 1L);
+    // warm up both code paths before timing
+    report("warmup", new MapFactory.HashMapFactory<String, Double>(), stream, 1);
+    report("warmup", new MapFactory.ObjectDoubleHashMapFactory<String>(), stream, 1);
+    report("HashMap", new MapFactory.HashMapFactory<String, Double>(), stream, rounds);
+    report("Primitive", new MapFactory.ObjectDoubleHashMapFactory<String>(), stream, rounds);
+  }
+}
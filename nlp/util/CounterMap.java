@@ -165,6 +165,33 @@ public class CounterMap <K,V> implements java.io.Serializable {
     return size() == 0;
   }
 
+  /**
+   * Compacts this CounterMap into a read-only FrozenCounterMap, for use once
+   * training is over and the counts are only looked up.  Later changes to
+   * this CounterMap are not reflected in the frozen copy.
+   */
+  public FrozenCounterMap<K,V> freeze() {
+    return new FrozenCounterMap<K,V>(this);
+  }
+
+  /**
+   * Finds the k (key, value) pairs with largest counts over the whole map in
+   * one pass.  A Pair is only built for entries which make it into the
+   * current top k.
+   */
+  public TopK<Pair<K,V>> topK(int k) {
+    TopK<Pair<K,V>> topK = new TopK<Pair<K,V>>(Math.max(0, Math.min(k, totalSize())));
+    for (Map.Entry<K, Counter<V>> entry : counterMap.entrySet()) {
+      K key = entry.getKey();
+      for (Map.Entry<V, Double> valueEntry : entry.getValue().getEntrySet()) {
+        double count = valueEntry.getValue();
+        if (count > topK.threshold())
+          topK.offer(new Pair<K,V>(key, valueEntry.getKey()), count);
+      }
+    }
+    return topK;
+  }
+
   public String toString() {
     StringBuilder sb = new StringBuilder("[\n");
     for (Map.Entry<K, Counter<V>> entry : counterMap.entrySet()) {
@@ -28,19 +28,24 @@ public class Counters {
     return normalizedCounterMap;
   }
 
+  public static <K,V> CounterMap<K,V> conditionalNormalize(LongCounterMap<K,V> counterMap) {
+    CounterMap<K,V> normalizedCounterMap = new CounterMap<K,V>();
+    for (K key : counterMap.keySet()) {
+      LongCounterMap<K,V>.Row row = counterMap.getCounter(key);
+      double total = row.totalCount();
+      for (V value : row.keySet()) {
+        normalizedCounterMap.setCount(key, value, row.getCount(value) / total);
+      }
+    }
+    return normalizedCounterMap;
+  }
+
   public static <E> String toBiggestValuesFirstString(Counter<E> c) {
     return c.asPriorityQueue().toString();
   }
 
   public static <E> String toBiggestValuesFirstString(Counter<E> c, int k) {
-    PriorityQueue<E> pq = c.asPriorityQueue();
-    PriorityQueue<E> largestK = new FastPriorityQueue<E>();
-    while (largestK.size() < k && pq.hasNext()) {
-      double firstScore = pq.getPriority();
-      E first = pq.next();
-      largestK.setPriority(first, firstScore);
-    }
-    return largestK.toString();
+    return c.topK(k).toString();
   }
 
   public static <E> List<E> sortedKeys(Counter<E> counter) {
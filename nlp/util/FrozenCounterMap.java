@@ -0,0 +1,251 @@
+package nlp.util;
+
+import java.io.Serializable;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A read-only, compacted snapshot of a CounterMap, meant for models which are
+ * done training and only look counts up.  Keys and values are mapped to
+ * integer ids by Indexers (or, when loaded by Snapshots, the mapped string
+ * table), and the (key, value) entries are laid out in
+ * compressed-sparse-row form: row k holds the entries for key id k, with its
+ * value ids sorted (so lookups are a binary search) and its counts in a
+ * parallel double array.  The size, total and argMax of each row are
+ * precomputed, so getCounter(key).size() style queries become array reads.
+ * Build one with CounterMap.freeze().
+ */
+public class FrozenCounterMap <K,V> implements Serializable {
+  private static final long serialVersionUID = 5724671156522771670L;
+
+  // Indexers, or any lists with fast indexOf() (such as a mapped
+  // FrozenStringIndexer)
+  List<K> keyIndexer;
+  List<V> valueIndexer;
+  int[] rowOffsets;
+  int[] valueIds;
+  double[] counts;
+  double[] rowTotals;
+  int[] rowArgMaxes;
+  double totalCount;
+
+  /**
+   * Returns the keys of this map.  The returned set is read-only.
+   */
+  public Set<K> keySet() {
+    return new AbstractSet<K>() {
+      public Iterator<K> iterator() {
+        return keyIndexer.iterator();
+      }
+
+      public int size() {
+        return keyIndexer.size();
+      }
+
+      public boolean contains(Object o) {
+        return keyIndexer.contains(o);
+      }
+    };
+  }
+
+  public boolean containsKey(K key) {
+    return keyIndexer.contains(key);
+  }
+
+  /**
+   * Gets the count of the given (key, value) entry, or zero if that entry is
+   * not present.
+   */
+  public double getCount(K key, V value) {
+    int keyId = keyIndexer.indexOf(key);
+    if (keyId < 0)
+      return 0.0;
+    int valueId = valueIndexer.indexOf(value);
+    if (valueId < 0)
+      return 0.0;
+    int entry = findEntry(keyId, valueId);
+    return (entry < 0 ? 0.0 : counts[entry]);
+  }
+
+  /**
+   * Returns the position of the (key id, value id) entry in the row arrays,
+   * or -1 if it is absent.
+   */
+  int findEntry(int keyId, int valueId) {
+    int entry = Arrays.binarySearch(valueIds, rowOffsets[keyId], rowOffsets[keyId + 1], valueId);
+    return (entry < 0 ? -1 : entry);
+  }
+
+  /**
+   * The number of distinct values stored for the key -- the same as
+   * getCounter(key).size() on the original CounterMap.
+   */
+  public int getRowSize(K key) {
+    int keyId = keyIndexer.indexOf(key);
+    if (keyId < 0)
+      return 0;
+    return rowOffsets[keyId + 1] - rowOffsets[keyId];
+  }
+
+  /**
+   * The total count stored for the key -- the same as
+   * getCounter(key).totalCount() on the original CounterMap.
+   */
+  public double getRowTotal(K key) {
+    int keyId = keyIndexer.indexOf(key);
+    if (keyId < 0)
+      return 0.0;
+    return rowTotals[keyId];
+  }
+
+  /**
+   * The value with the largest count for the key, or null if the key has no
+   * entries.  Ties go to the value which was indexed first.
+   */
+  public V argMax(K key) {
+    int keyId = keyIndexer.indexOf(key);
+    if (keyId < 0 || rowArgMaxes[keyId] < 0)
+      return null;
+    return valueIndexer.get(rowArgMaxes[keyId]);
+  }
+
+  /**
+   * Builds a new Counter holding the entries for the given key.  Unlike
+   * CounterMap.getCounter(), this copies, and changing the result has no
+   * effect on this map.
+   */
+  public Counter<V> getCounter(K key) {
+    Counter<V> counter = new Counter<V>();
+    int keyId = keyIndexer.indexOf(key);
+    if (keyId < 0)
+      return counter;
+    for (int entry = rowOffsets[keyId]; entry < rowOffsets[keyId + 1]; entry++) {
+      counter.setCount(valueIndexer.get(valueIds[entry]), counts[entry]);
+    }
+    return counter;
+  }
+
+  /**
+   * Returns the total of all counts in the map.
+   */
+  public double totalCount() {
+    return totalCount;
+  }
+
+  /**
+   * Returns the total number of (key, value) entries in the map.
+   */
+  public int totalSize() {
+    return valueIds.length;
+  }
+
+  /**
+   * The number of keys in this map.
+   */
+  public int size() {
+    return keyIndexer.size();
+  }
+
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  public String toString() {
+    StringBuilder sb = new StringBuilder("[\n");
+    for (K key : keyIndexer) {
+      sb.append("  ");
+      sb.append(key);
+      sb.append(" -> ");
+      sb.append(getCounter(key));
+      sb.append("\n");
+    }
+    sb.append("]");
+    return sb.toString();
+  }
+
+  /**
+   * Wraps ready-made rows, whose value ids must already be sorted within each
+   * row.  Row totals and argMaxes are recomputed.
+   */
+  FrozenCounterMap(List<K> keyIndexer, List<V> valueIndexer, int[] rowOffsets, int[] valueIds, double[] counts) {
+    this.keyIndexer = keyIndexer;
+    this.valueIndexer = valueIndexer;
+    this.rowOffsets = rowOffsets;
+    this.valueIds = valueIds;
+    this.counts = counts;
+    int numKeys = rowOffsets.length - 1;
+    rowTotals = new double[numKeys];
+    rowArgMaxes = new int[numKeys];
+    for (int keyId = 0; keyId < numKeys; keyId++) {
+      double rowTotal = 0.0;
+      int argMax = -1;
+      double maxCount = Double.NEGATIVE_INFINITY;
+      for (int entry = rowOffsets[keyId]; entry < rowOffsets[keyId + 1]; entry++) {
+        rowTotal += counts[entry];
+        if (counts[entry] > maxCount || argMax < 0) {
+          maxCount = counts[entry];
+          argMax = valueIds[entry];
+        }
+      }
+      rowTotals[keyId] = rowTotal;
+      rowArgMaxes[keyId] = argMax;
+      totalCount += rowTotal;
+    }
+  }
+
+  public FrozenCounterMap(CounterMap<K,V> counterMap) {
+    Indexer<K> keyIndexer = new Indexer<K>();
+    Indexer<V> valueIndexer = new Indexer<V>();
+    this.keyIndexer = keyIndexer;
+    this.valueIndexer = valueIndexer;
+    int numKeys = counterMap.size();
+    int numEntries = counterMap.totalSize();
+    rowOffsets = new int[numKeys + 1];
+    valueIds = new int[numEntries];
+    counts = new double[numEntries];
+    rowTotals = new double[numKeys];
+    rowArgMaxes = new int[numKeys];
+    long[] row = new long[16];
+    int entry = 0;
+    for (Map.Entry<K, Counter<V>> keyEntry : counterMap.counterMap.entrySet()) {
+      int keyId = keyIndexer.addAndGetIndex(keyEntry.getKey());
+      Counter<V> counter = keyEntry.getValue();
+      int rowSize = counter.size();
+      if (row.length < rowSize)
+        row = new long[Math.max(rowSize, row.length * 2)];
+      double[] rowCounts = new double[rowSize];
+      int i = 0;
+      for (Map.Entry<V, Double> valueEntry : counter.getEntrySet()) {
+        rowCounts[i] = valueEntry.getValue();
+        // pack (value id, position in rowCounts) so one sort orders both
+        row[i] = ((long) valueIndexer.addAndGetIndex(valueEntry.getKey()) << 32) | i;
+        i++;
+      }
+      Arrays.sort(row, 0, rowSize);
+      rowOffsets[keyId] = entry;
+      double rowTotal = 0.0;
+      int argMax = -1;
+      double maxCount = Double.NEGATIVE_INFINITY;
+      for (i = 0; i < rowSize; i++) {
+        int valueId = (int) (row[i] >>> 32);
+        double count = rowCounts[(int) row[i]];
+        valueIds[entry] = valueId;
+        counts[entry] = count;
+        rowTotal += count;
+        if (count > maxCount || argMax < 0) {
+          maxCount = count;
+          argMax = valueId;
+        }
+        entry++;
+      }
+      rowTotals[keyId] = rowTotal;
+      rowArgMaxes[keyId] = argMax;
+      totalCount += rowTotal;
+    }
+    rowOffsets[numKeys] = entry;
+  }
+}
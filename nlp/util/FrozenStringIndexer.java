@@ -0,0 +1,260 @@
+package nlp.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+
+/**
+ * A read-only string indexer laid out as one flat buffer, so that it can be
+ * written to disk as is and memory-mapped back with no parsing.  The layout
+ * (all ints big-endian) is:
+ * <pre>
+ *   MAGIC, VERSION, numStrings, numSlots
+ *   slots[numSlots]          index + 1 of the string in each slot, 0 if empty
+ *   hashes[numStrings]       String.hashCode() of each string
+ *   offsets[numStrings + 1]  byte offset of each string in the UTF-8 area
+ *   UTF-8 bytes
+ * </pre>
+ * Lookups probe the slots with the string's hash, which is fixed by the
+ * String.hashCode() contract and so stable across JVMs, and compare the
+ * UTF-8 bytes in place.  Being immutable, an instance can be shared by any
+ * number of threads without locking.  Get one from StringIndexer.freeze() or
+ * FrozenStringIndexer.map().
+ */
+public class FrozenStringIndexer extends AbstractList<String> {
+
+  static final int MAGIC = 0x53494458; // "SIDX"
+  static final int VERSION = 1;
+  static final int HEADER_BYTES = 16;
+
+  ByteBuffer buffer;
+  IntBuffer slots;
+  IntBuffer hashes;
+  IntBuffer offsets;
+  ByteBuffer bytes;
+  int numStrings;
+  int mask;
+  // decoded strings; filled eagerly when frozen in memory, lazily when mapped
+  String[] strings;
+
+  /**
+   * Return the string with the given index.
+   */
+  public String get(int index) {
+    if (index < 0 || index >= numStrings)
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + numStrings);
+    String s = strings[index];
+    if (s == null) {
+      int start = offsets.get(index);
+      byte[] utf8 = new byte[offsets.get(index + 1) - start];
+      ByteBuffer view = bytes.duplicate();
+      view.position(start);
+      view.get(utf8);
+      s = new String(utf8, StandardCharsets.UTF_8);
+      // benign race: every thread decodes the same value
+      strings[index] = s;
+    }
+    return s;
+  }
+
+  public int size() {
+    return numStrings;
+  }
+
+  /**
+   * Returns the index of the given string, or -1 if it is not present.
+   */
+  public int indexOf(Object o) {
+    if (!(o instanceof String))
+      return -1;
+    String s = (String) o;
+    int hashCode = s.hashCode();
+    int slot = StringIndexer.hash(s) & mask;
+    while (true) {
+      int entry = slots.get(slot);
+      if (entry == 0)
+        return -1;
+      int index = entry - 1;
+      if (hashes.get(index) == hashCode && matches(index, s))
+        return index;
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  private boolean matches(int index, String s) {
+    String decoded = strings[index];
+    if (decoded != null)
+      return decoded.equals(s);
+    return utf8Equals(bytes, offsets.get(index), offsets.get(index + 1), s);
+  }
+
+  /**
+   * Compares a UTF-8 byte range against a string without decoding it.
+   */
+  static boolean utf8Equals(ByteBuffer bytes, int start, int end, String s) {
+    int n = s.length();
+    int i = 0;
+    int pos = start;
+    while (pos < end) {
+      int b = bytes.get(pos) & 0xff;
+      int codePoint;
+      if (b < 0x80) {
+        codePoint = b;
+        pos += 1;
+      } else if (b < 0xE0) {
+        codePoint = ((b & 0x1f) << 6) | (bytes.get(pos + 1) & 0x3f);
+        pos += 2;
+      } else if (b < 0xF0) {
+        codePoint = ((b & 0x0f) << 12) | ((bytes.get(pos + 1) & 0x3f) << 6) | (bytes.get(pos + 2) & 0x3f);
+        pos += 3;
+      } else {
+        codePoint = ((b & 0x07) << 18) | ((bytes.get(pos + 1) & 0x3f) << 12) | ((bytes.get(pos + 2) & 0x3f) << 6) | (bytes.get(pos + 3) & 0x3f);
+        pos += 4;
+      }
+      if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+        if (i >= n || s.charAt(i) != codePoint) return false;
+        i++;
+      } else {
+        if (i + 1 >= n || s.charAt(i) != Character.highSurrogate(codePoint) || s.charAt(i + 1) != Character.lowSurrogate(codePoint)) return false;
+        i += 2;
+      }
+    }
+    return i == n;
+  }
+
+  public boolean contains(Object o) {
+    return indexOf(o) >= 0;
+  }
+
+  /**
+   * Writes this indexer in its on-disk form.
+   */
+  public void write(OutputStream out) throws IOException {
+    ByteBuffer view = buffer.duplicate();
+    view.position(0);
+    byte[] chunk = new byte[1 << 16];
+    while (view.hasRemaining()) {
+      int length = Math.min(chunk.length, view.remaining());
+      view.get(chunk, 0, length);
+      out.write(chunk, 0, length);
+    }
+  }
+
+  public void write(File file) throws IOException {
+    OutputStream out = new FileOutputStream(file);
+    try {
+      write(out);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Memory-maps an indexer written by write().  Only the header is read up
+   * front; strings are decoded the first time get() asks for them.
+   */
+  public static FrozenStringIndexer map(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      return new FrozenStringIndexer(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Wraps a buffer holding an indexer in its on-disk form, starting at the
+   * buffer's current position.
+   */
+  public FrozenStringIndexer(ByteBuffer source) {
+    buffer = source.slice();
+    if (buffer.getInt(0) != MAGIC)
+      throw new IllegalArgumentException("Not a string indexer file");
+    if (buffer.getInt(4) != VERSION)
+      throw new IllegalArgumentException("Unsupported string indexer version: " + buffer.getInt(4));
+    numStrings = buffer.getInt(8);
+    int numSlots = buffer.getInt(12);
+    mask = numSlots - 1;
+    slots = intSlice(HEADER_BYTES, numSlots);
+    hashes = intSlice(HEADER_BYTES + 4 * numSlots, numStrings);
+    offsets = intSlice(HEADER_BYTES + 4 * (numSlots + numStrings), numStrings + 1);
+    int bytesStart = HEADER_BYTES + 4 * (numSlots + 2 * numStrings + 1);
+    ByteBuffer view = buffer.duplicate();
+    view.position(bytesStart);
+    view.limit(bytesStart + offsets.get(numStrings));
+    bytes = view.slice();
+    strings = new String[numStrings];
+    // drop whatever follows the indexer in the source buffer
+    buffer.limit(bytesStart + offsets.get(numStrings));
+    buffer = buffer.slice();
+  }
+
+  private IntBuffer intSlice(int byteOffset, int length) {
+    ByteBuffer view = buffer.duplicate();
+    view.position(byteOffset);
+    view.limit(byteOffset + 4 * length);
+    return view.slice().asIntBuffer();
+  }
+
+  /**
+   * The number of bytes this indexer occupies in its on-disk form.
+   */
+  public int byteSize() {
+    return buffer.capacity();
+  }
+
+  FrozenStringIndexer(String[] strings) {
+    this(layout(strings));
+    System.arraycopy(strings, 0, this.strings, 0, strings.length);
+  }
+
+  private static ByteBuffer layout(String[] strings) {
+    int n = strings.length;
+    int numSlots = 2;
+    while (numSlots < 2 * n) {
+      numSlots <<= 1;
+    }
+    byte[][] utf8 = new byte[n][];
+    int totalBytes = 0;
+    for (int i = 0; i < n; i++) {
+      utf8[i] = strings[i].getBytes(StandardCharsets.UTF_8);
+      totalBytes += utf8[i].length;
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + 4 * (numSlots + 2 * n + 1) + totalBytes);
+    buffer.putInt(MAGIC).putInt(VERSION).putInt(n).putInt(numSlots);
+    int[] slotArray = new int[numSlots];
+    int mask = numSlots - 1;
+    for (int i = 0; i < n; i++) {
+      int slot = StringIndexer.hash(strings[i]) & mask;
+      while (slotArray[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      slotArray[slot] = i + 1;
+    }
+    for (int i = 0; i < numSlots; i++) {
+      buffer.putInt(slotArray[i]);
+    }
+    for (int i = 0; i < n; i++) {
+      buffer.putInt(strings[i].hashCode());
+    }
+    int offset = 0;
+    for (int i = 0; i < n; i++) {
+      buffer.putInt(offset);
+      offset += utf8[i].length;
+    }
+    buffer.putInt(offset);
+    for (int i = 0; i < n; i++) {
+      buffer.put(utf8[i]);
+    }
+    buffer.flip();
+    return buffer;
+  }
+}
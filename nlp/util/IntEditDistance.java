@@ -0,0 +1,142 @@
+package nlp.util;
+
+import java.util.Arrays;
+
+/**
+ * Levenshtein distance between sentences given as arrays of token ids (say
+ * from a StringIndexer), with unit insert, delete and substitute costs.
+ * When either sentence has at most 64 tokens the distance is computed
+ * bit-parallel (Myers' algorithm, in Hyyro's form for edit distance), one
+ * machine word per token of the other sentence; otherwise a two-row dynamic
+ * program is used.  Scratch space is kept per thread, so calls allocate
+ * nothing once warm and may run on several threads at once.
+ */
+public class IntEditDistance {
+
+  private static final int PEQ_BITS = 7;
+  private static final int PEQ_SIZE = 1 << PEQ_BITS;
+
+  // per-thread scratch space
+  private static final class Workspace {
+    // match masks of the pattern's tokens, in a small open-addressing table
+    // (an empty slot has mask 0, since every pattern token matches somewhere)
+    final int[] peqTokens = new int[PEQ_SIZE];
+    final long[] peqMasks = new long[PEQ_SIZE];
+    int[] rows = new int[64];
+
+    int[] rows(int length) {
+      if (rows.length < 2 * length)
+        rows = new int[Math.max(2 * length, 2 * rows.length)];
+      return rows;
+    }
+  }
+
+  private static final ThreadLocal<Workspace> workspaces = new ThreadLocal<Workspace>() {
+    protected Workspace initialValue() {
+      return new Workspace();
+    }
+  };
+
+  /**
+   * The edit distance between the two token sequences.
+   */
+  public static int getDistance(int[] first, int[] second) {
+    if (first.length <= 64)
+      return bitParallelDistance(first, second);
+    if (second.length <= 64)
+      return bitParallelDistance(second, first);
+    return getDistance(first, second, Math.max(first.length, second.length));
+  }
+
+  /**
+   * The edit distance between the two token sequences if it is at most
+   * maxDistance, and otherwise maxDistance + 1.  Only the diagonal band of
+   * width 2 * maxDistance + 1 is filled in, and the computation stops as soon
+   * as a whole row exceeds maxDistance, so a tight bound makes this fast.
+   */
+  public static int getDistance(int[] first, int[] second, int maxDistance) {
+    int n = first.length;
+    int m = second.length;
+    int tooFar = maxDistance + 1;
+    if (Math.abs(n - m) > maxDistance)
+      return tooFar;
+    int[] rows = workspaces.get().rows(m + 1);
+    int previous = 0;
+    int current = m + 1;
+    for (int j = 0; j <= m; j++) {
+      rows[previous + j] = Math.min(j, tooFar);
+    }
+    for (int i = 1; i <= n; i++) {
+      int from = Math.max(1, i - maxDistance);
+      int to = Math.min(m, i + maxDistance);
+      int token = first[i - 1];
+      rows[current] = Math.min(i, tooFar);
+      if (from > 1)
+        rows[current + from - 1] = tooFar;
+      int rowMin = (from == 1 ? rows[current] : tooFar);
+      for (int j = from; j <= to; j++) {
+        int distance = Math.min(rows[previous + j], rows[current + j - 1]) + 1;
+        int diagonal = rows[previous + j - 1] + (token == second[j - 1] ? 0 : 1);
+        distance = Math.min(Math.min(distance, diagonal), tooFar);
+        rows[current + j] = distance;
+        if (distance < rowMin)
+          rowMin = distance;
+      }
+      // the next row reads one cell past this row's band
+      if (to < m)
+        rows[current + to + 1] = tooFar;
+      if (rowMin > maxDistance)
+        return tooFar;
+      int swap = previous;
+      previous = current;
+      current = swap;
+    }
+    return rows[previous + m];
+  }
+
+  // pattern must have at most 64 tokens
+  private static int bitParallelDistance(int[] pattern, int[] text) {
+    int m = pattern.length;
+    if (m == 0)
+      return text.length;
+    Workspace workspace = workspaces.get();
+    int[] peqTokens = workspace.peqTokens;
+    long[] peqMasks = workspace.peqMasks;
+    for (int i = 0; i < m; i++) {
+      int slot = findSlot(peqTokens, peqMasks, pattern[i]);
+      peqTokens[slot] = pattern[i];
+      peqMasks[slot] |= 1L << i;
+    }
+    long lastBit = 1L << (m - 1);
+    long pv = -1L;
+    long mv = 0L;
+    int score = m;
+    for (int token : text) {
+      long eq = peqMasks[findSlot(peqTokens, peqMasks, token)];
+      long xv = eq | mv;
+      long xh = (((eq & pv) + pv) ^ pv) | eq;
+      long ph = mv | ~(xh | pv);
+      long mh = pv & xh;
+      if ((ph & lastBit) != 0)
+        score++;
+      else if ((mh & lastBit) != 0)
+        score--;
+      // row 0 of the table grows by one per text token
+      ph = (ph << 1) | 1L;
+      mh = mh << 1;
+      pv = mh | ~(xv | ph);
+      mv = ph & xv;
+    }
+    Arrays.fill(peqMasks, 0L);
+    return score;
+  }
+
+  // the slot holding the token, or the empty slot where it would go
+  private static int findSlot(int[] peqTokens, long[] peqMasks, int token) {
+    int slot = (token * 0x9E3779B9) >>> (32 - PEQ_BITS);
+    while (peqMasks[slot] != 0 && peqTokens[slot] != token) {
+      slot = (slot + 1) & (PEQ_SIZE - 1);
+    }
+    return slot;
+  }
+}
@@ -0,0 +1,329 @@
+package nlp.util;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * A priority queue over int item ids (for example chart edges or search states
+ * numbered by an Indexer), backed by an indexed 4-ary heap.  The heap holds
+ * ids and priorities in parallel primitive arrays, and a position array maps
+ * each id to its heap slot, so setPriority, relaxPriority, decreasePriority
+ * and removeKey are all O(log n) and nothing is allocated per push once the
+ * arrays have grown.  A 4-ary heap is shallower than a binary one, and the
+ * four children of a slot sit next to each other in memory.
+ * <p/>
+ * The primitive methods (setPriority(int, double), removeFirstInt() and so
+ * on) should be preferred; the boxed methods of the PriorityQueue interface
+ * are provided so that it can stand in for GeneralPriorityQueue.  Larger
+ * doubles are higher priorities, and ids must be non-negative.
+ */
+public class IntPriorityQueue implements PriorityQueue<Integer> {
+
+  private static final int ARITY = 4;
+  private static final int INITIAL_CAPACITY = 16;
+
+  int size = 0;
+  int[] items = new int[INITIAL_CAPACITY];
+  double[] priorities = new double[INITIAL_CAPACITY];
+  // heap slot of each id, -1 if absent
+  int[] positions = new int[INITIAL_CAPACITY];
+
+  public IntPriorityQueue() {
+    Arrays.fill(positions, -1);
+  }
+
+  /**
+   * Builds a queue with room for ids below maxId without growing.
+   */
+  public IntPriorityQueue(int maxId) {
+    positions = new int[Math.max(maxId, 1)];
+    Arrays.fill(positions, -1);
+  }
+
+  public boolean containsKey(int item) {
+    return item >= 0 && item < positions.length && positions[item] >= 0;
+  }
+
+  /**
+   * Get the priority of an id -- if the id is not in the queue,
+   * Double.NEGATIVE_INFINITY is returned.
+   */
+  public double getPriority(int item) {
+    if (!containsKey(item))
+      return Double.NEGATIVE_INFINITY;
+    return priorities[positions[item]];
+  }
+
+  /**
+   * Returns the id with the highest priority, without removing it.
+   */
+  public int getFirstInt() {
+    if (size == 0) throw new NoSuchElementException();
+    return items[0];
+  }
+
+  /**
+   * Removes and returns the id with the highest priority.
+   */
+  public int removeFirstInt() {
+    int first = getFirstInt();
+    removeAt(0);
+    return first;
+  }
+
+  public double getPriority() {
+    if (size == 0) throw new NoSuchElementException();
+    return priorities[0];
+  }
+
+  /**
+   * Changes a priority, either up or down, adding the id if it wasn't there
+   * already.
+   */
+  public void setPriority(int item, double priority) {
+    int slot = slotFor(item);
+    double old = priorities[slot];
+    priorities[slot] = priority;
+    if (priority > old)
+      siftUp(slot);
+    else if (priority < old)
+      siftDown(slot);
+  }
+
+  /**
+   * Promotes an id, adding it if it wasn't there already.  If the specified
+   * priority is worse than the current priority, nothing happens.
+   *
+   * @return whether the priority actually improved.
+   */
+  public boolean relaxPriority(int item, double priority) {
+    int slot = slotFor(item);
+    if (!(priority > priorities[slot]))
+      return false;
+    priorities[slot] = priority;
+    siftUp(slot);
+    return true;
+  }
+
+  /**
+   * Demotes an id, adding it if it wasn't there already.  If the specified
+   * priority is better than the current priority, nothing happens.  As with
+   * GeneralPriorityQueue, a new id is added at Double.NEGATIVE_INFINITY.
+   *
+   * @return whether the priority actually decreased.
+   */
+  public boolean decreasePriority(int item, double priority) {
+    int slot = slotFor(item);
+    if (!(priority < priorities[slot]))
+      return false;
+    priorities[slot] = priority;
+    siftDown(slot);
+    return true;
+  }
+
+  /**
+   * Removes an id, returning its priority (Double.NEGATIVE_INFINITY if it was
+   * not present).
+   */
+  public double removeKey(int item) {
+    if (!containsKey(item))
+      return Double.NEGATIVE_INFINITY;
+    int slot = positions[item];
+    double priority = priorities[slot];
+    removeAt(slot);
+    return priority;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Empties the queue, in time proportional to its size.
+   */
+  public void clear() {
+    for (int i = 0; i < size; i++) {
+      positions[items[i]] = -1;
+    }
+    size = 0;
+  }
+
+  // the slot holding item, inserting it at the bottom (priority -inf) if absent
+  private int slotFor(int item) {
+    if (item < 0)
+      throw new IllegalArgumentException("Negative id: " + item);
+    if (item >= positions.length) {
+      int oldLength = positions.length;
+      positions = Arrays.copyOf(positions, Math.max(oldLength * 2, item + 1));
+      Arrays.fill(positions, oldLength, positions.length, -1);
+    }
+    int slot = positions[item];
+    if (slot >= 0)
+      return slot;
+    if (size == items.length) {
+      items = Arrays.copyOf(items, size * 2);
+      priorities = Arrays.copyOf(priorities, size * 2);
+    }
+    slot = size++;
+    items[slot] = item;
+    priorities[slot] = Double.NEGATIVE_INFINITY;
+    positions[item] = slot;
+    return slot;
+  }
+
+  private void removeAt(int slot) {
+    positions[items[slot]] = -1;
+    int last = --size;
+    if (slot == last)
+      return;
+    int movedItem = items[last];
+    double movedPriority = priorities[last];
+    items[slot] = movedItem;
+    priorities[slot] = movedPriority;
+    positions[movedItem] = slot;
+    if (slot > 0 && movedPriority > priorities[(slot - 1) / ARITY])
+      siftUp(slot);
+    else
+      siftDown(slot);
+  }
+
+  private void siftUp(int slot) {
+    int item = items[slot];
+    double priority = priorities[slot];
+    while (slot > 0) {
+      int parent = (slot - 1) / ARITY;
+      if (!(priority > priorities[parent]))
+        break;
+      items[slot] = items[parent];
+      priorities[slot] = priorities[parent];
+      positions[items[slot]] = slot;
+      slot = parent;
+    }
+    items[slot] = item;
+    priorities[slot] = priority;
+    positions[item] = slot;
+  }
+
+  private void siftDown(int slot) {
+    int item = items[slot];
+    double priority = priorities[slot];
+    while (true) {
+      int firstChild = ARITY * slot + 1;
+      if (firstChild >= size)
+        break;
+      int lastChild = Math.min(firstChild + ARITY, size);
+      int best = firstChild;
+      for (int child = firstChild + 1; child < lastChild; child++) {
+        if (priorities[child] > priorities[best])
+          best = child;
+      }
+      if (!(priorities[best] > priority))
+        break;
+      items[slot] = items[best];
+      priorities[slot] = priorities[best];
+      positions[items[slot]] = slot;
+      slot = best;
+    }
+    items[slot] = item;
+    priorities[slot] = priority;
+    positions[item] = slot;
+  }
+
+  /**
+   * Returns a copy of this queue.
+   */
+  public IntPriorityQueue deepCopy() {
+    IntPriorityQueue pq = new IntPriorityQueue();
+    pq.size = size;
+    pq.items = items.clone();
+    pq.priorities = priorities.clone();
+    pq.positions = positions.clone();
+    return pq;
+  }
+
+  // boxed PriorityQueue methods
+
+  public boolean hasNext() {
+    return size > 0;
+  }
+
+  public Integer next() {
+    return removeFirstInt();
+  }
+
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  public Integer getFirst() {
+    return getFirstInt();
+  }
+
+  public Integer removeFirst() {
+    return removeFirstInt();
+  }
+
+  public boolean containsKey(Integer item) {
+    return item != null && containsKey(item.intValue());
+  }
+
+  public double removeKey(Integer item) {
+    return removeKey(item.intValue());
+  }
+
+  public void setPriority(Integer item, double priority) {
+    setPriority(item.intValue(), priority);
+  }
+
+  public double getPriority(Integer item) {
+    return getPriority(item.intValue());
+  }
+
+  public String toString() {
+    return toString(size());
+  }
+
+  /**
+   * Returns a representation of the queue in decreasing priority order,
+   * displaying at most maxKeysToPrint elements.
+   */
+  public String toString(int maxKeysToPrint) {
+    IntPriorityQueue pq = deepCopy();
+    StringBuilder sb = new StringBuilder("[");
+    int numKeysPrinted = 0;
+    while (numKeysPrinted < maxKeysToPrint && ! pq.isEmpty()) {
+      double priority = pq.getPriority();
+      int item = pq.removeFirstInt();
+      sb.append(item);
+      sb.append(" : ");
+      sb.append(priority);
+      if (numKeysPrinted < size() - 1)
+        sb.append(", ");
+      numKeysPrinted++;
+    }
+    if (numKeysPrinted < size())
+      sb.append("...");
+    sb.append("]");
+    return sb.toString();
+  }
+
+  public static void main(String[] args) {
+    IntPriorityQueue queue = new IntPriorityQueue();
+    queue.setPriority(1, 1.0);
+    System.out.println("Added 1:1 " + queue);
+    queue.setPriority(2, 2.0);
+    System.out.println("Added 2:2 " + queue);
+    queue.setPriority(3, 1.5);
+    System.out.println("Added 3:1.5 " + queue);
+    queue.relaxPriority(1, 3.0);
+    System.out.println("Increased 1 to 3 " + queue);
+    queue.decreasePriority(2, 0.0);
+    System.out.println("Decreased 2 to 0 " + queue);
+    System.out.println("removeFirst()=" + queue.removeFirstInt());
+    System.out.println("queue=" + queue);
+  }
+}
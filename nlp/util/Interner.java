@@ -100,6 +100,15 @@ public class Interner <T> {
     canonicalMap = mf.buildMap();
     this.cf = cf;
   }
+
+  /**
+   * For subclasses which keep their canonical objects elsewhere; the map may
+   * be null if they override every method which uses it.
+   */
+  Interner(CanonicalFactory<T> cf, Map<T, T> canonicalMap) {
+    this.canonicalMap = canonicalMap;
+    this.cf = cf;
+  }
   /**
    * Clear the contents of the interner 
    * @author aria42
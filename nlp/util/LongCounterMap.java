@@ -0,0 +1,324 @@
+package nlp.util;
+
+import java.io.Serializable;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A training-time CounterMap which stores every (key, value) count in a single
+ * primitive hash table.  Keys and values are given integer ids by Indexers,
+ * and each entry is keyed by the packed long (key id &lt;&lt; 32 | value id),
+ * so an increment is one probe with no Counter allocated per key and no boxed
+ * Double.  Entries for the same key are chained together, and each key's
+ * size and total are kept up to date, so getCounter(key) can hand out a
+ * cheap Row view answering size(), totalCount(), getCount() and keySet().
+ * Unlike CounterMap.getCounter(), asking for the row of an unseen key does
+ * not insert it.
+ */
+public class LongCounterMap <K,V> implements Serializable {
+  private static final long serialVersionUID = 5724671156522771671L;
+
+  private static final int INITIAL_CAPACITY = 16;
+
+  Indexer<K> keyIndexer = new Indexer<K>();
+  Indexer<V> valueIndexer = new Indexer<V>();
+
+  // open-addressing table: packed key -> entry index + 1 (0 marks empty)
+  long[] slotKeys = new long[INITIAL_CAPACITY];
+  int[] slotEntries = new int[INITIAL_CAPACITY];
+
+  // entries, in insertion order
+  int numEntries = 0;
+  long[] entryKeys = new long[INITIAL_CAPACITY];
+  double[] entryCounts = new double[INITIAL_CAPACITY];
+  int[] entryNext = new int[INITIAL_CAPACITY];
+
+  // per key id: first entry of the row's chain (-1 if none), size and total
+  int[] rowHeads = new int[INITIAL_CAPACITY];
+  int[] rowSizes = new int[INITIAL_CAPACITY];
+  double[] rowTotals = new double[INITIAL_CAPACITY];
+
+  double totalCount = 0.0;
+
+  static long pack(int keyId, int valueId) {
+    return ((long) keyId << 32) | (valueId & 0xffffffffL);
+  }
+
+  private static int hash(long packed) {
+    long h = packed * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  private int findEntry(long packed) {
+    int mask = slotKeys.length - 1;
+    int slot = hash(packed) & mask;
+    while (slotEntries[slot] != 0) {
+      if (slotKeys[slot] == packed)
+        return slotEntries[slot] - 1;
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  private int findOrInsertEntry(int keyId, int valueId) {
+    long packed = pack(keyId, valueId);
+    int mask = slotKeys.length - 1;
+    int slot = hash(packed) & mask;
+    while (slotEntries[slot] != 0) {
+      if (slotKeys[slot] == packed)
+        return slotEntries[slot] - 1;
+      slot = (slot + 1) & mask;
+    }
+    int entry = numEntries++;
+    if (entry == entryKeys.length)
+      growEntries();
+    ensureRow(keyId);
+    entryKeys[entry] = packed;
+    entryNext[entry] = rowHeads[keyId];
+    rowHeads[keyId] = entry;
+    rowSizes[keyId]++;
+    slotKeys[slot] = packed;
+    slotEntries[slot] = entry + 1;
+    if (numEntries * 2 > slotKeys.length)
+      rehash(slotKeys.length * 2);
+    return entry;
+  }
+
+  private void growEntries() {
+    int capacity = entryKeys.length * 2;
+    entryKeys = Arrays.copyOf(entryKeys, capacity);
+    entryCounts = Arrays.copyOf(entryCounts, capacity);
+    entryNext = Arrays.copyOf(entryNext, capacity);
+  }
+
+  private void ensureRow(int keyId) {
+    int oldLength = rowHeads.length;
+    if (keyId < oldLength)
+      return;
+    int capacity = Math.max(oldLength * 2, keyId + 1);
+    rowHeads = Arrays.copyOf(rowHeads, capacity);
+    rowSizes = Arrays.copyOf(rowSizes, capacity);
+    rowTotals = Arrays.copyOf(rowTotals, capacity);
+    Arrays.fill(rowHeads, oldLength, capacity, -1);
+  }
+
+  private void rehash(int newCapacity) {
+    slotKeys = new long[newCapacity];
+    slotEntries = new int[newCapacity];
+    int mask = newCapacity - 1;
+    for (int entry = 0; entry < numEntries; entry++) {
+      long packed = entryKeys[entry];
+      int slot = hash(packed) & mask;
+      while (slotEntries[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      slotKeys[slot] = packed;
+      slotEntries[slot] = entry + 1;
+    }
+  }
+
+  /**
+   * Increments the count for a (key id, value id) pair, with ids taken from
+   * getKeyIndexer() and getValueIndexer().
+   */
+  public void incrementCount(int keyId, int valueId, double count) {
+    int entry = findOrInsertEntry(keyId, valueId);
+    entryCounts[entry] += count;
+    rowTotals[keyId] += count;
+    totalCount += count;
+  }
+
+  /**
+   * Increments the count for a particular (key, value) pair.
+   */
+  public void incrementCount(K key, V value, double count) {
+    incrementCount(keyIndexer.addAndGetIndex(key), valueIndexer.addAndGetIndex(value), count);
+  }
+
+  /**
+   * Sets the count for a particular (key, value) pair.
+   */
+  public void setCount(K key, V value, double count) {
+    int keyId = keyIndexer.addAndGetIndex(key);
+    int entry = findOrInsertEntry(keyId, valueIndexer.addAndGetIndex(value));
+    double delta = count - entryCounts[entry];
+    entryCounts[entry] = count;
+    rowTotals[keyId] += delta;
+    totalCount += delta;
+  }
+
+  /**
+   * Gets the count of the (key id, value id) entry, or zero if that entry is
+   * not present.
+   */
+  public double getCount(int keyId, int valueId) {
+    if (keyId < 0 || valueId < 0)
+      return 0.0;
+    int entry = findEntry(pack(keyId, valueId));
+    return (entry < 0 ? 0.0 : entryCounts[entry]);
+  }
+
+  /**
+   * Gets the count of the given (key, value) entry, or zero if that entry is
+   * not present.  Does not create any objects.
+   */
+  public double getCount(K key, V value) {
+    return getCount(keyIndexer.indexOf(key), valueIndexer.indexOf(value));
+  }
+
+  /**
+   * A read-through view of the entries for one key.
+   */
+  public class Row {
+    final int keyId;
+
+    /**
+     * The number of distinct values seen with this key.
+     */
+    public int size() {
+      return (keyId < 0 || keyId >= rowSizes.length ? 0 : rowSizes[keyId]);
+    }
+
+    public boolean isEmpty() {
+      return size() == 0;
+    }
+
+    public double totalCount() {
+      return (keyId < 0 || keyId >= rowTotals.length ? 0.0 : rowTotals[keyId]);
+    }
+
+    public double getCount(V value) {
+      return LongCounterMap.this.getCount(keyId, valueIndexer.indexOf(value));
+    }
+
+    public boolean containsKey(V value) {
+      int valueId = valueIndexer.indexOf(value);
+      return keyId >= 0 && valueId >= 0 && findEntry(pack(keyId, valueId)) >= 0;
+    }
+
+    /**
+     * The values seen with this key, most recently added first.
+     */
+    public Set<V> keySet() {
+      return new AbstractSet<V>() {
+        public Iterator<V> iterator() {
+          return new Iterator<V>() {
+            int entry = (size() == 0 ? -1 : rowHeads[keyId]);
+
+            public boolean hasNext() {
+              return entry >= 0;
+            }
+
+            public V next() {
+              if (entry < 0)
+                throw new NoSuchElementException();
+              V value = valueIndexer.get((int) entryKeys[entry]);
+              entry = entryNext[entry];
+              return value;
+            }
+
+            public void remove() {
+              throw new UnsupportedOperationException();
+            }
+          };
+        }
+
+        public int size() {
+          return Row.this.size();
+        }
+      };
+    }
+
+    Row(int keyId) {
+      this.keyId = keyId;
+    }
+  }
+
+  /**
+   * Returns a view of the entries for the given key.  The view is empty (and
+   * nothing is inserted) if the key has not been seen.
+   */
+  public Row getCounter(K key) {
+    return new Row(keyIndexer.indexOf(key));
+  }
+
+  /**
+   * Returns the keys that have been inserted into this map.
+   */
+  public Set<K> keySet() {
+    return new AbstractSet<K>() {
+      public Iterator<K> iterator() {
+        return keyIndexer.iterator();
+      }
+
+      public int size() {
+        return keyIndexer.size();
+      }
+
+      public boolean contains(Object o) {
+        return keyIndexer.contains(o);
+      }
+    };
+  }
+
+  public boolean containsKey(K key) {
+    return keyIndexer.contains(key);
+  }
+
+  public Indexer<K> getKeyIndexer() {
+    return keyIndexer;
+  }
+
+  public Indexer<V> getValueIndexer() {
+    return valueIndexer;
+  }
+
+  /**
+   * Returns the total of all counts.  This is kept as a running sum, so it is
+   * constant time.
+   */
+  public double totalCount() {
+    return totalCount;
+  }
+
+  /**
+   * Returns the total number of (key, value) entries (not their total counts).
+   */
+  public int totalSize() {
+    return numEntries;
+  }
+
+  /**
+   * The number of keys in this map.
+   */
+  public int size() {
+    return keyIndexer.size();
+  }
+
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  /**
+   * Copies the counts into an ordinary CounterMap.
+   */
+  public CounterMap<K,V> toCounterMap() {
+    CounterMap<K,V> counterMap = new CounterMap<K,V>();
+    for (int entry = 0; entry < numEntries; entry++) {
+      long packed = entryKeys[entry];
+      counterMap.setCount(keyIndexer.get((int) (packed >>> 32)), valueIndexer.get((int) packed), entryCounts[entry]);
+    }
+    return counterMap;
+  }
+
+  public String toString() {
+    return toCounterMap().toString();
+  }
+
+  public LongCounterMap() {
+    Arrays.fill(rowHeads, -1);
+  }
+}
@@ -0,0 +1,298 @@
+package nlp.util;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded map from long keys to double values, for memoizing expensive
+ * functions shared between threads.  Keys are spread over segments, each with
+ * its own lock, a fixed number of entries and an open-addressing index over
+ * them, so nothing is allocated after construction.  When a segment is full
+ * an entry is evicted by the chosen Policy.  Hits, misses and evictions are
+ * counted for monitoring.
+ */
+public class LongDoubleCache {
+
+  public enum Policy {
+    /**
+     * Second chance: a lookup sets its entry's reference bit, and the clock
+     * hand clears set bits as it sweeps until it finds an entry not used
+     * since its last pass.  Hits only set a bit.
+     */
+    CLOCK,
+    /**
+     * Least recently used: a lookup moves its entry to the front of a
+     * list, and the entry at the back is evicted.
+     */
+    LRU
+  }
+
+  private static final class Segment {
+    final Policy policy;
+    final long[] keys;
+    final double[] values;
+    // entry index + 1 for each slot, 0 if empty
+    final int[] table;
+    final int tableMask;
+    int size = 0;
+    // CLOCK
+    final boolean[] referenced;
+    int hand = 0;
+    // LRU: a doubly linked list of entries, most recently used first
+    final int[] previous;
+    final int[] next;
+    int head = -1;
+    int tail = -1;
+
+    Segment(int capacity, Policy policy) {
+      this.policy = policy;
+      keys = new long[capacity];
+      values = new double[capacity];
+      int tableSize = Integer.highestOneBit(Math.max(2, 2 * capacity - 1)) << 1;
+      table = new int[tableSize];
+      tableMask = tableSize - 1;
+      if (policy == Policy.CLOCK) {
+        referenced = new boolean[capacity];
+        previous = null;
+        next = null;
+      } else {
+        referenced = null;
+        previous = new int[capacity];
+        next = new int[capacity];
+      }
+    }
+
+    // the slot holding the key's entry, or the empty slot where it would go
+    private int findSlot(long key, int h) {
+      int slot = h & tableMask;
+      while (table[slot] != 0 && keys[table[slot] - 1] != key) {
+        slot = (slot + 1) & tableMask;
+      }
+      return slot;
+    }
+
+    synchronized double get(long key, int h, double ifAbsent) {
+      int entry = table[findSlot(key, h)] - 1;
+      if (entry < 0)
+        return ifAbsent;
+      touch(entry);
+      return values[entry];
+    }
+
+    private void touch(int entry) {
+      if (policy == Policy.CLOCK) {
+        referenced[entry] = true;
+      } else if (entry != head) {
+        unlink(entry);
+        linkFirst(entry);
+      }
+    }
+
+    private void unlink(int entry) {
+      if (previous[entry] >= 0)
+        next[previous[entry]] = next[entry];
+      else
+        head = next[entry];
+      if (next[entry] >= 0)
+        previous[next[entry]] = previous[entry];
+      else
+        tail = previous[entry];
+    }
+
+    private void linkFirst(int entry) {
+      previous[entry] = -1;
+      next[entry] = head;
+      if (head >= 0)
+        previous[head] = entry;
+      head = entry;
+      if (tail < 0)
+        tail = entry;
+    }
+
+    // returns whether an entry was evicted to make room
+    synchronized boolean put(long key, int h, double value) {
+      int slot = findSlot(key, h);
+      if (table[slot] != 0) {
+        values[table[slot] - 1] = value;
+        return false;
+      }
+      boolean evicted = false;
+      int entry;
+      if (size < keys.length) {
+        entry = size++;
+      } else {
+        entry = victim();
+        remove(entry);
+        evicted = true;
+        // removal may have shifted the slot the new key belongs in
+        slot = findSlot(key, h);
+      }
+      keys[entry] = key;
+      values[entry] = value;
+      table[slot] = entry + 1;
+      if (policy == Policy.CLOCK)
+        referenced[entry] = false;
+      else
+        linkFirst(entry);
+      return evicted;
+    }
+
+    private int victim() {
+      if (policy == Policy.LRU) {
+        int entry = tail;
+        unlink(entry);
+        return entry;
+      }
+      while (referenced[hand]) {
+        referenced[hand] = false;
+        hand = (hand + 1) % keys.length;
+      }
+      int entry = hand;
+      hand = (hand + 1) % keys.length;
+      return entry;
+    }
+
+    // unlinks an entry from the index, shifting back later entries of its probe run
+    private void remove(int entry) {
+      int slot = findSlot(keys[entry], hash(keys[entry]));
+      table[slot] = 0;
+      int following = (slot + 1) & tableMask;
+      while (table[following] != 0) {
+        int ideal = hash(keys[table[following] - 1]) & tableMask;
+        if (((following - ideal) & tableMask) >= ((following - slot) & tableMask)) {
+          table[slot] = table[following];
+          table[following] = 0;
+          slot = following;
+        }
+        following = (following + 1) & tableMask;
+      }
+    }
+
+    synchronized void clear() {
+      Arrays.fill(table, 0);
+      if (referenced != null)
+        Arrays.fill(referenced, false);
+      size = 0;
+      hand = 0;
+      head = -1;
+      tail = -1;
+    }
+
+    synchronized int size() {
+      return size;
+    }
+  }
+
+  private final Segment[] segments;
+  private final int segmentShift;
+  private final int capacity;
+  private final Policy policy;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  static int hash(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  private Segment segmentFor(int h) {
+    return segments[segmentShift == 32 ? 0 : h >>> segmentShift];
+  }
+
+  /**
+   * The cached value for the key, or ifAbsent if there is none.  Pick an
+   * ifAbsent which is never a real value.
+   */
+  public double get(long key, double ifAbsent) {
+    int h = hash(key);
+    double value = segmentFor(h).get(key, h, ifAbsent);
+    if (Double.doubleToRawLongBits(value) == Double.doubleToRawLongBits(ifAbsent))
+      misses.increment();
+    else
+      hits.increment();
+    return value;
+  }
+
+  public void put(long key, double value) {
+    int h = hash(key);
+    if (segmentFor(h).put(key, h, value))
+      evictions.increment();
+  }
+
+  public void clear() {
+    for (Segment segment : segments) {
+      segment.clear();
+    }
+  }
+
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      size += segment.size();
+    }
+    return size;
+  }
+
+  public int capacity() {
+    return capacity;
+  }
+
+  public Policy getPolicy() {
+    return policy;
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  public double getHitRate() {
+    long hitCount = getHits();
+    long total = hitCount + getMisses();
+    return (total == 0 ? 0.0 : (double) hitCount / total);
+  }
+
+  public void resetStatistics() {
+    hits.reset();
+    misses.reset();
+    evictions.reset();
+  }
+
+  public String toString() {
+    return String.format("%s size %d/%d, hits %d, misses %d (hit rate %.3f), evictions %d",
+        policy, size(), capacity, getHits(), getMisses(), getHitRate(), getEvictions());
+  }
+
+  /**
+   * A CLOCK cache of the given total capacity, split over 16 segments.
+   */
+  public LongDoubleCache(int capacity) {
+    this(capacity, Policy.CLOCK, 16);
+  }
+
+  /**
+   * A cache of the given total capacity, split over about concurrency
+   * segments (rounded up to a power of two) which can be used at once.
+   */
+  public LongDoubleCache(int capacity, Policy policy, int concurrency) {
+    if (capacity < 1)
+      throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+    int numSegments = Integer.highestOneBit(Math.max(1, Math.min(concurrency, capacity)) * 2 - 1);
+    segmentShift = 32 - Integer.numberOfTrailingZeros(numSegments);
+    segments = new Segment[numSegments];
+    int segmentCapacity = (capacity + numSegments - 1) / numSegments;
+    for (int i = 0; i < numSegments; i++) {
+      segments[i] = new Segment(segmentCapacity, policy);
+    }
+    this.capacity = segmentCapacity * numSegments;
+    this.policy = policy;
+  }
+}
@@ -37,6 +37,18 @@ public abstract class MapFactory<K,V> implements Serializable {
     }
   }
 
+  /**
+   * Builds primitive-valued open-addressing maps.  A Counter built with this
+   * factory avoids boxing on its hot paths and keeps a running total.
+   */
+  public static class ObjectDoubleHashMapFactory<K> extends MapFactory<K,Double> {
+    private static final long serialVersionUID = 5724671156522771675L;
+
+    public Map<K,Double> buildMap() {
+      return new ObjectDoubleHashMap<K>();
+    }
+  }
+
   public abstract Map<K,V> buildMap();
 }
 
@@ -0,0 +1,243 @@
+package nlp.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Named counters, latency histograms and timers for instrumenting per-item
+ * loops (one tagged sentence, one parse, one n-best list).  Recording is
+ * lock-free and allocation-free, so metrics can stay on in hot paths and be
+ * updated from several threads at once.  Typical use:
+ * <pre>
+ *   MetricsRegistry.Timer decodeTimer = metrics.timer("decode");
+ *   long start = decodeTimer.start();
+ *   ...
+ *   decodeTimer.stop(start);
+ *   ...
+ *   System.out.println(metrics.report());
+ * </pre>
+ * The report gives each metric's count and throughput over the time since
+ * the registry was built or last reset(), and for timers the mean, p50, p99
+ * and max latency.
+ */
+public class MetricsRegistry {
+
+  /**
+   * A count of events.
+   */
+  public static class Meter {
+    final LongAdder count = new LongAdder();
+
+    public void increment() {
+      count.increment();
+    }
+
+    public void add(long n) {
+      count.add(n);
+    }
+
+    public long getCount() {
+      return count.sum();
+    }
+
+    void reset() {
+      count.reset();
+    }
+  }
+
+  /**
+   * A distribution of non-negative long values over fixed log-scale buckets.
+   * Values below 16 get a bucket each; above that each power of two is split
+   * into 8 buckets, so quantiles are within about 6% of the true value.
+   */
+  public static class Histogram {
+    static final int NUM_BUCKETS = 16 + 59 * 8;
+
+    final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+    final LongAdder count = new LongAdder();
+    final LongAdder sum = new LongAdder();
+    final AtomicLong max = new AtomicLong();
+
+    static int bucketOf(long value) {
+      if (value < 16)
+        return (int) Math.max(value, 0);
+      int exponent = 63 - Long.numberOfLeadingZeros(value);
+      int subBucket = (int) (value >>> (exponent - 3)) & 7;
+      return 16 + (exponent - 4) * 8 + subBucket;
+    }
+
+    // midpoint of the values falling into the bucket
+    static double bucketValue(int bucket) {
+      if (bucket < 16)
+        return bucket;
+      int exponent = (bucket - 16) / 8 + 4;
+      int subBucket = (bucket - 16) % 8;
+      double width = Math.pow(2, exponent - 3);
+      return (8 + subBucket) * width + (width - 1) / 2.0;
+    }
+
+    public void record(long value) {
+      buckets.incrementAndGet(bucketOf(value));
+      count.increment();
+      sum.add(value);
+      long currentMax = max.get();
+      while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+        currentMax = max.get();
+      }
+    }
+
+    public long getCount() {
+      return count.sum();
+    }
+
+    public long getSum() {
+      return sum.sum();
+    }
+
+    public long getMax() {
+      return max.get();
+    }
+
+    public double getMean() {
+      long n = getCount();
+      return (n == 0 ? 0.0 : (double) getSum() / n);
+    }
+
+    /**
+     * The approximate value below which the given fraction of recorded values
+     * fall, e.g. getQuantile(0.99) for p99.
+     */
+    public double getQuantile(double quantile) {
+      long n = 0;
+      long[] snapshot = new long[NUM_BUCKETS];
+      for (int i = 0; i < NUM_BUCKETS; i++) {
+        snapshot[i] = buckets.get(i);
+        n += snapshot[i];
+      }
+      if (n == 0)
+        return 0.0;
+      long rank = (long) Math.ceil(quantile * n);
+      long seen = 0;
+      for (int i = 0; i < NUM_BUCKETS; i++) {
+        seen += snapshot[i];
+        if (seen >= rank && snapshot[i] > 0)
+          return Math.min(bucketValue(i), getMax());
+      }
+      return getMax();
+    }
+
+    void reset() {
+      for (int i = 0; i < NUM_BUCKETS; i++) {
+        buckets.set(i, 0);
+      }
+      count.reset();
+      sum.reset();
+      max.set(0);
+    }
+  }
+
+  /**
+   * A histogram of elapsed times in nanoseconds.
+   */
+  public static class Timer extends Histogram {
+    public long start() {
+      return System.nanoTime();
+    }
+
+    /**
+     * Records the time since the given start() and returns it in nanoseconds.
+     */
+    public long stop(long startNanos) {
+      long elapsed = System.nanoTime() - startNanos;
+      record(elapsed);
+      return elapsed;
+    }
+  }
+
+  private final ConcurrentMap<String, Object> metrics = new ConcurrentHashMap<String, Object>();
+  private volatile long startNanos = System.nanoTime();
+
+  public Meter meter(String name) {
+    return get(name, Meter.class);
+  }
+
+  public Histogram histogram(String name) {
+    return get(name, Histogram.class);
+  }
+
+  public Timer timer(String name) {
+    return get(name, Timer.class);
+  }
+
+  private <M> M get(String name, Class<M> type) {
+    Object metric = metrics.get(name);
+    if (metric == null) {
+      metric = newMetric(type);
+      Object existing = metrics.putIfAbsent(name, metric);
+      if (existing != null)
+        metric = existing;
+    }
+    if (metric.getClass() != type)
+      throw new IllegalArgumentException("Metric " + name + " is a " + metric.getClass().getSimpleName() + ", not a " + type.getSimpleName());
+    return type.cast(metric);
+  }
+
+  private static Object newMetric(Class<?> type) {
+    if (type == Meter.class)
+      return new Meter();
+    if (type == Timer.class)
+      return new Timer();
+    if (type == Histogram.class)
+      return new Histogram();
+    throw new IllegalArgumentException("Not a metric type: " + type.getSimpleName());
+  }
+
+  /**
+   * Zeroes every metric and restarts the clock used for throughput.
+   */
+  public void reset() {
+    for (Object metric : metrics.values()) {
+      if (metric instanceof Meter)
+        ((Meter) metric).reset();
+      else
+        ((Histogram) metric).reset();
+    }
+    startNanos = System.nanoTime();
+  }
+
+  /**
+   * Seconds since the registry was built or last reset.
+   */
+  public double getElapsedTime() {
+    return (System.nanoTime() - startNanos) / 1e9;
+  }
+
+  /**
+   * One line per metric, sorted by name.  Timer latencies are in
+   * milliseconds; throughput is per second of wall-clock time.
+   */
+  public String report() {
+    double elapsed = getElapsedTime();
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("%-28s %10s %10s %10s %10s %10s %10s%n", "metric", "count", "per sec", "mean", "p50", "p99", "max"));
+    for (Map.Entry<String, Object> entry : new TreeMap<String, Object>(metrics).entrySet()) {
+      Object metric = entry.getValue();
+      if (metric instanceof Meter) {
+        long count = ((Meter) metric).getCount();
+        sb.append(String.format("%-28s %10d %10.1f%n", entry.getKey(), count, count / elapsed));
+      } else {
+        Histogram histogram = (Histogram) metric;
+        double scale = (metric instanceof Timer ? 1e-6 : 1.0);
+        long count = histogram.getCount();
+        sb.append(String.format("%-28s %10d %10.1f %10.3f %10.3f %10.3f %10.3f%n", entry.getKey(), count, count / elapsed,
+            histogram.getMean() * scale, histogram.getQuantile(0.5) * scale, histogram.getQuantile(0.99) * scale, histogram.getMax() * scale));
+      }
+    }
+    return sb.toString();
+  }
+}
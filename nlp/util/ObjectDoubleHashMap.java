@@ -0,0 +1,412 @@
+package nlp.util;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An open-addressing hash map from objects to primitive doubles.  Keys live in
+ * one Object[] slab and values in a parallel double[] slab, so the primitive
+ * accessors (getDouble, putDouble, addToDouble) never box.  The map also keeps
+ * a running total of its values, which is what lets a Counter built on it
+ * answer totalCount() in constant time.  The boxed Map interface is supported
+ * for compatibility, so this can be handed out by a MapFactory wherever a
+ * Map&lt;K, Double&gt; is expected.
+ */
+public class ObjectDoubleHashMap <K> extends AbstractMap<K, Double> implements Serializable {
+  private static final long serialVersionUID = 5724671156522771659L;
+
+  private static final int DEFAULT_CAPACITY = 16;
+  private static final double MAX_LOAD = 0.6;
+  private static final Object NULL_KEY = new Object();
+  private static final Object REMOVED = new Object();
+
+  transient Object[] keys;
+  transient double[] values;
+  transient int size;
+  transient int usedSlots;
+  transient double total;
+  transient int modCount;
+
+  private transient Set<K> keySetView;
+  private transient Set<Map.Entry<K, Double>> entrySetView;
+
+  private static Object maskNull(Object key) {
+    return (key == null ? NULL_KEY : key);
+  }
+
+  @SuppressWarnings("unchecked")
+  static <K> K unmaskNull(Object key) {
+    return (key == NULL_KEY ? null : (K) key);
+  }
+
+  /**
+   * True if the given slot holds a live key (rather than being empty or a
+   * deleted marker).
+   */
+  static boolean isLive(Object slotKey) {
+    return slotKey != null && slotKey != REMOVED;
+  }
+
+  private static int hash(Object maskedKey) {
+    int h = maskedKey.hashCode() * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Returns the slot holding the given (masked) key, or -1 if it is absent.
+   */
+  private int findSlot(Object maskedKey) {
+    int mask = keys.length - 1;
+    int slot = hash(maskedKey) & mask;
+    while (true) {
+      Object slotKey = keys[slot];
+      if (slotKey == null)
+        return -1;
+      if (slotKey != REMOVED && (slotKey == maskedKey || slotKey.equals(maskedKey)))
+        return slot;
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  /**
+   * Returns the slot holding the given (masked) key, claiming a fresh one
+   * (with value zero) if the key is absent.
+   */
+  private int findOrInsertSlot(Object maskedKey) {
+    int mask = keys.length - 1;
+    int slot = hash(maskedKey) & mask;
+    int firstRemoved = -1;
+    while (true) {
+      Object slotKey = keys[slot];
+      if (slotKey == null)
+        break;
+      if (slotKey == REMOVED) {
+        if (firstRemoved < 0) firstRemoved = slot;
+      } else if (slotKey == maskedKey || slotKey.equals(maskedKey)) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+    if (firstRemoved >= 0) {
+      slot = firstRemoved;
+    } else {
+      usedSlots++;
+    }
+    keys[slot] = maskedKey;
+    values[slot] = 0.0;
+    size++;
+    modCount++;
+    if (usedSlots > keys.length * MAX_LOAD) {
+      rehash(size * 2 > keys.length * MAX_LOAD ? keys.length * 2 : keys.length);
+      return findSlot(maskedKey);
+    }
+    return slot;
+  }
+
+  private void rehash(int newCapacity) {
+    Object[] oldKeys = keys;
+    double[] oldValues = values;
+    keys = new Object[newCapacity];
+    values = new double[newCapacity];
+    int mask = newCapacity - 1;
+    for (int i = 0; i < oldKeys.length; i++) {
+      Object key = oldKeys[i];
+      if (!isLive(key))
+        continue;
+      int slot = hash(key) & mask;
+      while (keys[slot] != null) {
+        slot = (slot + 1) & mask;
+      }
+      keys[slot] = key;
+      values[slot] = oldValues[i];
+    }
+    usedSlots = size;
+  }
+
+  private static int capacityFor(int expectedSize) {
+    int capacity = DEFAULT_CAPACITY;
+    while (capacity * MAX_LOAD < expectedSize) {
+      capacity <<= 1;
+    }
+    return capacity;
+  }
+
+  /**
+   * Returns the value for the key, or the given default if the key is absent.
+   */
+  public double getDouble(Object key, double defaultValue) {
+    int slot = findSlot(maskNull(key));
+    return (slot < 0 ? defaultValue : values[slot]);
+  }
+
+  /**
+   * Sets the value for the key, returning the previous value (zero if the key
+   * was absent).
+   */
+  public double putDouble(K key, double value) {
+    int slot = findOrInsertSlot(maskNull(key));
+    double old = values[slot];
+    values[slot] = value;
+    total += value - old;
+    return old;
+  }
+
+  /**
+   * Adds the increment to the key's value (treating an absent key as zero) with
+   * a single probe, and returns the new value.
+   */
+  public double addToDouble(K key, double increment) {
+    int slot = findOrInsertSlot(maskNull(key));
+    double value = values[slot] + increment;
+    values[slot] = value;
+    total += increment;
+    return value;
+  }
+
+  /**
+   * Removes the key, returning its value or zero if it was absent.
+   */
+  public double removeDouble(Object key) {
+    int slot = findSlot(maskNull(key));
+    if (slot < 0)
+      return 0.0;
+    return removeSlot(slot);
+  }
+
+  private double removeSlot(int slot) {
+    double old = values[slot];
+    keys[slot] = REMOVED;
+    values[slot] = 0.0;
+    total -= old;
+    size--;
+    modCount++;
+    return old;
+  }
+
+  /**
+   * The running sum of all values in the map.  It is maintained incrementally,
+   * so it can differ in the last few bits from a fresh summation.
+   */
+  public double total() {
+    return total;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean containsKey(Object key) {
+    return findSlot(maskNull(key)) >= 0;
+  }
+
+  public Double get(Object key) {
+    int slot = findSlot(maskNull(key));
+    return (slot < 0 ? null : values[slot]);
+  }
+
+  public Double put(K key, Double value) {
+    Object maskedKey = maskNull(key);
+    boolean existed = findSlot(maskedKey) >= 0;
+    int slot = findOrInsertSlot(maskedKey);
+    double old = values[slot];
+    values[slot] = value;
+    total += value - old;
+    return (existed ? Double.valueOf(old) : null);
+  }
+
+  public Double remove(Object key) {
+    int slot = findSlot(maskNull(key));
+    if (slot < 0)
+      return null;
+    return removeSlot(slot);
+  }
+
+  public void clear() {
+    keys = new Object[DEFAULT_CAPACITY];
+    values = new double[DEFAULT_CAPACITY];
+    size = 0;
+    usedSlots = 0;
+    total = 0.0;
+    modCount++;
+  }
+
+  private abstract class SlotIterator <T> implements Iterator<T> {
+    int nextSlot = -1;
+    int lastSlot = -1;
+    int expectedModCount = modCount;
+
+    SlotIterator() {
+      advance();
+    }
+
+    private void advance() {
+      nextSlot++;
+      while (nextSlot < keys.length && !isLive(keys[nextSlot])) {
+        nextSlot++;
+      }
+    }
+
+    public boolean hasNext() {
+      return nextSlot < keys.length;
+    }
+
+    int nextSlot() {
+      if (expectedModCount != modCount)
+        throw new ConcurrentModificationException();
+      if (!hasNext())
+        throw new NoSuchElementException();
+      lastSlot = nextSlot;
+      advance();
+      return lastSlot;
+    }
+
+    public void remove() {
+      if (lastSlot < 0)
+        throw new IllegalStateException();
+      if (expectedModCount != modCount)
+        throw new ConcurrentModificationException();
+      removeSlot(lastSlot);
+      expectedModCount = modCount;
+      lastSlot = -1;
+    }
+  }
+
+  private class SlotEntry implements Map.Entry<K, Double> {
+    final int slot;
+    final K key;
+
+    SlotEntry(int slot) {
+      this.slot = slot;
+      this.key = ObjectDoubleHashMap.<K>unmaskNull(keys[slot]);
+    }
+
+    public K getKey() {
+      return key;
+    }
+
+    public Double getValue() {
+      return values[slot];
+    }
+
+    public Double setValue(Double value) {
+      double old = values[slot];
+      values[slot] = value;
+      total += value - old;
+      return old;
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof Map.Entry)) return false;
+      Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+      return (key == null ? e.getKey() == null : key.equals(e.getKey())) && getValue().equals(e.getValue());
+    }
+
+    public int hashCode() {
+      return (key == null ? 0 : key.hashCode()) ^ getValue().hashCode();
+    }
+
+    public String toString() {
+      return key + "=" + getValue();
+    }
+  }
+
+  public Set<K> keySet() {
+    if (keySetView == null) {
+      keySetView = new AbstractSet<K>() {
+        public Iterator<K> iterator() {
+          return new SlotIterator<K>() {
+            public K next() {
+              return ObjectDoubleHashMap.<K>unmaskNull(keys[nextSlot()]);
+            }
+          };
+        }
+
+        public int size() {
+          return size;
+        }
+
+        public boolean contains(Object o) {
+          return containsKey(o);
+        }
+
+        public boolean remove(Object o) {
+          int slot = findSlot(maskNull(o));
+          if (slot < 0) return false;
+          removeSlot(slot);
+          return true;
+        }
+
+        public void clear() {
+          ObjectDoubleHashMap.this.clear();
+        }
+      };
+    }
+    return keySetView;
+  }
+
+  public Set<Map.Entry<K, Double>> entrySet() {
+    if (entrySetView == null) {
+      entrySetView = new AbstractSet<Map.Entry<K, Double>>() {
+        public Iterator<Map.Entry<K, Double>> iterator() {
+          return new SlotIterator<Map.Entry<K, Double>>() {
+            public Map.Entry<K, Double> next() {
+              return new SlotEntry(nextSlot());
+            }
+          };
+        }
+
+        public int size() {
+          return size;
+        }
+
+        public void clear() {
+          ObjectDoubleHashMap.this.clear();
+        }
+      };
+    }
+    return entrySetView;
+  }
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+    out.writeInt(size);
+    for (int i = 0; i < keys.length; i++) {
+      if (!isLive(keys[i]))
+        continue;
+      out.writeObject(unmaskNull(keys[i]));
+      out.writeDouble(values[i]);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    int n = in.readInt();
+    int capacity = capacityFor(n);
+    keys = new Object[capacity];
+    values = new double[capacity];
+    for (int i = 0; i < n; i++) {
+      K key = (K) in.readObject();
+      putDouble(key, in.readDouble());
+    }
+  }
+
+  public ObjectDoubleHashMap() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public ObjectDoubleHashMap(int expectedSize) {
+    int capacity = capacityFor(expectedSize);
+    keys = new Object[capacity];
+    values = new double[capacity];
+  }
+}
@@ -0,0 +1,13 @@
+package nlp.util;
+
+/**
+ * Convenience Extension of Counter to use an ObjectDoubleHashMap, so counts are
+ * stored unboxed and totalCount() is constant time.
+ */
+public class PrimitiveCounter<E> extends Counter<E> {
+  private static final long serialVersionUID = 5724671156522771674L;
+
+  public PrimitiveCounter() {
+    super(new MapFactory.ObjectDoubleHashMapFactory<E>());
+  }
+}
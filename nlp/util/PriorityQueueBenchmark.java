@@ -0,0 +1,124 @@
+package nlp.util;
+
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares IntPriorityQueue with GeneralPriorityQueue and FastPriorityQueue
+ * on a best-first search over a random graph, which has the push / promote /
+ * pop mix of an agenda-driven parser or decoder.  FastPriorityQueue cannot
+ * promote, so it is run the usual lazy way, pushing duplicates and skipping
+ * stale pops.  All three must agree on the checksum.  Usage:
+ * <p/>
+ *   java nlp.util.PriorityQueueBenchmark [-nodes N] [-degree N] [-rounds N]
+ */
+public class PriorityQueueBenchmark {
+
+  static int[][] randomGraph(int numNodes, int degree, long seed) {
+    Random random = new Random(seed);
+    int[][] edges = new int[numNodes][degree];
+    for (int node = 0; node < numNodes; node++) {
+      for (int i = 0; i < degree; i++) {
+        edges[node][i] = random.nextInt(numNodes);
+      }
+    }
+    return edges;
+  }
+
+  // edge costs are a fixed function of the endpoints, so every run sees the same graph
+  static double cost(int from, int to) {
+    return 1.0 + ((from * 31 + to * 17) & 1023) / 1024.0;
+  }
+
+  // priorities are negated path costs, so the best item is the cheapest
+  static double searchInt(int[][] edges) {
+    IntPriorityQueue agenda = new IntPriorityQueue(edges.length);
+    boolean[] done = new boolean[edges.length];
+    agenda.setPriority(0, 0.0);
+    double checksum = 0.0;
+    while (!agenda.isEmpty()) {
+      double priority = agenda.getPriority();
+      int node = agenda.removeFirstInt();
+      done[node] = true;
+      checksum -= priority;
+      for (int next : edges[node]) {
+        if (!done[next])
+          agenda.relaxPriority(next, priority - cost(node, next));
+      }
+    }
+    return checksum;
+  }
+
+  static double searchGeneral(int[][] edges) {
+    GeneralPriorityQueue<Integer> agenda = new GeneralPriorityQueue<Integer>();
+    boolean[] done = new boolean[edges.length];
+    agenda.setPriority(0, 0.0);
+    double checksum = 0.0;
+    while (!agenda.isEmpty()) {
+      double priority = agenda.getPriority();
+      int node = agenda.removeFirst();
+      done[node] = true;
+      checksum -= priority;
+      for (int next : edges[node]) {
+        if (!done[next])
+          agenda.relaxPriority(next, priority - cost(node, next));
+      }
+    }
+    return checksum;
+  }
+
+  static double searchFast(int[][] edges) {
+    FastPriorityQueue<Integer> agenda = new FastPriorityQueue<Integer>();
+    boolean[] done = new boolean[edges.length];
+    agenda.setPriority(0, 0.0);
+    double checksum = 0.0;
+    while (!agenda.isEmpty()) {
+      double priority = agenda.getPriority();
+      int node = agenda.removeFirst();
+      if (done[node])
+        continue;
+      done[node] = true;
+      checksum -= priority;
+      for (int next : edges[node]) {
+        if (!done[next])
+          agenda.setPriority(next, priority - cost(node, next));
+      }
+    }
+    return checksum;
+  }
+
+  static double run(String name, int[][] edges) {
+    if (name.equals("Int")) return searchInt(edges);
+    if (name.equals("General")) return searchGeneral(edges);
+    return searchFast(edges);
+  }
+
+  static void report(String name, int[][] edges, int rounds) {
+    Stopwatch stopwatch = new Stopwatch();
+    stopwatch.reset();
+    double checksum = 0.0;
+    for (int round = 0; round < rounds; round++) {
+      stopwatch.start();
+      checksum = run(name, edges);
+      stopwatch.stop();
+    }
+    System.out.printf("%-8s %8.3f s/round  (checksum %.4f)\n",
+        name, stopwatch.getTotalElapsedTime() / rounds, checksum);
+  }
+
+  public static void main(String[] args) {
+    Map<String, String> argMap = CommandLineUtils.simpleCommandLineParser(args);
+    int numNodes = Integer.parseInt(CommandLineUtils.getValueOrUseDefault(argMap, "-nodes", "500000"));
+    int degree = Integer.parseInt(CommandLineUtils.getValueOrUseDefault(argMap, "-degree", "8"));
+    int rounds = Integer.parseInt(CommandLineUtils.getValueOrUseDefault(argMap, "-rounds", "5"));
+    int[][] edges = randomGraph(numNodes, degree, 1L);
+    String[] names = { "Int", "General", "Fast" };
+    // warm up every code path before timing
+    for (String name : names) {
+      run(name, edges);
+    }
+    for (String name : names) {
+      report(name, edges, rounds);
+    }
+  }
+}
@@ -0,0 +1,408 @@
+package nlp.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * Reads and writes compact binary snapshots of Counters, CounterMaps
+ * (plain or frozen) and Indexers, so trained count tables can be reloaded in
+ * milliseconds instead of being retrained or deserialized.  Keys and values
+ * are stored as strings, turned to and from their own types by a Codec;
+ * every method has a String-keyed form which needs none.  A snapshot (all
+ * numbers big-endian) is:
+ * <pre>
+ *   MAGIC, VERSION, kind, 0
+ *   string table             a FrozenStringIndexer, padded to 8 bytes
+ *   COUNTER:     size, ids[size], padding, counts[size] (doubles)
+ *   COUNTER_MAP: numKeys, numEntries, rowOffsets[numKeys + 1],
+ *                valueIds[numEntries], padding, counts[numEntries] (doubles)
+ *   INDEXER:     nothing more; the string table is the indexer
+ * </pre>
+ * Ids index the string table.  CounterMap keys are written first, so row k
+ * belongs to string k, and rows are sorted by value id; readFrozenCounterMap() can
+ * then use the mapped string table itself for both keys and values, and the
+ * arrays as they are.  Files are read by memory-mapping them and
+ * bulk-copying the id and count slabs.
+ */
+public class Snapshots {
+
+  static final int MAGIC = 0x4E4C5053; // "NLPS"
+  static final int VERSION = 1;
+  static final int COUNTER = 1;
+  static final int COUNTER_MAP = 2;
+  static final int INDEXER = 3;
+
+  /**
+   * Turns keys to and from the strings a snapshot stores.
+   */
+  public interface Codec<T> {
+    String encode(T t);
+
+    T decode(String s);
+  }
+
+  public static final Codec<String> STRINGS = new Codec<String>() {
+    public String encode(String s) {
+      return s;
+    }
+
+    public String decode(String s) {
+      return s;
+    }
+  };
+
+  public static <K> void writeCounter(Counter<K> counter, Codec<K> codec, File file) throws IOException {
+    StringIndexer strings = new StringIndexer();
+    int size = counter.size();
+    int[] ids = new int[size];
+    double[] counts = new double[size];
+    int i = 0;
+    for (Map.Entry<K, Double> entry : counter.getEntrySet()) {
+      ids[i] = strings.addAndGetIndex(codec.encode(entry.getKey()));
+      counts[i] = entry.getValue();
+      i++;
+    }
+    DataOutputStream out = open(file, COUNTER, strings);
+    try {
+      out.writeInt(size);
+      writeInts(out, ids, size);
+      pad(out);
+      writeDoubles(out, counts, size);
+    } finally {
+      out.close();
+    }
+  }
+
+  public static void writeCounter(Counter<String> counter, File file) throws IOException {
+    writeCounter(counter, STRINGS, file);
+  }
+
+  public static <K> Counter<K> readCounter(File file, Codec<K> codec) throws IOException {
+    ByteBuffer buffer = map(file, COUNTER);
+    FrozenStringIndexer strings = readStrings(buffer);
+    int size = buffer.getInt();
+    int[] ids = readInts(buffer, size);
+    align(buffer);
+    double[] counts = readDoubles(buffer, size);
+    Counter<K> counter = new Counter<K>();
+    for (int i = 0; i < size; i++) {
+      counter.setCount(codec.decode(strings.get(ids[i])), counts[i]);
+    }
+    return counter;
+  }
+
+  public static Counter<String> readCounter(File file) throws IOException {
+    return readCounter(file, STRINGS);
+  }
+
+  /**
+   * The rows of a CounterMap snapshot, gathered one key at a time with the
+   * key strings interned first.
+   */
+  private static class RowWriter {
+    final StringIndexer strings = new StringIndexer();
+    final int numKeys;
+    final int[] rowOffsets;
+    final int[] valueIds;
+    final double[] counts;
+    int numRows = 0;
+    int numEntries = 0;
+    // the current row: (value id, position in rowCounts) packed so one sort orders both
+    long[] row = new long[16];
+    double[] rowCounts = new double[16];
+    int rowSize = 0;
+
+    void add(String value, double count) {
+      if (rowSize == row.length) {
+        row = Arrays.copyOf(row, 2 * rowSize);
+        rowCounts = Arrays.copyOf(rowCounts, 2 * rowSize);
+      }
+      rowCounts[rowSize] = count;
+      row[rowSize] = ((long) strings.addAndGetIndex(value) << 32) | rowSize;
+      rowSize++;
+    }
+
+    void endRow() {
+      Arrays.sort(row, 0, rowSize);
+      rowOffsets[numRows++] = numEntries;
+      for (int i = 0; i < rowSize; i++) {
+        valueIds[numEntries] = (int) (row[i] >>> 32);
+        counts[numEntries] = rowCounts[(int) row[i]];
+        numEntries++;
+      }
+      rowSize = 0;
+    }
+
+    void write(File file) throws IOException {
+      rowOffsets[numKeys] = numEntries;
+      DataOutputStream out = open(file, COUNTER_MAP, strings);
+      try {
+        out.writeInt(numKeys);
+        out.writeInt(numEntries);
+        writeInts(out, rowOffsets, numKeys + 1);
+        writeInts(out, valueIds, numEntries);
+        pad(out);
+        writeDoubles(out, counts, numEntries);
+      } finally {
+        out.close();
+      }
+    }
+
+    RowWriter(Collection<String> keys, int numEntries) {
+      for (String key : keys) {
+        strings.add(key);
+      }
+      numKeys = strings.size();
+      if (numKeys != keys.size())
+        throw new IllegalArgumentException("Keys do not encode to distinct strings");
+      rowOffsets = new int[numKeys + 1];
+      valueIds = new int[numEntries];
+      counts = new double[numEntries];
+    }
+  }
+
+  public static <K, V> void writeCounterMap(CounterMap<K, V> counterMap, Codec<K> keyCodec, Codec<V> valueCodec, File file) throws IOException {
+    List<String> keys = new ArrayList<String>();
+    for (K key : counterMap.counterMap.keySet()) {
+      keys.add(keyCodec.encode(key));
+    }
+    RowWriter rows = new RowWriter(keys, counterMap.totalSize());
+    // keySet() and entrySet() of the same map iterate in the same order
+    for (Map.Entry<K, Counter<V>> keyEntry : counterMap.counterMap.entrySet()) {
+      for (Map.Entry<V, Double> valueEntry : keyEntry.getValue().getEntrySet()) {
+        rows.add(valueCodec.encode(valueEntry.getKey()), valueEntry.getValue());
+      }
+      rows.endRow();
+    }
+    rows.write(file);
+  }
+
+  public static void writeCounterMap(CounterMap<String, String> counterMap, File file) throws IOException {
+    writeCounterMap(counterMap, STRINGS, STRINGS, file);
+  }
+
+  public static <K, V> void writeFrozenCounterMap(FrozenCounterMap<K, V> frozen, Codec<K> keyCodec, Codec<V> valueCodec, File file) throws IOException {
+    List<String> keys = new ArrayList<String>();
+    for (K key : frozen.keyIndexer) {
+      keys.add(keyCodec.encode(key));
+    }
+    RowWriter rows = new RowWriter(keys, frozen.totalSize());
+    for (int keyId = 0; keyId < frozen.keyIndexer.size(); keyId++) {
+      for (int entry = frozen.rowOffsets[keyId]; entry < frozen.rowOffsets[keyId + 1]; entry++) {
+        rows.add(valueCodec.encode(frozen.valueIndexer.get(frozen.valueIds[entry])), frozen.counts[entry]);
+      }
+      rows.endRow();
+    }
+    rows.write(file);
+  }
+
+  public static void writeFrozenCounterMap(FrozenCounterMap<String, String> frozen, File file) throws IOException {
+    writeFrozenCounterMap(frozen, STRINGS, STRINGS, file);
+  }
+
+  public static <K, V> CounterMap<K, V> readCounterMap(File file, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+    FrozenCounterMap<String, String> frozen = readFrozenCounterMap(file);
+    CounterMap<K, V> counterMap = new CounterMap<K, V>();
+    for (int keyId = 0; keyId < frozen.keyIndexer.size(); keyId++) {
+      Counter<V> counter = counterMap.ensureCounter(keyCodec.decode(frozen.keyIndexer.get(keyId)));
+      for (int entry = frozen.rowOffsets[keyId]; entry < frozen.rowOffsets[keyId + 1]; entry++) {
+        counter.setCount(valueCodec.decode(frozen.valueIndexer.get(frozen.valueIds[entry])), frozen.counts[entry]);
+      }
+    }
+    return counterMap;
+  }
+
+  public static CounterMap<String, String> readCounterMap(File file) throws IOException {
+    return readCounterMap(file, STRINGS, STRINGS);
+  }
+
+  /**
+   * The first size strings of a string table, as the key indexer of a
+   * frozen map whose key ids are string ids.
+   */
+  static class PrefixIndexer extends AbstractList<String> implements RandomAccess {
+    final FrozenStringIndexer strings;
+    final int size;
+
+    public String get(int index) {
+      if (index >= size)
+        throw new IndexOutOfBoundsException(index + " >= " + size);
+      return strings.get(index);
+    }
+
+    public int size() {
+      return size;
+    }
+
+    public int indexOf(Object o) {
+      int index = strings.indexOf(o);
+      return (index < size ? index : -1);
+    }
+
+    public boolean contains(Object o) {
+      return indexOf(o) >= 0;
+    }
+
+    PrefixIndexer(FrozenStringIndexer strings, int size) {
+      this.strings = strings;
+      this.size = size;
+    }
+  }
+
+  /**
+   * Loads a String-keyed CounterMap snapshot straight into read-only form.
+   * Keys and values are looked up in the mapped string table, so no string
+   * is decoded until it is asked for.  The value ids of the result are the
+   * snapshot's string table ids.
+   */
+  public static FrozenCounterMap<String, String> readFrozenCounterMap(File file) throws IOException {
+    ByteBuffer buffer = map(file, COUNTER_MAP);
+    FrozenStringIndexer strings = readStrings(buffer);
+    int numKeys = buffer.getInt();
+    int numEntries = buffer.getInt();
+    int[] rowOffsets = readInts(buffer, numKeys + 1);
+    int[] valueIds = readInts(buffer, numEntries);
+    align(buffer);
+    double[] counts = readDoubles(buffer, numEntries);
+    return new FrozenCounterMap<String, String>(new PrefixIndexer(strings, numKeys), strings, rowOffsets, valueIds, counts);
+  }
+
+  /**
+   * Loads a CounterMap snapshot into read-only form with keys and values
+   * decoded by the codecs, which, unlike readFrozenCounterMap(File), builds
+   * indexers of the decoded objects.
+   */
+  public static <K, V> FrozenCounterMap<K, V> readFrozenCounterMap(File file, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+    FrozenCounterMap<String, String> frozen = readFrozenCounterMap(file);
+    Indexer<K> keyIndexer = new Indexer<K>();
+    for (String key : frozen.keyIndexer) {
+      keyIndexer.add(keyCodec.decode(key));
+    }
+    Indexer<V> valueIndexer = new Indexer<V>();
+    for (String value : frozen.valueIndexer) {
+      valueIndexer.add(valueCodec.decode(value));
+    }
+    return new FrozenCounterMap<K, V>(keyIndexer, valueIndexer, frozen.rowOffsets, frozen.valueIds, frozen.counts);
+  }
+
+  public static <E> void writeIndexer(Collection<E> items, Codec<E> codec, File file) throws IOException {
+    StringIndexer strings = new StringIndexer();
+    for (E item : items) {
+      strings.add(codec.encode(item));
+    }
+    open(file, INDEXER, strings).close();
+  }
+
+  public static void writeIndexer(Collection<String> items, File file) throws IOException {
+    writeIndexer(items, STRINGS, file);
+  }
+
+  public static <E> Indexer<E> readIndexer(File file, Codec<E> codec) throws IOException {
+    Indexer<E> indexer = new Indexer<E>();
+    for (String s : mapIndexer(file)) {
+      indexer.add(codec.decode(s));
+    }
+    return indexer;
+  }
+
+  public static Indexer<String> readIndexer(File file) throws IOException {
+    return new Indexer<String>(mapIndexer(file));
+  }
+
+  /**
+   * Maps a String Indexer snapshot without copying it.  Strings are decoded
+   * the first time they are asked for, so this is the fastest way to get
+   * indexOf(), contains() and get() over a large vocabulary.
+   */
+  public static FrozenStringIndexer mapIndexer(File file) throws IOException {
+    return readStrings(map(file, INDEXER));
+  }
+
+  private static DataOutputStream open(File file, int kind, StringIndexer strings) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(kind);
+    out.writeInt(0);
+    strings.freeze().write(out);
+    pad(out);
+    return out;
+  }
+
+  private static void pad(DataOutputStream out) throws IOException {
+    while (out.size() % 8 != 0) {
+      out.writeByte(0);
+    }
+  }
+
+  private static void writeInts(DataOutputStream out, int[] values, int length) throws IOException {
+    for (int i = 0; i < length; i++) {
+      out.writeInt(values[i]);
+    }
+  }
+
+  private static void writeDoubles(DataOutputStream out, double[] values, int length) throws IOException {
+    for (int i = 0; i < length; i++) {
+      out.writeDouble(values[i]);
+    }
+  }
+
+  private static ByteBuffer map(File file, int kind) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    ByteBuffer buffer;
+    try {
+      FileChannel channel = raf.getChannel();
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      raf.close();
+    }
+    if (buffer.getInt() != MAGIC)
+      throw new IOException("Not a snapshot file: " + file);
+    int version = buffer.getInt();
+    if (version != VERSION)
+      throw new IOException("Unsupported snapshot version " + version + ": " + file);
+    int fileKind = buffer.getInt();
+    if (fileKind != kind)
+      throw new IOException("Snapshot holds kind " + fileKind + ", expected " + kind + ": " + file);
+    buffer.getInt();
+    return buffer;
+  }
+
+  private static FrozenStringIndexer readStrings(ByteBuffer buffer) {
+    FrozenStringIndexer strings = new FrozenStringIndexer(buffer);
+    buffer.position(buffer.position() + strings.byteSize());
+    align(buffer);
+    return strings;
+  }
+
+  private static void align(ByteBuffer buffer) {
+    buffer.position((buffer.position() + 7) & ~7);
+  }
+
+  private static int[] readInts(ByteBuffer buffer, int length) {
+    int[] values = new int[length];
+    buffer.asIntBuffer().get(values);
+    buffer.position(buffer.position() + 4 * length);
+    return values;
+  }
+
+  private static double[] readDoubles(ByteBuffer buffer, int length) {
+    double[] values = new double[length];
+    buffer.asDoubleBuffer().get(values);
+    buffer.position(buffer.position() + 8 * length);
+    return values;
+  }
+}
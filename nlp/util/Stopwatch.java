@@ -32,7 +32,7 @@ public class Stopwatch {
 		if (isRunning) {
 			return;
 		}
-		this.startTick = System.currentTimeMillis();
+		this.startTick = System.nanoTime();
 		this.isRunning = true;
 	}
 	
@@ -40,9 +40,9 @@ public class Stopwatch {
 		if (!isRunning) {
 			return;
 		}
-		this.stopTick = System.currentTimeMillis();
+		this.stopTick = System.nanoTime();
 		this.isRunning = false;
-		double elapsedTime = (this.stopTick-this.startTick) / 1000.0;
+		double elapsedTime = (this.stopTick-this.startTick) / 1e9;
 		this.totalElapsedTime += elapsedTime;
 		this.lastElapsedTime = elapsedTime;
 	}
@@ -0,0 +1,174 @@
+package nlp.util;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * An Indexer specialized to Strings, which may be shared between threads.
+ * Indexes live in an open-addressing table of int slots, so lookups neither
+ * box nor allocate.  Lookups never lock; addAndGetIndex() only takes a lock
+ * when the string is new, so feature extraction running on several threads
+ * can index into one StringIndexer.  Once indexing is over, freeze() gives a
+ * compact read-only FrozenStringIndexer, which can also be written to disk
+ * and memory-mapped back in.
+ */
+public class StringIndexer extends AbstractList<String> {
+
+  private static final int INITIAL_CAPACITY = 16;
+
+  /**
+   * A slot table holding index + 1 for each string (0 marks an empty slot).
+   * Tables are replaced, never resized in place, so a reader holding an old
+   * one still sees a consistent (if slightly stale) view.
+   */
+  private static final class Table {
+    final AtomicIntegerArray slots;
+    final int mask;
+
+    Table(int capacity) {
+      slots = new AtomicIntegerArray(capacity);
+      mask = capacity - 1;
+    }
+  }
+
+  private volatile Table table = new Table(INITIAL_CAPACITY * 2);
+  private volatile String[] strings = new String[INITIAL_CAPACITY];
+  private volatile int size = 0;
+
+  static int hash(String s) {
+    int h = s.hashCode() * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Return the string with the given index
+   */
+  public String get(int index) {
+    if (index < 0 || index >= size)
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    return strings[index];
+  }
+
+  /**
+   * Returns the number of strings indexed.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the index of the given string, or -1 if it is not present in the
+   * indexer.  Never locks.
+   */
+  public int indexOf(Object o) {
+    if (!(o instanceof String))
+      return -1;
+    String s = (String) o;
+    return find(table, s, hash(s));
+  }
+
+  private int find(Table t, String s, int h) {
+    int slot = h & t.mask;
+    while (true) {
+      int entry = t.slots.get(slot);
+      if (entry == 0)
+        return -1;
+      String candidate = strings[entry - 1];
+      if (candidate == s || candidate.equals(s))
+        return entry - 1;
+      slot = (slot + 1) & t.mask;
+    }
+  }
+
+  /**
+   * Constant time override for contains.
+   */
+  public boolean contains(Object o) {
+    return indexOf(o) >= 0;
+  }
+
+  /**
+   * Add a string to the indexer if not already present.  In either case,
+   * returns the index of the string.  Safe to call from any thread.
+   */
+  public int addAndGetIndex(String s) {
+    int h = hash(s);
+    int index = find(table, s, h);
+    if (index >= 0)
+      return index;
+    return insert(s, h);
+  }
+
+  private synchronized int insert(String s, int h) {
+    Table t = table;
+    int index = find(t, s, h);
+    if (index >= 0)
+      return index;
+    index = size;
+    String[] currentStrings = strings;
+    if (index == currentStrings.length) {
+      currentStrings = Arrays.copyOf(currentStrings, index * 2);
+      strings = currentStrings;
+    }
+    currentStrings[index] = s;
+    size = index + 1;
+    if ((index + 1) * 2 > t.slots.length()) {
+      // the new table is built with the new string already in it
+      table = rehash(t.slots.length() * 2, index + 1);
+    } else {
+      int slot = h & t.mask;
+      while (t.slots.get(slot) != 0) {
+        slot = (slot + 1) & t.mask;
+      }
+      t.slots.set(slot, index + 1);
+    }
+    return index;
+  }
+
+  private Table rehash(int capacity, int numStrings) {
+    Table t = new Table(capacity);
+    String[] currentStrings = strings;
+    for (int i = 0; i < numStrings; i++) {
+      int slot = hash(currentStrings[i]) & t.mask;
+      while (t.slots.get(slot) != 0) {
+        slot = (slot + 1) & t.mask;
+      }
+      t.slots.set(slot, i + 1);
+    }
+    return t;
+  }
+
+  /**
+   * Add a string to the indexer.  If the string is already in the indexer,
+   * the indexer is unchanged (and false is returned).
+   */
+  public boolean add(String s) {
+    int h = hash(s);
+    if (find(table, s, h) >= 0)
+      return false;
+    synchronized (this) {
+      int before = size;
+      insert(s, h);
+      return size > before;
+    }
+  }
+
+  /**
+   * Builds a read-only copy of the strings indexed so far, with the same
+   * indexes.
+   */
+  public FrozenStringIndexer freeze() {
+    int n = size;
+    return new FrozenStringIndexer(Arrays.copyOf(strings, n));
+  }
+
+  public StringIndexer() {
+  }
+
+  public StringIndexer(Collection<String> c) {
+    this();
+    addAll(c);
+  }
+}
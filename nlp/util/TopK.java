@@ -0,0 +1,190 @@
+package nlp.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Keeps the k elements with the largest priorities out of a stream of
+ * (element, priority) offers.  Backed by a fixed-size binary min-heap over
+ * parallel element and priority arrays, so an offer which does not beat the
+ * current k-th best costs one comparison, and nothing is allocated after
+ * construction.  Ties between equal priorities are broken arbitrarily.
+ */
+public class TopK <E> {
+  final Object[] elements;
+  final double[] priorities;
+  final int k;
+  int size = 0;
+
+  /**
+   * Offers an element with the given priority.  Returns whether it is (for
+   * now) among the k best.
+   */
+  public boolean offer(E element, double priority) {
+    if (size < k) {
+      elements[size] = element;
+      priorities[size] = priority;
+      siftUp(size++);
+      return true;
+    }
+    if (k == 0 || !(priority > priorities[0]))
+      return false;
+    elements[0] = element;
+    priorities[0] = priority;
+    siftDown(0);
+    return true;
+  }
+
+  /**
+   * Offers every element kept by another TopK.
+   */
+  public void addAll(TopK<? extends E> other) {
+    for (int i = 0; i < other.size; i++) {
+      offer(other.element(i), other.priorities[i]);
+    }
+  }
+
+  /**
+   * The smallest priority an element needs to get in, or negative infinity
+   * while fewer than k elements have been offered.
+   */
+  public double threshold() {
+    return (size < k || k == 0 ? Double.NEGATIVE_INFINITY : priorities[0]);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  // elements[i] only ever holds offered elements
+  @SuppressWarnings("unchecked")
+  private E element(int i) {
+    return (E) elements[i];
+  }
+
+  private void siftUp(int loc) {
+    Object element = elements[loc];
+    double priority = priorities[loc];
+    while (loc > 0) {
+      int parent = (loc - 1) >>> 1;
+      if (!(priority < priorities[parent]))
+        break;
+      elements[loc] = elements[parent];
+      priorities[loc] = priorities[parent];
+      loc = parent;
+    }
+    elements[loc] = element;
+    priorities[loc] = priority;
+  }
+
+  private void siftDown(int loc) {
+    Object element = elements[loc];
+    double priority = priorities[loc];
+    int half = size >>> 1;
+    while (loc < half) {
+      int child = 2 * loc + 1;
+      int right = child + 1;
+      if (right < size && priorities[right] < priorities[child])
+        child = right;
+      if (!(priorities[child] < priority))
+        break;
+      elements[loc] = elements[child];
+      priorities[loc] = priorities[child];
+      loc = child;
+    }
+    elements[loc] = element;
+    priorities[loc] = priority;
+  }
+
+  /**
+   * Returns the kept elements in decreasing priority order, leaving this
+   * TopK unchanged.
+   */
+  public List<E> elements() {
+    int[] order = sortedOrder();
+    List<E> list = new ArrayList<E>(order.length);
+    for (int i : order) {
+      list.add(element(i));
+    }
+    return list;
+  }
+
+  /**
+   * Returns the kept elements as a priority queue.
+   */
+  public PriorityQueue<E> asPriorityQueue() {
+    PriorityQueue<E> pq = new FastPriorityQueue<E>(Math.max(size, 1));
+    for (int i = 0; i < size; i++) {
+      pq.setPriority(element(i), priorities[i]);
+    }
+    return pq;
+  }
+
+  /**
+   * Returns the kept elements as a counter.
+   */
+  public Counter<E> asCounter() {
+    Counter<E> counter = new Counter<E>();
+    for (int i = 0; i < size; i++) {
+      counter.setCount(element(i), priorities[i]);
+    }
+    return counter;
+  }
+
+  // heap slots ordered by decreasing priority
+  private int[] sortedOrder() {
+    Integer[] boxed = new Integer[size];
+    for (int i = 0; i < size; i++) {
+      boxed[i] = i;
+    }
+    Arrays.sort(boxed, new java.util.Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        return Double.compare(priorities[b], priorities[a]);
+      }
+    });
+    int[] order = new int[size];
+    for (int i = 0; i < size; i++) {
+      order[i] = boxed[i];
+    }
+    return order;
+  }
+
+  /**
+   * Formats the kept elements in decreasing priority order the way
+   * FastPriorityQueue.toString() does, as if they had been taken from a
+   * collection of totalSize elements (a trailing "..." marks the rest).
+   */
+  public String toString(int totalSize) {
+    StringBuilder sb = new StringBuilder("[");
+    int numKeysPrinted = 0;
+    for (int i : sortedOrder()) {
+      sb.append(elements[i].toString());
+      sb.append(" : ");
+      sb.append(priorities[i]);
+      if (numKeysPrinted < totalSize - 1)
+        sb.append(", ");
+      numKeysPrinted++;
+    }
+    if (numKeysPrinted < totalSize)
+      sb.append("...");
+    sb.append("]");
+    return sb.toString();
+  }
+
+  public String toString() {
+    return toString(size);
+  }
+
+  public TopK(int k) {
+    if (k < 0)
+      throw new IllegalArgumentException("k must be non-negative: " + k);
+    this.k = k;
+    elements = new Object[k];
+    priorities = new double[k];
+  }
+}